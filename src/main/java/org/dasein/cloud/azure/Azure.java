@@ -1,6 +1,5 @@
 package org.dasein.cloud.azure;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
@@ -15,9 +14,12 @@ import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -60,7 +62,15 @@ public class Azure extends AbstractCloud {
 
     public Azure() { }
 
+    /**
+     * @deprecated no longer set; use {@link #getAffinityGroup()}
+     */
+    @Deprecated
     public String affinityGroup = null;
+    /**
+     * @deprecated no longer set; use {@link #getAffinityGroup()}
+     */
+    @Deprecated
     public String affinityRegion = null;
 
     static private final Random random = new Random();
@@ -116,73 +126,100 @@ public class Azure extends AbstractCloud {
     	return new AzureNetworkServices(this);
     }
 
-    private transient String storageEndpoint;
+    static private final long STORAGE_REFRESH_INTERVAL = 15L * 60000L;
 
-    public @Nonnull String getStorageEndpoint() throws CloudException, InternalException {
-        if( storageEndpoint == null ) {
-            ProviderContext ctx = getContext();
-
-            if( ctx == null ) {
-                throw new AzureConfigException("No configuration was set for this request");
-            }
-            AzureMethod method = new AzureMethod(this);
+    /**
+     * Everything known about the storage accounts of a subscription from a single read of the storage services list.
+     */
+    static private class StorageMetadata {
+        public String       endpoint;
+        public String       service;
+        public List<String> services;
+        public long         timestamp;
+    }
 
-            Document xml = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices");
+    private @Nonnull StorageMetadata getStorageMetadata() throws CloudException, InternalException {
+        final ProviderContext ctx = getContext();
 
-            if( xml == null ) {
-                throw new CloudException("Unable to identify the blob endpoint");
+        if( ctx == null ) {
+            throw new AzureConfigException("No configuration was set for this request");
+        }
+        StorageMetadata metadata = AzureMetadataCache.get(ctx.getAccountNumber(), null, AzureMetadataCache.STORAGE, STORAGE_REFRESH_INTERVAL, new AzureMetadataCache.Loader<StorageMetadata>() {
+            public @Nonnull StorageMetadata load() throws CloudException, InternalException {
+                return loadStorageMetadata(ctx);
             }
-            NodeList endpoints = xml.getElementsByTagName("Endpoint");
-
-            for( int i=0; i<endpoints.getLength(); i++ ) {
-                Node node = endpoints.item(i);
-
-                if( node.hasChildNodes() ) {
-                    String endpoint = node.getFirstChild().getNodeValue().trim();
+        });
 
-                    if( endpoint.contains("blob") ) {
-                        if( !endpoint.endsWith("/") ) {
-                            endpoint = endpoint + "/";
-                        }
-                        storageEndpoint = endpoint;
-                        break;
-                    }
-                }
-            }
-            if( storageEndpoint == null ) {
-                throw new CloudException("There is no blob endpoint");
-            }
+        if( metadata == null ) {
+            throw new CloudException("Unable to identify the blob endpoint");
         }
-        return storageEndpoint;
+        return metadata;
     }
-    private transient String storageService;
 
-    public @Nullable String getStorageService() throws CloudException, InternalException {
-        if( storageService == null ) {
-            ProviderContext ctx = getContext();
+    private @Nonnull StorageMetadata loadStorageMetadata(@Nonnull ProviderContext ctx) throws CloudException, InternalException {
+        AzureMethod method = new AzureMethod(this);
 
-            if( ctx == null ) {
-                throw new AzureConfigException("No configuration was set for this request");
-            }
-            AzureMethod method = new AzureMethod(this);
+        Document xml = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices");
 
-            Document xml = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices");
+        if( xml == null ) {
+            throw new CloudException("Unable to identify the blob endpoint");
+        }
+        StorageMetadata metadata = new StorageMetadata();
+        ArrayList<String> services = new ArrayList<String>();
+        NodeList names = xml.getElementsByTagName("ServiceName");
+
+        for( int i=0; i<names.getLength(); i++ ) {
+            Node node = names.item(i);
 
-            if( xml == null ) {
-                throw new CloudException("Unable to identify the blob endpoint");
+            if( node.hasChildNodes() ) {
+                services.add(node.getFirstChild().getNodeValue().trim());
             }
-            NodeList names = xml.getElementsByTagName("ServiceName");
+        }
+        NodeList endpoints = xml.getElementsByTagName("Endpoint");
 
-            for( int i=0; i<names.getLength(); i++ ) {
-                Node node = names.item(i);
+        for( int i=0; i<endpoints.getLength(); i++ ) {
+            Node node = endpoints.item(i);
 
-                if( node.hasChildNodes() ) {
-                    storageService = node.getFirstChild().getNodeValue().trim();
+            if( node.hasChildNodes() ) {
+                String endpoint = node.getFirstChild().getNodeValue().trim();
+
+                if( endpoint.contains("blob") ) {
+                    if( !endpoint.endsWith("/") ) {
+                        endpoint = endpoint + "/";
+                    }
+                    metadata.endpoint = endpoint;
                     break;
                 }
             }
         }
-        return storageService;
+        metadata.service = (services.isEmpty() ? null : services.get(0));
+        metadata.services = Collections.unmodifiableList(services);
+        metadata.timestamp = System.currentTimeMillis();
+        return metadata;
+    }
+
+    public @Nonnull String getStorageEndpoint() throws CloudException, InternalException {
+        String endpoint = getStorageMetadata().endpoint;
+
+        if( endpoint == null ) {
+            throw new CloudException("There is no blob endpoint");
+        }
+        return endpoint;
+    }
+
+    public @Nullable String getStorageService() throws CloudException, InternalException {
+        return getStorageMetadata().service;
+    }
+
+    /**
+     * Lists the names of all storage accounts in the subscription.
+     * @return the storage account names, the one used by this provider first
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @since 2013.04.2
+     */
+    public @Nonnull List<String> getStorageServiceNames() throws CloudException, InternalException {
+        return getStorageMetadata().services;
     }
 
     @Override
@@ -196,81 +233,20 @@ public class Azure extends AbstractCloud {
         return "Microsoft";
     }
 
+    /**
+     * Provides the affinity group for the context region, creating one if the region has none yet. Groups are
+     * registered process-wide per subscription, so only the first lookup in a subscription reads the affinity groups.
+     * @return the name of the affinity group for the context region
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred with the cloud provider
+     */
     public String getAffinityGroup() throws InternalException,CloudException{
-        if(affinityGroup == null){
-            ProviderContext ctx = getContext();
-
-            if( ctx == null ) {
-                throw new AzureConfigException("No context was specified for this request");
-            }
-            logger.info("Get affinity group for "+ctx.getRegionId()+" for account "+ctx.getAccountNumber());
-            AzureMethod method = new AzureMethod(this);
-
-            Document doc = method.getAsXML(ctx.getAccountNumber(), "/affinitygroups");
-
-            NodeList entries = doc.getElementsByTagName("AffinityGroup");
-
-            for (int i = 0; i<entries.getLength(); i++) {
-                Node entry = entries.item(i);
-
-                NodeList attributes = entry.getChildNodes();
-
-                for( int j=0; j<attributes.getLength(); j++ ) {
-                    Node attribute = attributes.item(j);
-                    if(attribute.getNodeType() == Node.TEXT_NODE) continue;
-                    String nodeName = attribute.getNodeName();
-
-                    if (nodeName.equalsIgnoreCase("name") && attribute.hasChildNodes() ) {
-                        affinityGroup = attribute.getFirstChild().getNodeValue().trim();
-                    }
-                    else if (nodeName.equalsIgnoreCase("location") && attribute.hasChildNodes()) {
-                        affinityRegion = attribute.getFirstChild().getNodeValue().trim();
-                        if (!ctx.getRegionId().equalsIgnoreCase(affinityRegion)) {
-                            affinityGroup = null;
-                            affinityRegion = null;
-                            break;
-                        }
-                        else {
-                            if (affinityGroup != null) {
-                                return affinityGroup;
-                            }
-                            continue;
-                        }
-                    }
-                }
-            }
-            if (affinityGroup == null) {
-                logger.info("Create new affinity group for "+ctx.getRegionId());
-                //create new affinityGroup
-                String name = "EnstratiusAffinity"+(ctx.getRegionId().replaceAll(" ", ""));
-                logger.info(name);
-                String label;
-                try {
-                    StringBuilder xml = new StringBuilder();
-
-                    try {
-                        label = new String(Base64.encodeBase64(name.getBytes("utf-8")));
-                    }
-                    catch( UnsupportedEncodingException e ) {
-                        throw new InternalException(e);
-                    }
+        ProviderContext ctx = getContext();
 
-                    xml.append("<CreateAffinityGroup xmlns=\"http://schemas.microsoft.com/windowsazure\">") ;
-                    xml.append("<Name>").append(name).append("</Name>");
-                    xml.append("<Label>").append(label).append("</Label>");
-                    xml.append("<Location>").append(ctx.getRegionId()).append("</Location>");
-                    xml.append("</CreateAffinityGroup>");
-                    method.post(ctx.getAccountNumber(),"/affinitygroups", xml.toString());
-                }
-                catch (CloudException e) {
-                    logger.error("Unable to create affinity group",e);
-                    throw new CloudException(e);
-                }
-                affinityGroup = name;
-            }
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
         }
-
-        return affinityGroup;
+        return AzureAffinityGroups.getInstance(ctx.getAccountNumber()).getAffinityGroup(this);
     }
 
     public long parseTimestamp(@Nullable String time) throws CloudException {
@@ -317,10 +293,13 @@ public class Azure extends AbstractCloud {
                 logger.debug("X509 key: "+new String(ctx.getX509Key(), "utf-8"));
                 logger.debug("--------------Context-------------");
                 */
-                if( method.getAsStream(ctx.getAccountNumber(), "/locations") == null ) {
+                InputStream input = method.getAsStream(ctx.getAccountNumber(), "/locations");
+
+                if( input == null ) {
                     logger.warn("Account number was invalid for context test: " + ctx.getAccountNumber());
                     return null;
                 }
+                input.close();
                 if( logger.isDebugEnabled() ) {
                     logger.debug("Valid account: " + ctx.getAccountNumber());
                 }
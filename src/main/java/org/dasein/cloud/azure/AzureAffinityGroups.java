@@ -0,0 +1,200 @@
+package org.dasein.cloud.azure;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Process-wide registry of the affinity group used in each region of a subscription, held in the
+ * {@link AzureMetadataCache} so that it is re-read hourly or when invalidated. Lookups of a known region are a
+ * single lock-free map read. The first lookup in a subscription reads <code>/affinitygroups</code> once and registers
+ * every group found; a region with no group gets one created for it, with concurrent callers for the same region
+ * waiting on that one creation rather than each creating their own.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureAffinityGroups {
+    static private final Logger logger = Azure.getLogger(AzureAffinityGroups.class);
+
+    static private final String AFFINITY_GROUPS = "/affinitygroups";
+
+    static private final long REFRESH_INTERVAL = 60L * 60000L;
+
+    static @Nonnull AzureAffinityGroups getInstance(@Nonnull final String accountNumber) throws CloudException, InternalException {
+        AzureAffinityGroups registry = AzureMetadataCache.get(accountNumber, null, AzureMetadataCache.AFFINITY_GROUPS, REFRESH_INTERVAL, new AzureMetadataCache.Loader<AzureAffinityGroups>() {
+            public @Nonnull AzureAffinityGroups load() {
+                return new AzureAffinityGroups(accountNumber);
+            }
+        });
+
+        if( registry == null ) {
+            throw new InternalException("No affinity group registry for " + accountNumber);
+        }
+        return registry;
+    }
+
+    private final String                                        accountNumber;
+    private final ConcurrentHashMap<String,String>              groups  = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String,AzureFuture<String>> pending = new ConcurrentHashMap<String, AzureFuture<String>>();
+    private volatile boolean                                    loaded  = false;
+
+    private AzureAffinityGroups(@Nonnull String accountNumber) {
+        this.accountNumber = accountNumber;
+    }
+
+    /**
+     * Provides the affinity group for the context region, creating one if the region has none yet.
+     * @param provider the provider through which any requests are made
+     * @return the name of the affinity group
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull String getAffinityGroup(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new AzureConfigException("No region ID was specified for this request");
+        }
+        String key = toKey(regionId);
+        String group = groups.get(key);
+
+        if( group != null ) {
+            return group;
+        }
+        AzureFuture<String> future = new AzureFuture<String>();
+        AzureFuture<String> existing = pending.putIfAbsent(key, future);
+
+        if( existing == null ) {
+            try {
+                future.complete(resolve(provider, regionId));
+            }
+            catch( Throwable t ) {
+                future.fail(t);
+            }
+            finally {
+                pending.remove(key, future);
+            }
+        }
+        else {
+            future = existing;
+        }
+        try {
+            return future.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    private @Nonnull String resolve(@Nonnull Azure provider, @Nonnull String regionId) throws CloudException, InternalException {
+        AzureMethod method = new AzureMethod(provider);
+        String key = toKey(regionId);
+
+        load(method);
+
+        String group = groups.get(key);
+
+        if( group != null ) {
+            return group;
+        }
+        logger.info("Create new affinity group for " + regionId);
+        String name = "EnstratiusAffinity" + regionId.replaceAll(" ", "");
+        StringBuilder xml = new StringBuilder();
+        String label;
+
+        try {
+            label = new String(Base64.encodeBase64(name.getBytes("utf-8")));
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+        xml.append("<CreateAffinityGroup xmlns=\"http://schemas.microsoft.com/windowsazure\">");
+        xml.append("<Name>").append(name).append("</Name>");
+        xml.append("<Label>").append(label).append("</Label>");
+        xml.append("<Location>").append(regionId).append("</Location>");
+        xml.append("</CreateAffinityGroup>");
+        try {
+            method.post(accountNumber, AFFINITY_GROUPS, xml.toString());
+        }
+        catch( CloudException e ) {
+            // created by another process since the groups were read
+            if( !"ConflictError".equals(e.getProviderCode()) ) {
+                logger.error("Unable to create affinity group", e);
+                throw e;
+            }
+        }
+        groups.putIfAbsent(key, name);
+        return groups.get(key);
+    }
+
+    private synchronized void load(@Nonnull AzureMethod method) throws CloudException, InternalException {
+        if( loaded ) {
+            return;
+        }
+        logger.info("Get affinity groups for account " + accountNumber);
+        Document doc = method.getAsXML(accountNumber, AFFINITY_GROUPS);
+
+        if( doc != null ) {
+            NodeList entries = doc.getElementsByTagName("AffinityGroup");
+
+            for( int i=0; i<entries.getLength(); i++ ) {
+                NodeList attributes = entries.item(i).getChildNodes();
+                String name = null;
+                String location = null;
+
+                for( int j=0; j<attributes.getLength(); j++ ) {
+                    Node attribute = attributes.item(j);
+
+                    if( attribute.getNodeType() == Node.TEXT_NODE ) {
+                        continue;
+                    }
+                    String nodeName = attribute.getNodeName();
+
+                    if( nodeName.equalsIgnoreCase("name") && attribute.hasChildNodes() ) {
+                        name = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                    else if( nodeName.equalsIgnoreCase("location") && attribute.hasChildNodes() ) {
+                        location = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                }
+                if( name != null && location != null ) {
+                    groups.putIfAbsent(toKey(location), name);
+                }
+            }
+        }
+        loaded = true;
+    }
+
+    private @Nonnull String toKey(@Nullable String regionId) {
+        return (regionId == null ? "" : regionId.toLowerCase(Locale.ENGLISH));
+    }
+}
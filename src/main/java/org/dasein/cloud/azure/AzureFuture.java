@@ -0,0 +1,81 @@
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A future whose result is set explicitly by whatever is tracking the underlying work, rather than by running a task.
+ * Listeners may be attached so that follow-up work can be chained on without a thread blocking in {@link #get()}.
+ * @param <T> the type of the result
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureFuture<T> extends FutureTask<T> {
+    static private final Logger logger = Azure.getLogger(AzureFuture.class);
+
+    private final ArrayList<Runnable> listeners = new ArrayList<Runnable>();
+    private boolean                   finished  = false;
+
+    public AzureFuture() {
+        super(new Callable<T>() {
+            public T call() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Completes this future successfully. Has no effect if it is already done.
+     * @param result the result
+     */
+    public void complete(@Nullable T result) {
+        set(result);
+    }
+
+    /**
+     * Completes this future with a failure. Has no effect if it is already done.
+     * @param cause the cause of the failure
+     */
+    public void fail(@Nonnull Throwable cause) {
+        setException(cause);
+    }
+
+    /**
+     * Runs a listener once this future is done, or right away if it already is. Listeners run on the thread that
+     * completes the future, so anything slow should be handed off to an executor.
+     * @param listener the listener to run
+     */
+    public void whenDone(@Nonnull Runnable listener) {
+        synchronized( listeners ) {
+            if( !finished ) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    protected void done() {
+        ArrayList<Runnable> current;
+
+        synchronized( listeners ) {
+            finished = true;
+            current = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for( Runnable listener : current ) {
+            try {
+                listener.run();
+            }
+            catch( Throwable t ) {
+                logger.warn("Listener failed: " + t.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.w3c.dom.Document;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Optional on-disk snapshot of the last known inventory of a subscription, used to answer the first full listings
+ * after a restart without paying for a cold sweep. The snapshot records the raw management API documents a listing
+ * read rather than the resulting objects. Replaying them through the normal parsing code rebuilds exactly what the
+ * live listing returned.
+ * <p>
+ * The snapshot is enabled by setting the <code>inventorySnapshotDir</code> custom property on the provider context.
+ * Until a live sweep of an inventory has completed in this JVM, listings of it are served from the snapshot, if
+ * there is one, with every item marked with the {@link #STALE_TAG} tag, while a single live sweep refreshes the
+ * snapshot in the background. Once that sweep completes, listings are live and re-record the snapshot. The file is
+ * rewritten only when a recorded inventory has changed, or at most once every {@link #SAVE_INTERVAL} otherwise.
+ * </p>
+ * <p>
+ * Values a listing derives from other services, such as the ID of a named VLAN, are resolved through
+ * {@link #lookup(AzureMethod, String, Lookup)} so that they are recorded with the documents and replayed from the
+ * snapshot rather than fetched live.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureInventorySnapshot {
+    static private final Logger logger = Azure.getLogger(AzureInventorySnapshot.class);
+
+    /**
+     * Custom context property naming the directory in which snapshots are kept.
+     */
+    static public final String PROPERTY  = "inventorySnapshotDir";
+    /**
+     * Tag placed on items served from a snapshot; the value is the time the snapshot was taken.
+     */
+    static public final String STALE_TAG = "snapshotTimestamp";
+
+    /**
+     * The longest time for which an unchanged snapshot goes without being rewritten.
+     */
+    static public final long SAVE_INTERVAL = 600000L;
+
+    static private final int    MAGIC   = 0x415A534E;
+    static private final int    VERSION = 1;
+    static private final String LOOKUP  = "lookup:";
+
+    static private final ConcurrentHashMap<String,AzureInventorySnapshot> snapshots = new ConcurrentHashMap<String, AzureInventorySnapshot>();
+
+    static private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure inventory snapshot");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Provides the snapshot for the subscription of the specified provider.
+     * @param provider the provider
+     * @return the snapshot, or null if snapshots are not enabled for the provider context
+     */
+    static public @Nullable AzureInventorySnapshot getInstance(@Nonnull Azure provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return null;
+        }
+        Properties p = ctx.getCustomProperties();
+        String dir = (p == null ? null : p.getProperty(PROPERTY));
+
+        if( dir == null || dir.length() < 1 ) {
+            return null;
+        }
+        File file = new File(dir, "azure-" + ctx.getAccountNumber() + "-" + ctx.getRegionId() + ".snapshot");
+        String key = file.getAbsolutePath();
+        AzureInventorySnapshot snapshot = snapshots.get(key);
+
+        if( snapshot == null ) {
+            snapshot = new AzureInventorySnapshot(file);
+
+            AzureInventorySnapshot existing = snapshots.putIfAbsent(key, snapshot);
+
+            if( existing != null ) {
+                snapshot = existing;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * A full listing whose documents can be recorded into, or replayed from, a snapshot.
+     * @param <T> the type of item listed
+     */
+    static public abstract class Sweep<T> {
+        /**
+         * Runs the listing, reading every document through the specified method.
+         * @param method the method to use for all document reads
+         * @return the items found
+         * @throws CloudException an error occurred with the cloud provider
+         * @throws InternalException an error occurred within the Dasein Cloud implementation
+         */
+        public abstract @Nonnull List<T> list(@Nonnull AzureMethod method) throws CloudException, InternalException;
+
+        /**
+         * Marks an item as having come from a snapshot.
+         * @param item the item
+         * @param timestamp the time the snapshot was taken
+         */
+        public abstract void markStale(@Nonnull T item, long timestamp);
+    }
+
+    /**
+     * A value derived by a listing from some other service.
+     */
+    static public interface Lookup {
+        /**
+         * Resolves the value live.
+         * @return the value, or null if there is none
+         * @throws CloudException an error occurred with the cloud provider
+         * @throws InternalException an error occurred within the Dasein Cloud implementation
+         */
+        public @Nullable String lookup() throws CloudException, InternalException;
+    }
+
+    /**
+     * Resolves a derived value for a listing. While the listing is being recorded, the value is resolved live and
+     * recorded; while it is being replayed, the recorded value is returned without any live call. Any other method
+     * simply resolves the value live.
+     * @param method the method the listing reads its documents through
+     * @param key identifies the value within the inventory
+     * @param lookup resolves the value live
+     * @return the value, or null if there is none
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static public @Nullable String lookup(@Nonnull AzureMethod method, @Nonnull String key, @Nonnull Lookup lookup) throws CloudException, InternalException {
+        if( method instanceof ReplayMethod ) {
+            byte[] data = ((ReplayMethod)method).documents.get(LOOKUP + key);
+
+            return (data == null ? null : toString(data));
+        }
+        String value = lookup.lookup();
+
+        if( value != null && method instanceof RecordingMethod ) {
+            try {
+                ((RecordingMethod)method).documents.put(LOOKUP + key, value.getBytes("utf-8"));
+            }
+            catch( UnsupportedEncodingException e ) {
+                throw new InternalException(e);
+            }
+        }
+        return value;
+    }
+
+    static private @Nonnull String toString(@Nonnull byte[] data) throws InternalException {
+        try {
+            return new String(data, "utf-8");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    static private class Inventory {
+        public Map<String,byte[]> documents;
+        public long               timestamp;
+    }
+
+    private final File                                file;
+    private final ConcurrentHashMap<String,Inventory> inventories = new ConcurrentHashMap<String, Inventory>();
+    private final ConcurrentHashMap<String,Boolean>   live        = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicBoolean                       queued      = new AtomicBoolean(false);
+    private boolean                                   loaded      = false;
+    private volatile long                             lastSaved   = 0L;
+
+    private AzureInventorySnapshot(@Nonnull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Lists an inventory, serving it from the snapshot if this is the first listing of it in this JVM.
+     * @param inventory the name of the inventory (such as "vms")
+     * @param provider the provider through which the live sweep is made
+     * @param sweep the listing
+     * @param <T> the type of item listed
+     * @return the items in the inventory
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull <T> List<T> list(@Nonnull final String inventory, @Nonnull final Azure provider, @Nonnull final Sweep<T> sweep) throws CloudException, InternalException {
+        if( !Boolean.TRUE.equals(live.get(inventory)) ) {
+            load();
+
+            Inventory saved = inventories.get(inventory);
+
+            if( saved != null ) {
+                try {
+                    List<T> items = sweep.list(new ReplayMethod(provider, saved.documents));
+
+                    for( T item : items ) {
+                        sweep.markStale(item, saved.timestamp);
+                    }
+                    if( live.putIfAbsent(inventory, Boolean.FALSE) == null ) {
+                        background.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    record(inventory, provider, sweep);
+                                }
+                                catch( Throwable t ) {
+                                    logger.warn("Unable to refresh " + inventory + " snapshot: " + t.getMessage());
+                                    live.remove(inventory);
+                                }
+                            }
+                        });
+                    }
+                    return items;
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to replay " + inventory + " snapshot: " + t.getMessage());
+                }
+            }
+        }
+        return record(inventory, provider, sweep);
+    }
+
+    private @Nonnull <T> List<T> record(@Nonnull final String inventory, @Nonnull Azure provider, @Nonnull Sweep<T> sweep) throws CloudException, InternalException {
+        RecordingMethod method = new RecordingMethod(provider);
+        List<T> items = sweep.list(method);
+        Inventory current = new Inventory();
+
+        current.documents = method.documents;
+        current.timestamp = System.currentTimeMillis();
+
+        Inventory previous = inventories.put(inventory, current);
+
+        live.put(inventory, Boolean.TRUE);
+        if( previous == null || !isSame(previous.documents, current.documents) || current.timestamp - lastSaved >= SAVE_INTERVAL ) {
+            queueSave();
+        }
+        return items;
+    }
+
+    static private boolean isSame(@Nonnull Map<String,byte[]> a, @Nonnull Map<String,byte[]> b) {
+        if( !a.keySet().equals(b.keySet()) ) {
+            return false;
+        }
+        for( Map.Entry<String,byte[]> entry : a.entrySet() ) {
+            if( !Arrays.equals(entry.getValue(), b.get(entry.getKey())) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues a save unless one is already waiting, so that a burst of listings causes a single write.
+     */
+    private void queueSave() {
+        if( queued.compareAndSet(false, true) ) {
+            background.execute(new Runnable() {
+                public void run() {
+                    // cleared first, so that changes recorded during the save queue another one
+                    queued.set(false);
+                    save();
+                }
+            });
+        }
+    }
+
+    private synchronized void load() {
+        if( loaded ) {
+            return;
+        }
+        loaded = true;
+        if( !file.exists() ) {
+            return;
+        }
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+            if( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                logger.warn("Ignoring unrecognized inventory snapshot " + file);
+                return;
+            }
+            int count = in.readInt();
+
+            for( int i=0; i<count; i++ ) {
+                String name = in.readUTF();
+                Inventory inventory = new Inventory();
+                int documents;
+
+                inventory.timestamp = in.readLong();
+                documents = in.readInt();
+                inventory.documents = new HashMap<String, byte[]>();
+                for( int j=0; j<documents; j++ ) {
+                    String key = in.readUTF();
+                    byte[] data = new byte[in.readInt()];
+
+                    in.readFully(data);
+                    inventory.documents.put(key, data);
+                }
+                inventories.putIfAbsent(name, inventory);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read inventory snapshot " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( in != null ) {
+                try { in.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+    }
+
+    private synchronized void save() {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            File dir = file.getParentFile();
+
+            if( dir != null && !dir.exists() && !dir.mkdirs() ) {
+                logger.warn("Unable to create snapshot directory " + dir);
+                return;
+            }
+            out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            HashMap<String,Inventory> current = new HashMap<String, Inventory>(inventories);
+
+            out.writeInt(current.size());
+            for( Map.Entry<String,Inventory> entry : current.entrySet() ) {
+                Inventory inventory = entry.getValue();
+
+                out.writeUTF(entry.getKey());
+                out.writeLong(inventory.timestamp);
+                out.writeInt(inventory.documents.size());
+                for( Map.Entry<String,byte[]> document : inventory.documents.entrySet() ) {
+                    out.writeUTF(document.getKey());
+                    out.writeInt(document.getValue().length);
+                    out.write(document.getValue());
+                }
+            }
+            out.close();
+            out = null;
+            if( !tmp.renameTo(file) ) {
+                if( !file.delete() || !tmp.renameTo(file) ) {
+                    logger.warn("Unable to replace inventory snapshot " + file);
+                    return;
+                }
+            }
+            lastSaved = System.currentTimeMillis();
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to write inventory snapshot " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( out != null ) {
+                try { out.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+    }
+
+    static private @Nonnull String toKey(@Nonnull URI uri) {
+        String path = uri.getRawPath();
+        String query = uri.getRawQuery();
+
+        return (query == null ? path : path + "?" + query);
+    }
+
+    static private class RecordingMethod extends AzureMethod {
+        public final Map<String,byte[]> documents = new ConcurrentHashMap<String, byte[]>();
+
+        public RecordingMethod(@Nonnull Azure provider) throws CloudException {
+            super(provider);
+        }
+
+        @Override
+        public @Nullable Document getAsXML(@Nonnull String account, @Nonnull URI uri) throws CloudException, InternalException {
+            Document doc = super.getAsXML(account, uri);
+
+            if( doc != null ) {
+                try {
+                    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                    transformer.transform(new DOMSource(doc), new StreamResult(out));
+                    documents.put(toKey(uri), out.toByteArray());
+                }
+                catch( TransformerException e ) {
+                    logger.warn("Unable to record " + uri + " in snapshot: " + e.getMessage());
+                }
+            }
+            return doc;
+        }
+    }
+
+    static private class ReplayMethod extends AzureMethod {
+        private final Map<String,byte[]> documents;
+
+        public ReplayMethod(@Nonnull Azure provider, @Nonnull Map<String,byte[]> documents) throws CloudException {
+            super(provider);
+            this.documents = documents;
+        }
+
+        @Override
+        public @Nullable Document getAsXML(@Nonnull String account, @Nonnull URI uri) throws CloudException, InternalException {
+            byte[] data = documents.get(toKey(uri));
+
+            if( data == null ) {
+                return null;
+            }
+            return parseResponse(AzureInventorySnapshot.toString(data), false);
+        }
+    }
+}
@@ -28,6 +28,8 @@ import java.util.Locale;
  */
 public class AzureLocation implements DataCenterServices {
     static private final String LOCATIONS = "/locations";
+
+    static private final long CACHE_TTL = 60L * 60000L;
     
     private Azure provider;
     
@@ -81,7 +83,7 @@ public class AzureLocation implements DataCenterServices {
         }
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), LOCATIONS);
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.LOCATIONS, LOCATIONS, CACHE_TTL);
 
         if( doc == null ) {
             return false;
@@ -154,7 +156,7 @@ public class AzureLocation implements DataCenterServices {
         }
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), LOCATIONS);
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.LOCATIONS, LOCATIONS, CACHE_TTL);
 
         if( doc == null ) {
             return Collections.emptyList();
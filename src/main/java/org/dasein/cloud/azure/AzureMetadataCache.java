@@ -0,0 +1,259 @@
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.w3c.dom.Document;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JVM-wide cache of slowly changing subscription metadata, shared by every {@link Azure} instance so that a freshly
+ * constructed provider starts warm. Entries are keyed by subscription, region (where the metadata is regional) and
+ * category, expire after a per-call time to live, and are evicted least recently used first beyond a fixed bound.
+ * Hits are lock-free; concurrent misses on the same entry wait on a single load. If a reload fails, the expired
+ * value is served instead.
+ * <p>
+ * Cached values must be immutable. Management API documents are therefore cached as their serialized bytes and
+ * parsed afresh for each caller by {@link #getDocument(AzureMethod, String, String, String, String, long)}.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public final class AzureMetadataCache {
+    static private final Logger logger = Azure.getLogger(AzureMetadataCache.class);
+
+    static public final String AFFINITY_GROUPS = "affinityGroups";
+    static public final String IMAGES          = "images";
+    static public final String LOCATIONS       = "locations";
+    static public final String NETWORK         = "network";
+    static public final String STORAGE         = "storage";
+
+    static private final int MAX_ENTRIES = 500;
+
+    /**
+     * Loads a value on a cache miss.
+     * @param <T> the type of value loaded
+     */
+    static public abstract class Loader<T> {
+        /**
+         * @return the value to cache, or null if there is nothing to cache
+         * @throws CloudException an error occurred with the cloud provider
+         * @throws InternalException an error occurred within the Dasein Cloud implementation
+         */
+        public abstract @Nullable T load() throws CloudException, InternalException;
+    }
+
+    static private class Entry {
+        public          Object value;
+        public          long   expires;
+        public volatile long   lastAccess;
+    }
+
+    static private final ConcurrentHashMap<String,Entry>               entries    = new ConcurrentHashMap<String, Entry>();
+    static private final ConcurrentHashMap<String,AzureFuture<Object>> pending    = new ConcurrentHashMap<String, AzureFuture<Object>>();
+    static private final AtomicLong                                     generation = new AtomicLong();
+
+    private AzureMetadataCache() { }
+
+    /**
+     * Provides a cached value, loading it if it is missing or has expired.
+     * @param accountNumber the subscription
+     * @param regionId the region, or null for metadata that is not regional
+     * @param category the category of metadata
+     * @param ttl the number of milliseconds for which a newly loaded value is used
+     * @param loader loads the value on a miss
+     * @param <T> the type of value
+     * @return the value, or null if the loader found nothing
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @SuppressWarnings("unchecked")
+    static public @Nullable <T> T get(@Nonnull String accountNumber, @Nullable String regionId, @Nonnull String category, long ttl, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        return (T)lookup(toKey(accountNumber, regionId, category) + "|", ttl, loader);
+    }
+
+    /**
+     * Provides a freshly parsed copy of a cached management API document, reading it if it is missing or has expired.
+     * Callers are free to modify the returned document.
+     * @param method the method through which the document is read on a miss
+     * @param accountNumber the subscription
+     * @param regionId the region, or null for documents that are not regional
+     * @param category the category under which the document is invalidated
+     * @param resource the resource to read
+     * @param ttl the number of milliseconds for which a newly read document is used
+     * @return the document, or null if none was returned
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static public @Nullable Document getDocument(@Nonnull final AzureMethod method, @Nonnull final String accountNumber, @Nullable String regionId, @Nonnull String category, @Nonnull final String resource, long ttl) throws CloudException, InternalException {
+        byte[] data = (byte[])lookup(toKey(accountNumber, regionId, category) + "|" + resource, ttl, new Loader<byte[]>() {
+            public @Nullable byte[] load() throws CloudException, InternalException {
+                Document doc = method.getAsXML(accountNumber, resource);
+
+                if( doc == null ) {
+                    return null;
+                }
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                    TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+                    return out.toByteArray();
+                }
+                catch( TransformerException e ) {
+                    throw new InternalException(e);
+                }
+            }
+        });
+
+        if( data == null ) {
+            return null;
+        }
+        try {
+            return method.parseResponse(new String(data, "utf-8"), false);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Discards everything cached for a subscription.
+     * @param accountNumber the subscription
+     */
+    static public void invalidate(@Nonnull String accountNumber) {
+        remove(accountNumber + "|");
+    }
+
+    /**
+     * Discards one category of metadata for a subscription.
+     * @param accountNumber the subscription
+     * @param regionId the region, or null for metadata that is not regional
+     * @param category the category of metadata
+     */
+    static public void invalidate(@Nonnull String accountNumber, @Nullable String regionId, @Nonnull String category) {
+        remove(toKey(accountNumber, regionId, category) + "|");
+    }
+
+    /**
+     * Discards everything in the cache.
+     */
+    static public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    static private @Nonnull String toKey(@Nonnull String accountNumber, @Nullable String regionId, @Nonnull String category) {
+        return accountNumber + "|" + (regionId == null ? "" : regionId) + "|" + category;
+    }
+
+    static private void remove(@Nonnull String prefix) {
+        generation.incrementAndGet();
+        Iterator<String> it = entries.keySet().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().startsWith(prefix) ) {
+                it.remove();
+            }
+        }
+    }
+
+    static private synchronized void evict() {
+        while( entries.size() > MAX_ENTRIES ) {
+            String oldest = null;
+            long lastAccess = Long.MAX_VALUE;
+
+            for( Map.Entry<String,Entry> entry : entries.entrySet() ) {
+                if( entry.getValue().lastAccess < lastAccess ) {
+                    lastAccess = entry.getValue().lastAccess;
+                    oldest = entry.getKey();
+                }
+            }
+            if( oldest == null ) {
+                return;
+            }
+            entries.remove(oldest);
+        }
+    }
+
+    static private @Nullable Object lookup(@Nonnull String key, long ttl, @Nonnull Loader<?> loader) throws CloudException, InternalException {
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+
+        if( entry != null && entry.expires > now ) {
+            entry.lastAccess = now;
+            return entry.value;
+        }
+        AzureFuture<Object> future = new AzureFuture<Object>();
+        AzureFuture<Object> existing = pending.putIfAbsent(key, future);
+
+        if( existing == null ) {
+            try {
+                long loadGeneration = generation.get();
+                Object value = loader.load();
+
+                if( value != null ) {
+                    Entry loaded = new Entry();
+
+                    loaded.value = value;
+                    loaded.lastAccess = System.currentTimeMillis();
+                    loaded.expires = loaded.lastAccess + ttl;
+                    entries.put(key, loaded);
+                    // anything invalidated during the load may have been read before the change
+                    if( generation.get() != loadGeneration ) {
+                        entries.remove(key, loaded);
+                    }
+                    if( entries.size() > MAX_ENTRIES ) {
+                        evict();
+                    }
+                }
+                future.complete(value);
+            }
+            catch( Throwable t ) {
+                if( entry != null ) {
+                    logger.warn("Unable to reload " + key + ", keeping expired value: " + t.getMessage());
+                    future.complete(entry.value);
+                }
+                else {
+                    future.fail(t);
+                }
+            }
+            finally {
+                pending.remove(key, future);
+            }
+        }
+        else {
+            future = existing;
+        }
+        try {
+            return future.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+}
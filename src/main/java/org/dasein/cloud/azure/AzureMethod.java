@@ -1,5 +1,6 @@
 package org.dasein.cloud.azure;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
@@ -17,7 +18,7 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -56,9 +57,13 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles connectivity to Microsoft Azure services.
@@ -70,6 +75,68 @@ public class AzureMethod {
     static private final Logger logger = Azure.getLogger(AzureMethod.class);
     static private final Logger wire   = Azure.getWireLogger(AzureMethod.class);
 
+    /**
+     * Status returned by {@link #getOperationStatus(String)} for an operation that is still in progress.
+     */
+    static public final int OPERATION_IN_PROGRESS = -1;
+
+    /**
+     * Status returned by {@link #getOperationStatus(String)} when the operation cannot be found. This says nothing
+     * about whether the operation succeeded.
+     */
+    static public final int OPERATION_NOT_FOUND   = -2;
+
+    static private final int  MAX_CONNECTIONS           = 50;
+    static private final int  MAX_CONNECTIONS_PER_ROUTE = 20;
+    static private final long CONNECTION_WAIT           = 60000L;
+    static private final int  MAX_CLIENTS               = 32;
+
+    /**
+     * Clients are shared by every method instance using the same endpoint, account, certificate and proxy so that
+     * concurrent sweeps reuse pooled keep-alive connections instead of negotiating SSL for every call. At most
+     * {@link #MAX_CLIENTS} are kept, least recently used first out. An evicted client closes its idle connections
+     * straight away; requests still running on it finish normally and their connections go when it is collected.
+     */
+    static private final LinkedHashMap<String,HttpClient> clients = new LinkedHashMap<String, HttpClient>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,HttpClient> eldest) {
+            if( size() <= MAX_CLIENTS ) {
+                return false;
+            }
+            eldest.getValue().getConnectionManager().closeIdleConnections(0L, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    };
+
+    /**
+     * Identifies the credentials of a context for keying state shared between contexts, such as pooled clients. The
+     * certificate and key are reduced to a SHA-256 digest of their bytes, so two contexts only ever share that state
+     * when their credentials are identical.
+     * @param ctx the context whose credentials are identified
+     * @return a hex digest of the certificate and key of the context
+     * @throws InternalException SHA-256 is not available in this JVM
+     */
+    static public @Nonnull String getCredentialKey(@Nonnull ProviderContext ctx) throws InternalException {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+        for( byte[] value : new byte[][] { ctx.getX509Cert(), ctx.getX509Key() } ) {
+            // each value is prefixed with its length so that the boundary between them is part of the digest
+            int length = (value == null ? -1 : value.length);
+
+            digest.update(new byte[] { (byte)(length >>> 24), (byte)(length >>> 16), (byte)(length >>> 8), (byte)length });
+            if( value != null ) {
+                digest.update(value);
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
     static public class AzureResponse {
         public int httpCode;
         public Object body;
@@ -102,6 +169,8 @@ public class AzureMethod {
             wire.debug("--------------------------------------------------------> " + endpoint + account + resource);
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
             HttpClient client = getClient();
             HttpUriRequest get = new HttpGet(endpoint + account + resource);
@@ -115,7 +184,6 @@ public class AzureMethod {
                 }
                 wire.debug("");
             }
-            HttpResponse response;
             StatusLine status;
 
             try {
@@ -194,10 +262,13 @@ public class AzureMethod {
                     wire.debug("---> Binary Data <---");
                 }
                 wire.debug("");
+                // the caller now holds the connection through the stream and releases it by closing the stream
+                response = null;
                 return input;
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -225,6 +296,8 @@ public class AzureMethod {
             wire.debug("--------------------------------------------------------> " + uri.toASCIIString());
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
             HttpClient client = getClient();
             HttpUriRequest get = new HttpGet(uri);
@@ -243,7 +316,6 @@ public class AzureMethod {
                 }
                 wire.debug("");
             }
-            HttpResponse response;
             StatusLine status;
 
             try {
@@ -326,6 +398,7 @@ public class AzureMethod {
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -361,6 +434,18 @@ public class AzureMethod {
         catch( URISyntaxException e ) {
             throw new AzureConfigException(e);
         }
+        Properties p = ctx.getCustomProperties();
+        String proxyHost = (p == null ? null : p.getProperty("proxyHost"));
+        String proxyPort = (p == null ? null : p.getProperty("proxyPort"));
+        String key = endpoint + "|" + ctx.getAccountNumber() + "|" + getCredentialKey(ctx) + "|" + proxyHost + "|" + proxyPort;
+        HttpClient client;
+
+        synchronized( clients ) {
+            client = clients.get(key);
+        }
+        if( client != null ) {
+            return client;
+        }
         HttpParams params = new BasicHttpParams();
         SchemeRegistry registry = new SchemeRegistry();
 
@@ -389,26 +474,54 @@ public class AzureMethod {
         HttpProtocolParams.setUserAgent(params, "Dasein Cloud");
         params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 10000);
         params.setParameter(CoreConnectionPNames.SO_TIMEOUT, 300000);
+        // fail rather than wait forever when every pooled connection is leased
+        params.setParameter(ClientPNames.CONN_MANAGER_TIMEOUT, CONNECTION_WAIT);
 
-        Properties p = ctx.getCustomProperties();
+        if( proxyHost != null ) {
+            int port = 0;
 
-        if( p != null ) {
-            String proxyHost = p.getProperty("proxyHost");
-            String proxyPort = p.getProperty("proxyPort");
+            if( proxyPort != null && proxyPort.length() > 0 ) {
+                port = Integer.parseInt(proxyPort);
+            }
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+        }
 
-            if( proxyHost != null ) {
-                int port = 0;
+        ThreadSafeClientConnManager ccm = new ThreadSafeClientConnManager(registry);
 
-                if( proxyPort != null && proxyPort.length() > 0 ) {
-                    port = Integer.parseInt(proxyPort);
-                }
-                params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+        ccm.setMaxTotal(MAX_CONNECTIONS);
+        ccm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        client = new DefaultHttpClient(ccm, params);
+
+        HttpClient existing;
+
+        synchronized( clients ) {
+            existing = clients.get(key);
+            if( existing == null ) {
+                clients.put(key, client);
             }
         }
+        if( existing != null ) {
+            ccm.shutdown();
+            return existing;
+        }
+        return client;
+    }
 
-        ClientConnectionManager ccm = new ThreadSafeClientConnManager(registry);
-
-        return new DefaultHttpClient(ccm, params);
+    /**
+     * Consumes any unread response content so the underlying connection goes back to the shared pool. If the content
+     * cannot be read, the managed connection is aborted rather than returned to the pool.
+     * @param response the response to release, if any
+     */
+    static private void release(@Nullable HttpResponse response) {
+        if( response == null ) {
+            return;
+        }
+        try {
+            EntityUtils.consume(response.getEntity());
+        }
+        catch( IOException e ) {
+            logger.warn("Failed to release connection: " + e.getMessage());
+        }
     }
 
     public @Nonnull Document parseResponse(@Nonnull String responseBody, boolean withWireLogging) throws CloudException, InternalException {
@@ -471,6 +584,8 @@ public class AzureMethod {
             wire.debug("");
         }
         String requestId = null;
+        HttpResponse response = null;
+
         try {
             HttpClient client = getClient();
             String url = endpoint + account + resource;
@@ -510,7 +625,6 @@ public class AzureMethod {
                     throw new InternalException(e);
                 }
             }
-            HttpResponse response;
             StatusLine status;
 
             try {
@@ -528,15 +642,16 @@ public class AzureMethod {
                 logger.debug("post(): HTTP Status " + status);
             }
             Header[] headers = response.getAllHeaders();
+            Header requestIdHeader = response.getFirstHeader("x-ms-request-id");
 
+            if( requestIdHeader != null && requestIdHeader.getValue() != null ) {
+                requestId = requestIdHeader.getValue().trim();
+            }
             if( wire.isDebugEnabled() ) {
                 wire.debug(status.toString());
                 for( Header h : headers ) {
                     if( h.getValue() != null ) {
                         wire.debug(h.getName() + ": " + h.getValue().trim());
-                        if (h.getName().equalsIgnoreCase("x-ms-request-id")) {
-                            requestId = h.getValue().trim();
-                        }
                     }
                     else {
                         wire.debug(h.getName() + ":");
@@ -572,6 +687,7 @@ public class AzureMethod {
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".post()");
             }
@@ -614,6 +730,8 @@ public class AzureMethod {
             wire.debug("");
         }
         String requestId = null;
+        HttpResponse response = null;
+
         try {
             HttpClient client = getClient();
             String url = endpoint + account + resource;
@@ -665,7 +783,6 @@ public class AzureMethod {
 	            }           	
             }          
                       
-            HttpResponse response;
             StatusLine status;
 
             try {
@@ -683,15 +800,16 @@ public class AzureMethod {
                 logger.debug("post(): HTTP Status " + status);
             }
             Header[] headers = response.getAllHeaders();
+            Header requestIdHeader = response.getFirstHeader("x-ms-request-id");
 
+            if( requestIdHeader != null && requestIdHeader.getValue() != null ) {
+                requestId = requestIdHeader.getValue().trim();
+            }
             if( wire.isDebugEnabled() ) {
                 wire.debug(status.toString());
                 for( Header h : headers ) {
                     if( h.getValue() != null ) {
                         wire.debug(h.getName() + ": " + h.getValue().trim());
-                        if (h.getName().equalsIgnoreCase("x-ms-request-id")) {
-                            requestId = h.getValue().trim();
-                        }
                     }
                     else {
                         wire.debug(h.getName() + ":");
@@ -720,7 +838,7 @@ public class AzureMethod {
                 logger.debug("account number: char "+responseBody.indexOf(account));
                 String tempEndpoint = responseBody.substring(responseBody.indexOf("https://"), responseBody.indexOf(account)-responseBody.indexOf("https://"));
                 logger.debug("temp redirect location: "+tempEndpoint);
-                tempRedirectInvoke(tempEndpoint, method, account, resource, body);
+                requestId = tempRedirectInvoke(tempEndpoint, method, account, resource, body);
             }
             else if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_CREATED && status.getStatusCode() != HttpServletResponse.SC_ACCEPTED ) {
                 logger.error("post(): Expected OK for GET request, got " + status.getStatusCode());
@@ -750,6 +868,7 @@ public class AzureMethod {
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".post()");
             }
@@ -761,7 +880,7 @@ public class AzureMethod {
         return requestId;
     }
 
-    public void tempRedirectInvoke(@Nonnull String tempEndpoint, @Nonnull String method, @Nonnull String account, @Nonnull String resource, @Nonnull String body) throws CloudException, InternalException {
+    public @Nullable String tempRedirectInvoke(@Nonnull String tempEndpoint, @Nonnull String method, @Nonnull String account, @Nonnull String resource, @Nonnull String body) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("enter - " + AzureMethod.class.getName() + ".post(" + account + "," + resource + ")");
         }
@@ -769,6 +888,9 @@ public class AzureMethod {
             wire.debug("POST --------------------------------------------------------> " + endpoint + account + resource);
             wire.debug("");
         }
+        String requestId = null;
+        HttpResponse response = null;
+
         try {
             HttpClient client = getClient();
             String url = tempEndpoint + account + resource;
@@ -821,7 +943,6 @@ public class AzureMethod {
                 }
             }
 
-            HttpResponse response;
             StatusLine status;
 
             try {
@@ -839,6 +960,11 @@ public class AzureMethod {
                 logger.debug("post(): HTTP Status " + status);
             }
             Header[] headers = response.getAllHeaders();
+            Header requestIdHeader = response.getFirstHeader("x-ms-request-id");
+
+            if( requestIdHeader != null && requestIdHeader.getValue() != null ) {
+                requestId = requestIdHeader.getValue().trim();
+            }
 
             if( wire.isDebugEnabled() ) {
                 wire.debug(status.toString());
@@ -880,6 +1006,7 @@ public class AzureMethod {
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".post()");
             }
@@ -888,14 +1015,23 @@ public class AzureMethod {
                 wire.debug("POST --------------------------------------------------------> " + endpoint + account + resource);
             }
         }
+        return requestId;
     }
 
+    /**
+     * Checks the status of an asynchronous operation.
+     * @param requestID the request ID of the operation
+     * @return {@link HttpServletResponse#SC_OK} if the operation succeeded, {@link #OPERATION_IN_PROGRESS} if it is
+     * still running, or {@link #OPERATION_NOT_FOUND} if it cannot be found
+     * @throws CloudException the operation failed, or an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
     public @Nonnull int getOperationStatus(String requestID) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
         Document doc = getAsXML(ctx.getAccountNumber(),"/operations/"+requestID);
 
         if (doc == null) {
-            return -2;
+            return OPERATION_NOT_FOUND;
         }
 
         NodeList entries = doc.getElementsByTagName("Operation");
@@ -908,7 +1044,9 @@ public class AzureMethod {
 
         for (int i =0; i<s.getLength(); i++) {
             Node attribute = s.item(i);
-            System.out.println(attribute.getNodeName()+" found");
+            if( logger.isTraceEnabled() ) {
+                logger.trace(attribute.getNodeName() + " found");
+            }
             if( attribute.getNodeType() == Node.TEXT_NODE) {
                 continue;
             }
@@ -930,14 +1068,16 @@ public class AzureMethod {
             String errMsg = checkError(s, httpCode);
             throw new CloudException(errMsg);
         }
-        return -1;
+        return OPERATION_IN_PROGRESS;
     }
 
     private String checkError(NodeList s, String httpCode) throws CloudException, InternalException {
         String errMsg = httpCode+": ";
         for (int i=0; i<s.getLength(); i++) {
             Node attribute = s.item(i);
-            System.out.println(attribute.getNodeName()+" found");
+            if( logger.isTraceEnabled() ) {
+                logger.trace(attribute.getNodeName() + " found");
+            }
             if( attribute.getNodeType() == Node.TEXT_NODE) {
                 continue;
             }
@@ -0,0 +1,163 @@
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks asynchronous Azure management operations to completion without a thread per operation. An operation is a
+ * sequence of steps, each of which issues a request and returns the request ID Azure assigns to it. A small shared
+ * scheduler polls the operation status for each outstanding request and moves on to the next step once it succeeds;
+ * an operation whose status cannot be found after a few polls is failed rather than taken to have succeeded.
+ * A step rejected with a <code>ConflictError</code>, because another change to the same resource is in progress,
+ * is retried later instead of failing the operation; steps may widen what is considered retryable.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureOperationTracker {
+    static private final Logger logger = Azure.getLogger(AzureOperationTracker.class);
+
+    static private final int  MAX_THREADS    = 4;
+    static private final long POLL_INTERVAL  = 5000L;
+    static private final long RETRY_INTERVAL = 15000L;
+    static private final int  MAX_NOT_FOUND  = 3;
+
+    /**
+     * A single request in a tracked operation.
+     */
+    static public abstract class Step {
+        /**
+         * Issues the request for this step.
+         * @param method the method through which to issue the request
+         * @return the request ID to wait on, or null if the step completed synchronously
+         * @throws CloudException an error occurred with the cloud provider
+         * @throws InternalException an error occurred within the Dasein Cloud implementation
+         */
+        public abstract @Nullable String execute(@Nonnull AzureMethod method) throws CloudException, InternalException;
+
+        /**
+         * Decides whether a failed request should be tried again later. By default only conflicts with another
+         * operation in progress are retried.
+         * @param e the error returned for the request
+         * @return true to retry the step after a delay
+         */
+        public boolean isRetryable(@Nonnull CloudException e) {
+            return (e.getProviderCode() != null && e.getProviderCode().equals("ConflictError"));
+        }
+    }
+
+    static private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(MAX_THREADS, new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure operation tracker");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Starts tracking an operation. The first step is issued from the tracker, so this call returns immediately and
+     * any failure, including a failure of the first request, is reported through the returned future.
+     * @param method the method through which requests and status checks are made
+     * @param timeout the number of milliseconds after which the operation is failed
+     * @param steps the steps of the operation, executed in order
+     * @return a future that completes when the last step has succeeded
+     */
+    static public @Nonnull AzureFuture<Void> track(@Nonnull AzureMethod method, long timeout, @Nonnull Step ... steps) {
+        Operation operation = new Operation(method, System.currentTimeMillis() + timeout, steps);
+
+        scheduler.execute(operation.advance);
+        return operation;
+    }
+
+    static private class Operation extends AzureFuture<Void> {
+        private final long        deadline;
+        private final AzureMethod method;
+        private final Step[]      steps;
+
+        private int    index    = 0;
+        private int    notFound = 0;
+        private String requestId;
+
+        private final Runnable advance = new Runnable() {
+            public void run() {
+                advance();
+            }
+        };
+
+        Operation(@Nonnull AzureMethod method, long deadline, @Nonnull Step[] steps) {
+            this.method = method;
+            this.deadline = deadline;
+            this.steps = steps;
+        }
+
+        private void advance() {
+            if( isDone() ) {
+                return;
+            }
+            try {
+                if( System.currentTimeMillis() > deadline ) {
+                    fail(new CloudException("Timed out waiting for operation " + (requestId == null ? "" : requestId) + " to complete"));
+                    return;
+                }
+                if( requestId == null ) {
+                    if( index >= steps.length ) {
+                        complete(null);
+                        return;
+                    }
+                    try {
+                        requestId = steps[index].execute(method);
+                    }
+                    catch( CloudException e ) {
+                        if( steps[index].isRetryable(e) ) {
+                            if( logger.isDebugEnabled() ) {
+                                logger.debug("Retrying step " + index + " in " + RETRY_INTERVAL + "ms: " + e.getMessage());
+                            }
+                            scheduler.schedule(advance, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                        throw e;
+                    }
+                    if( requestId == null ) {
+                        index++;
+                        scheduler.execute(advance);
+                    }
+                    else {
+                        scheduler.schedule(advance, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                int status = method.getOperationStatus(requestId);
+
+                if( status == AzureMethod.OPERATION_IN_PROGRESS ) {
+                    notFound = 0;
+                    scheduler.schedule(advance, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if( status == AzureMethod.OPERATION_NOT_FOUND ) {
+                    // the outcome is unknown, which is not the same as success
+                    if( ++notFound >= MAX_NOT_FOUND ) {
+                        fail(new CloudException("Unable to find the status of operation " + requestId));
+                        return;
+                    }
+                    scheduler.schedule(advance, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                notFound = 0;
+                requestId = null;
+                index++;
+                scheduler.execute(advance);
+            }
+            catch( Throwable t ) {
+                logger.warn("Operation failed at step " + index + ": " + t.getMessage());
+                fail(t);
+            }
+        }
+    }
+}
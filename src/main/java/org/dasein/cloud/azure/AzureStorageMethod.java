@@ -17,12 +17,15 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
@@ -69,11 +72,13 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles connectivity to Microsoft Azure Storage services.
@@ -90,6 +95,15 @@ public class AzureStorageMethod {
     static public final String VERSION = "2009-09-19";
     //static public final String VERSION = "2012-02-12";
 
+    static private final int  MAX_CONNECTIONS = 50;
+    static private final long CONNECTION_WAIT = 60000L;
+
+    /**
+     * Clients are shared by every method instance using the same storage endpoint and proxy so that block transfers
+     * reuse pooled keep-alive connections. Requests are signed one by one, so no credentials are tied to a client.
+     */
+    static private final ConcurrentHashMap<String,HttpClient> clients = new ConcurrentHashMap<String, HttpClient>();
+
     private String Header_Prefix_MS = "x-ms-";
     
     public static final String  Storage_OPERATION_DELETE = "DELETE";
@@ -315,6 +329,8 @@ public class AzureStorageMethod {
             wire.debug(httpVerb + "--------------------------------------------------------> " + endpoint + getStorageAccount() + resource);
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
             HttpClient client =  getClient();
 
@@ -346,7 +362,6 @@ public class AzureStorageMethod {
 	            }           	
             }           
           
-            HttpResponse response ;
             StatusLine status;
             
             try {
@@ -433,6 +448,7 @@ public class AzureStorageMethod {
         	throw new CloudException(e);
 		}
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -454,6 +470,8 @@ public class AzureStorageMethod {
             wire.debug(strMethod + "--------------------------------------------------------> " + endpoint + getStorageAccount() + resource);
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
 
             HttpClient client =  getClient();
@@ -489,7 +507,6 @@ public class AzureStorageMethod {
 	            }            	
             }           
           
-            HttpResponse response ;
             StatusLine status;
             
             try {
@@ -524,7 +541,8 @@ public class AzureStorageMethod {
             if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
                 return null;
             }
-            if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
+            // partial content answers a ranged read
+            if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_PARTIAL_CONTENT && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
                 logger.error(strMethod + "(): Expected OK for " + strMethod + "request, got " + status.getStatusCode());
                 
                 HttpEntity entity = response.getEntity();
@@ -571,12 +589,15 @@ public class AzureStorageMethod {
                     }
                     throw new CloudException(e);
                 }
+                // the caller now holds the connection and releases it by closing the stream
+                response = null;
                 return input;
             }
         } catch (UnsupportedEncodingException e) {			
         	throw new CloudException(e);
 		}
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -595,43 +616,68 @@ public class AzureStorageMethod {
         }
         String endpoint = provider.getStorageEndpoint();
         boolean ssl = endpoint.startsWith("https");
-        int targetPort;
 
         try {
-        	
-            URI uri = new URI(endpoint);
-            targetPort = uri.getPort();
-            
-            if( targetPort < 1 ) {
-                targetPort = (ssl ? 443 : 80);
-            }
+            new URI(endpoint);
         }
         catch( URISyntaxException e ) {
             throw new AzureConfigException(e);
         }
+        Properties p = ctx.getCustomProperties();
+        String proxyHost = (p == null ? null : p.getProperty("proxyHost"));
+        String proxyPort = (p == null ? null : p.getProperty("proxyPort"));
+        String key = endpoint + "|" + proxyHost + "|" + proxyPort;
+        HttpClient client = clients.get(key);
+
+        if( client != null ) {
+            return client;
+        }
         HttpParams params = new BasicHttpParams();
-   
+
         HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-       
         HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-        
-        Properties p = ctx.getCustomProperties();
+        // fail rather than wait forever when every pooled connection is leased
+        params.setParameter(ClientPNames.CONN_MANAGER_TIMEOUT, CONNECTION_WAIT);
 
-        if( p != null ) {
-            String proxyHost = p.getProperty("proxyHost");
-            String proxyPort = p.getProperty("proxyPort");
+        if( proxyHost != null ) {
+            int port = 0;
 
-            if( proxyHost != null ) {
-                int port = 0;
-
-                if( proxyPort != null && proxyPort.length() > 0 ) {
-                    port = Integer.parseInt(proxyPort);
-                }
-                params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+            if( proxyPort != null && proxyPort.length() > 0 ) {
+                port = Integer.parseInt(proxyPort);
             }
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+        }
+        ThreadSafeClientConnManager ccm = new ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault());
+
+        // every request goes to the one storage host, so a single route may use the whole pool
+        ccm.setMaxTotal(MAX_CONNECTIONS);
+        ccm.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        client = new DefaultHttpClient(ccm, params);
+
+        HttpClient existing = clients.putIfAbsent(key, client);
+
+        if( existing != null ) {
+            ccm.shutdown();
+            return existing;
+        }
+        return client;
+    }
+
+    /**
+     * Consumes any unread response content so the underlying connection goes back to the shared pool. If the content
+     * cannot be read, the managed connection is aborted rather than returned to the pool.
+     * @param response the response to release, if any
+     */
+    static private void release(@Nullable HttpResponse response) {
+        if( response == null ) {
+            return;
+        }
+        try {
+            EntityUtils.consume(response.getEntity());
+        }
+        catch( IOException e ) {
+            logger.warn("Failed to release connection: " + e.getMessage());
         }
-        return new DefaultHttpClient (params);
-        
     }
 
 
@@ -753,6 +799,8 @@ public class AzureStorageMethod {
             wire.debug(strMethod + "--------------------------------------------------------> " + endpoint + getStorageAccount() + resource);
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
 
             HttpClient client =  getClient();
@@ -785,7 +833,6 @@ public class AzureStorageMethod {
 	            }           	
             }           
           
-            HttpResponse response ;
             StatusLine status;
             
             try {
@@ -863,6 +910,7 @@ public class AzureStorageMethod {
         	throw new CloudException(e);
 		}
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -873,6 +921,79 @@ public class AzureStorageMethod {
         } 
     }
     
+    /**
+     * Reads the properties of a blob or container with a HEAD request, so that no content or listing is transferred.
+     * @param resource the blob or container
+     * @param queries the query parameters, such as <code>restype=container</code> for a container
+     * @return the response headers keyed by lower case name, or null if the blob or container does not exist
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nullable Map<String,String> getProperties(@Nonnull String resource, @Nonnull Map<String, String> queries) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("enter - " + AzureStorageMethod.class.getName() + ".getProperties(" + getStorageAccount() + "," + resource + ")");
+        }
+        HttpResponse response = null;
+
+        try {
+            HttpClient client = getClient();
+            HttpRequestBase method = getMethod("HEAD", buildUrl(resource, queries), queries, new HashMap<String, String>(), true);
+
+            if( wire.isDebugEnabled() ) {
+                wire.debug(method.getRequestLine().toString());
+                for( Header header : method.getAllHeaders() ) {
+                    wire.debug(header.getName() + ": " + header.getValue());
+                }
+                wire.debug("");
+            }
+            StatusLine status;
+
+            try {
+                response = client.execute(method);
+                status = response.getStatusLine();
+            }
+            catch( IOException e ) {
+                logger.error("getProperties(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
+                throw new CloudException(e);
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug(status.toString());
+                for( Header h : response.getAllHeaders() ) {
+                    wire.debug(h.getName() + ": " + (h.getValue() == null ? "" : h.getValue().trim()));
+                }
+                wire.debug("");
+            }
+            if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                return null;
+            }
+            if( status.getStatusCode() != HttpServletResponse.SC_OK ) {
+                // responses to HEAD have no body to explain the error
+                Header code = response.getFirstHeader("x-ms-error-code");
+
+                logger.error("getProperties(): Expected OK for HEAD request, got " + status.getStatusCode());
+                throw new AzureException(CloudErrorType.GENERAL, status.getStatusCode(), (code == null ? status.getReasonPhrase() : code.getValue()), "Unable to read properties of " + resource);
+            }
+            HashMap<String,String> properties = new HashMap<String, String>();
+
+            for( Header h : response.getAllHeaders() ) {
+                if( h.getValue() != null ) {
+                    properties.put(h.getName().toLowerCase(Locale.ENGLISH), h.getValue().trim());
+                }
+            }
+            return properties;
+        }
+        finally {
+            release(response);
+            if( logger.isTraceEnabled() ) {
+                logger.trace("exit - " + AzureStorageMethod.class.getName() + ".getProperties()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("");
+                wire.debug("--------------------------------------------------------> " );
+            }
+        }
+    }
+
     public void invoke(@Nonnull String strMethod, @Nonnull String resource, @Nonnull Map<String, String> queries, @Nullable String body, @Nullable Map<String, String> headerMap, boolean authorization) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("enter - " + AzureStorageMethod.class.getName() + "." + strMethod + "(" + getStorageAccount() + "," + resource + ")");
@@ -883,6 +1004,8 @@ public class AzureStorageMethod {
             wire.debug(strMethod + "--------------------------------------------------------> " + endpoint + getStorageAccount() + resource);
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
             HttpClient client =  getClient();
             
@@ -914,7 +1037,6 @@ public class AzureStorageMethod {
 	            }           	
             }           
           
-            HttpResponse response ;
             StatusLine status;
             
             try {
@@ -982,6 +1104,7 @@ public class AzureStorageMethod {
         	throw new CloudException(e);
 		}
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -1004,6 +1127,8 @@ public class AzureStorageMethod {
         }
         
         long begin = System.currentTimeMillis();
+        HttpResponse response = null;
+
         try {
 
             HttpClient client =  getClient();
@@ -1040,7 +1165,6 @@ public class AzureStorageMethod {
 	            }           	
             }           
           
-            HttpResponse response ;
             StatusLine status;
             
             try {
@@ -1103,6 +1227,7 @@ public class AzureStorageMethod {
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -1115,6 +1240,38 @@ public class AzureStorageMethod {
     
   
     public void putWithBytes(@Nonnull String strMethod, @Nonnull String resource, Map<String, String> queries, byte[] body, Map<String, String> headerMap, boolean authorization) throws CloudException, InternalException {
+        putWithBytes(strMethod, resource, queries, body, 0, (body == null ? 0 : body.length), headerMap, authorization);
+    }
+
+    /**
+     * Sends part of a byte array as the request body, so that a reused buffer need not be copied to fit the content.
+     * @param strMethod the HTTP method
+     * @param resource the resource to which the request is made
+     * @param queries the query parameters
+     * @param body the buffer holding the body
+     * @param offset the offset of the body in the buffer
+     * @param length the length of the body
+     * @param headerMap the request headers
+     * @param authorization true if the request is signed
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public void putWithBytes(@Nonnull String strMethod, @Nonnull String resource, Map<String, String> queries, byte[] body, int offset, int length, Map<String, String> headerMap, boolean authorization) throws CloudException, InternalException {
+        putWithEntity(strMethod, resource, queries, (body == null ? null : new ByteArrayEntity(body, offset, length)), headerMap, authorization);
+    }
+
+    /**
+     * Sends an arbitrary entity as the request body, such as a region of a file streamed from its channel.
+     * @param strMethod the HTTP method
+     * @param resource the resource to which the request is made
+     * @param queries the query parameters
+     * @param body the body, or null for none
+     * @param headerMap the request headers
+     * @param authorization true if the request is signed
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public void putWithEntity(@Nonnull String strMethod, @Nonnull String resource, Map<String, String> queries, @Nullable HttpEntity body, Map<String, String> headerMap, boolean authorization) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("enter - " + AzureStorageMethod.class.getName() + "." + strMethod + "(" + getStorageAccount() + "," + resource + ")");
         }
@@ -1124,16 +1281,11 @@ public class AzureStorageMethod {
             wire.debug(strMethod + "--------------------------------------------------------> " + endpoint + getStorageAccount() + resource);
             wire.debug("");
         }
+        HttpResponse response = null;
+
         try {
 
             HttpClient client =  getClient();
-            
-            String contentLength = null;
-            if(body != null){        	
-            	contentLength = String.valueOf(body.length);            	
-            }else{
-            	contentLength = "0";        	
-            }
 
             HttpRequestBase method = getMethod(strMethod, buildUrl(resource, queries), queries, headerMap, authorization );
      	
@@ -1144,7 +1296,7 @@ public class AzureStorageMethod {
                 }
                 wire.debug("");
                 if( body != null ) {
-                    wire.debug(body);
+                    wire.debug("<<" + body.getContentLength() + " BYTES>>");
                     wire.debug("");
                 }
             }
@@ -1155,11 +1307,10 @@ public class AzureStorageMethod {
             	HttpEntityEnclosingRequestBase entityEnclosingMethod = (HttpEntityEnclosingRequestBase) method;
             	
 	            if (body != null) {
-					entityEnclosingMethod.setEntity(new ByteArrayEntity(body));
+					entityEnclosingMethod.setEntity(body);
 	            }           	
             }           
           
-            HttpResponse response ;
             StatusLine status;
             
             try {
@@ -1220,6 +1371,7 @@ public class AzureStorageMethod {
             }
         }
         finally {
+            release(response);
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + AzureMethod.class.getName() + ".getStream()");
             }
@@ -21,6 +21,7 @@ import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureInventorySnapshot;
 import org.dasein.cloud.azure.AzureMethod;
 import org.dasein.cloud.azure.compute.vm.AzureVM;
 import org.dasein.cloud.compute.AbstractVolumeSupport;
@@ -48,6 +49,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -429,17 +431,33 @@ public class AzureDisk implements VolumeSupport {
 
     @Override
     public @Nonnull Iterable<Volume> listVolumes() throws InternalException, CloudException {
-        //To change body of implemented methods use File | Settings | File Templates.
+        AzureInventorySnapshot snapshot = AzureInventorySnapshot.getInstance(provider);
+
+        if( snapshot == null ) {
+            return listVolumes(new AzureMethod(provider));
+        }
+        return snapshot.list("volumes", provider, new AzureInventorySnapshot.Sweep<Volume>() {
+            public @Nonnull List<Volume> list(@Nonnull AzureMethod method) throws CloudException, InternalException {
+                return listVolumes(method);
+            }
+
+            public void markStale(@Nonnull Volume volume, long timestamp) {
+                volume.setTag(AzureInventorySnapshot.STALE_TAG, String.valueOf(timestamp));
+            }
+        });
+    }
+
+    private @Nonnull List<Volume> listVolumes(@Nonnull AzureMethod method) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
-        AzureMethod method = new AzureMethod(provider);
-
         Document doc = method.getAsXML(ctx.getAccountNumber(), DISK_SERVICES);
-        
-        
+
+        if( doc == null ) {
+            return Collections.emptyList();
+        }
         NodeList entries = doc.getElementsByTagName("Disk");
         ArrayList<Volume> disks = new ArrayList<Volume>();
 
@@ -13,6 +13,8 @@ import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureInventorySnapshot;
+import org.dasein.cloud.azure.AzureMetadataCache;
 import org.dasein.cloud.azure.AzureMethod;
 import org.dasein.cloud.azure.AzureService;
 import org.dasein.cloud.azure.compute.vm.AzureVM;
@@ -46,7 +48,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Implements support for Azure OS images through the Dasein Cloud machine image API.
@@ -58,6 +62,8 @@ public class AzureOSImage implements MachineImageSupport {
     static private final Logger logger = Azure.getLogger(AzureOSImage.class);
 
     static private final String IMAGES = "/services/images";
+
+    static private final long CACHE_TTL = 5L * 60000L;
     static private final String MICROSOFT = "--microsoft--";
 
     private Azure provider;
@@ -129,6 +135,7 @@ public class AzureOSImage implements MachineImageSupport {
                 xml.append("</CaptureRoleOperation>\n");
 
                 method.post(ctx.getAccountNumber(), resourceDir, xml.toString());
+                AzureMetadataCache.invalidate(ctx.getAccountNumber(), null, AzureMetadataCache.IMAGES);
 
                 MachineImage img = getMachineImage(name);;
 
@@ -254,7 +261,7 @@ public class AzureOSImage implements MachineImageSupport {
 
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), IMAGES);
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.IMAGES, IMAGES, CACHE_TTL);
 
         if( doc == null ) {
             throw new CloudException(CloudErrorType.AUTHENTICATION, HttpServletResponse.SC_FORBIDDEN, "Illegal Access", "Illegal access to requested resource");
@@ -315,7 +322,7 @@ public class AzureOSImage implements MachineImageSupport {
         ArrayList<MachineImage> images = new ArrayList<MachineImage>();
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), IMAGES);
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.IMAGES, IMAGES, CACHE_TTL);
 
         if( doc == null ) {
             throw new CloudException(CloudErrorType.AUTHENTICATION, HttpServletResponse.SC_FORBIDDEN, "Illegal Access", "Illegal access to requested resource");
@@ -391,6 +398,30 @@ public class AzureOSImage implements MachineImageSupport {
 
     @Override
     public @Nonnull ArrayList<MachineImage> listMachineImages() throws CloudException, InternalException {
+        AzureInventorySnapshot snapshot = AzureInventorySnapshot.getInstance(provider);
+
+        if( snapshot == null ) {
+            return listMachineImages(new AzureMethod(provider));
+        }
+        return new ArrayList<MachineImage>(snapshot.list("images", provider, new AzureInventorySnapshot.Sweep<MachineImage>() {
+            public @Nonnull List<MachineImage> list(@Nonnull AzureMethod method) throws CloudException, InternalException {
+                return listMachineImages(method);
+            }
+
+            public void markStale(@Nonnull MachineImage image, long timestamp) {
+                Map<String,String> tags = image.getTags();
+                HashMap<String,String> stale = new HashMap<String, String>();
+
+                if( tags != null ) {
+                    stale.putAll(tags);
+                }
+                stale.put(AzureInventorySnapshot.STALE_TAG, String.valueOf(timestamp));
+                image.setTags(stale);
+            }
+        }));
+    }
+
+    private @Nonnull ArrayList<MachineImage> listMachineImages(@Nonnull AzureMethod method) throws CloudException, InternalException {
         final ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
@@ -398,7 +429,6 @@ public class AzureOSImage implements MachineImageSupport {
         }
 
         ArrayList<MachineImage> list = new ArrayList<MachineImage>();
-        AzureMethod method = new AzureMethod(provider);
 
         Document doc = method.getAsXML(ctx.getAccountNumber(), IMAGES);
 
@@ -486,7 +516,7 @@ public class AzureOSImage implements MachineImageSupport {
     private void populateImages(@Nonnull ProviderContext ctx, @Nonnull Jiterator<MachineImage> iterator, @Nullable String ... accounts) throws CloudException, InternalException {
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), IMAGES);
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.IMAGES, IMAGES, CACHE_TTL);
 
         if( doc == null ) {
             throw new CloudException(CloudErrorType.AUTHENTICATION, HttpServletResponse.SC_FORBIDDEN, "Illegal Access", "Illegal access to requested resource");
@@ -535,6 +565,7 @@ public class AzureOSImage implements MachineImageSupport {
 
             //dmayne 20130425: delete image blob too
             method.invoke("DELETE",ctx.getAccountNumber(), IMAGES + "/" + machineImageId+"?comp=media", null);
+            AzureMetadataCache.invalidate(ctx.getAccountNumber(), null, AzureMetadataCache.IMAGES);
         }
         finally {
             if( logger.isTraceEnabled() ) {
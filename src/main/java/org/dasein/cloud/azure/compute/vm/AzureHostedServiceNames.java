@@ -0,0 +1,149 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureMetadataCache;
+import org.dasein.cloud.azure.AzureMethod;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Allocates unique hosted service names for new virtual machines. Candidates are checked against an index of the
+ * hosted services in the subscription, read with a single listing and shared through the {@link AzureMetadataCache},
+ * and against the names already handed out in this JVM. Only a candidate that passes both is checked with the
+ * hosted service availability endpoint, which also catches names taken in other subscriptions. Names are reserved
+ * in-process when handed out, so concurrent launches never pick the same name.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureHostedServiceNames {
+    static private final Logger logger = Azure.getLogger(AzureHostedServiceNames.class);
+
+    static private final String INDEX            = "hostedServiceNames";
+    static private final long   INDEX_TTL        = 60000L;
+    static private final long   RESERVATION_TIME = 10L * 60000L;
+
+    /**
+     * Names handed out, mapped to the time they were handed out. Hosted service names are global to Azure, so these
+     * are shared by all subscriptions. A reservation outlives the index refresh that would pick up the hosted service
+     * created under the name.
+     */
+    static private final ConcurrentHashMap<String,Long> reservations = new ConcurrentHashMap<String, Long>();
+
+    private Azure provider;
+
+    AzureHostedServiceNames(@Nonnull Azure provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Allocates and reserves a hosted service name based on the specified name, adding a numeric suffix if needed.
+     * @param name the preferred name
+     * @return the allocated name
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull String allocate(@Nonnull String name) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        String accountNumber = ctx.getAccountNumber();
+        AzureMethod method = new AzureMethod(provider);
+        Set<String> index = getIndex(method, accountNumber);
+        String base = name.toLowerCase(Locale.ENGLISH).replaceAll(" ", "");
+        String id = base;
+        int i = 0;
+
+        expire();
+        while( true ) {
+            if( !index.contains(id) && reservations.putIfAbsent(id, System.currentTimeMillis()) == null ) {
+                if( isAvailable(method, accountNumber, id) ) {
+                    return id;
+                }
+                // leave it reserved so no one else tries it again before it expires
+            }
+            i++;
+            id = base + "-" + i;
+        }
+    }
+
+    /**
+     * Releases a name that was allocated but never used to create a hosted service.
+     * @param name the name to release
+     */
+    void release(@Nonnull String name) {
+        reservations.remove(name);
+    }
+
+    private @Nonnull Set<String> getIndex(@Nonnull final AzureMethod method, @Nonnull final String accountNumber) throws CloudException, InternalException {
+        Set<String> index = AzureMetadataCache.get(accountNumber, null, INDEX, INDEX_TTL, new AzureMetadataCache.Loader<Set<String>>() {
+            public @Nonnull Set<String> load() throws CloudException, InternalException {
+                Document doc = method.getAsXML(accountNumber, AzureVM.HOSTED_SERVICES);
+                HashSet<String> names = new HashSet<String>();
+
+                if( doc != null ) {
+                    NodeList entries = doc.getElementsByTagName("ServiceName");
+
+                    for( int i=0; i<entries.getLength(); i++ ) {
+                        Node entry = entries.item(i);
+
+                        if( entry.hasChildNodes() ) {
+                            names.add(entry.getFirstChild().getNodeValue().trim().toLowerCase(Locale.ENGLISH));
+                        }
+                    }
+                }
+                return Collections.unmodifiableSet(names);
+            }
+        });
+
+        return (index == null ? Collections.<String>emptySet() : index);
+    }
+
+    private boolean isAvailable(@Nonnull AzureMethod method, @Nonnull String accountNumber, @Nonnull String name) {
+        try {
+            Document doc = method.getAsXML(accountNumber, AzureVM.HOSTED_SERVICES + "/operations/isavailable/" + name);
+
+            if( doc == null ) {
+                return true;
+            }
+            NodeList results = doc.getElementsByTagName("Result");
+
+            if( results.getLength() > 0 && results.item(0).hasChildNodes() ) {
+                return Boolean.valueOf(results.item(0).getFirstChild().getNodeValue().trim());
+            }
+            return true;
+        }
+        catch( Exception e ) {
+            // the listing has already ruled out names in this subscription
+            logger.warn("Unable to check availability of " + name + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - RESERVATION_TIME;
+        Iterator<Map.Entry<String,Long>> it = reservations.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().getValue() < cutoff ) {
+                it.remove();
+            }
+        }
+    }
+}
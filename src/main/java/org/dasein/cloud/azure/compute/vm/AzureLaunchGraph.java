@@ -0,0 +1,136 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the steps of a single launch as a small dependency graph. Each step starts as soon as the steps it depends on
+ * have completed, so independent lookups overlap and the launch takes as long as its longest chain of dependent steps
+ * rather than the sum of all of them. A failed step fails every step that depends on it. The time each step spent
+ * working, excluding time spent waiting on its dependencies, is logged at debug level.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureLaunchGraph {
+    static private final Logger logger = Azure.getLogger(AzureLaunchGraph.class);
+
+    static private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure VM launch step");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String               label;
+    private final long                 start   = System.currentTimeMillis();
+    private final ArrayList<Future<?>> steps   = new ArrayList<Future<?>>();
+    private final StringBuffer         timings = new StringBuffer();
+
+    AzureLaunchGraph(@Nonnull String label) {
+        this.label = label;
+    }
+
+    /**
+     * Adds a step to the graph and starts it once its dependencies have completed.
+     * @param name the name of the step, used in the timing log
+     * @param work the work of the step
+     * @param dependencies the steps that must complete successfully before this one starts
+     * @param <T> the type of result of the step
+     * @return the future result of the step
+     */
+    synchronized @Nonnull <T> Future<T> add(@Nonnull final String name, @Nonnull final Callable<T> work, @Nonnull final Future<?> ... dependencies) {
+        Future<T> step = executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                for( Future<?> dependency : dependencies ) {
+                    try {
+                        dependency.get();
+                    }
+                    catch( ExecutionException e ) {
+                        Throwable cause = e.getCause();
+
+                        if( cause instanceof Exception ) {
+                            throw (Exception)cause;
+                        }
+                        throw e;
+                    }
+                }
+                long t = System.currentTimeMillis();
+
+                try {
+                    return work.call();
+                }
+                finally {
+                    timings.append(timings.length() > 0 ? ", " : "").append(name).append(" ").append(System.currentTimeMillis() - t).append("ms");
+                }
+            }
+        });
+
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Waits for a step to complete. If it failed, every step still running is cancelled.
+     * @param step the step to wait on
+     * @param <T> the type of result of the step
+     * @return the result of the step
+     * @throws CloudException the step failed with an error from the cloud provider
+     * @throws InternalException the step failed within the Dasein Cloud implementation
+     */
+    <T> T get(@Nonnull Future<T> step) throws CloudException, InternalException {
+        try {
+            return step.get();
+        }
+        catch( InterruptedException e ) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            cancel();
+
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+        finally {
+            if( logger.isDebugEnabled() && isDone() ) {
+                logger.debug("Launch of " + label + " took " + (System.currentTimeMillis() - start) + "ms: " + timings);
+            }
+        }
+    }
+
+    private synchronized void cancel() {
+        for( Future<?> step : steps ) {
+            step.cancel(true);
+        }
+    }
+
+    private synchronized boolean isDone() {
+        for( Future<?> step : steps ) {
+            if( !step.isDone() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -11,7 +11,10 @@ import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureFuture;
+import org.dasein.cloud.azure.AzureInventorySnapshot;
 import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.azure.AzureOperationTracker;
 import org.dasein.cloud.azure.AzureService;
 import org.dasein.cloud.azure.compute.image.AzureMachineImage;
 import org.dasein.cloud.compute.AbstractVMSupport;
@@ -51,9 +54,26 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements virtual machine support for Microsoft Azure.
@@ -68,6 +88,68 @@ public class AzureVM implements VirtualMachineSupport {
 
     static public final String HOSTED_SERVICES = "/services/hostedservices";
 
+    /**
+     * Launch meta-data naming an existing hosted service. When present, the virtual machine is added as a new role
+     * to a deployment in that service instead of getting a hosted service and deployment of its own.
+     */
+    static public final String META_SERVICE_NAME    = "serviceName";
+    /**
+     * Launch meta-data naming the deployment to which a role is added; defaults to the hosted service name.
+     */
+    static public final String META_DEPLOYMENT_NAME = "deploymentName";
+
+    static private final int  MAX_LAUNCH_THREADS = 20;
+    static private final long IDLE_TIME          = 60000L;
+
+    /**
+     * Finishes launches whose deployment is done: fetches the new virtual machine and starts it if it came up stopped.
+     * This is only a couple of short requests per launch, so {@link #MAX_LAUNCH_THREADS} threads are shared by every
+     * batch; nothing waits on Azure while holding one of them. Idle threads exit.
+     */
+    static private final ThreadPoolExecutor launchFinisher = new ThreadPoolExecutor(MAX_LAUNCH_THREADS, MAX_LAUNCH_THREADS, IDLE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure VM launch finisher");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        launchFinisher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Error codes with which the deletion of a disk is refused while the role that used it still holds a lease on it.
+     */
+    static private final String[] DISK_LEASE_CODES = { "LeaseIdMissing", "LeaseAlreadyPresent", "LeaseIdMismatchWithBlobOperation" };
+
+    static private final ConcurrentHashMap<String,ReentrantLock> deploymentLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    /**
+     * Azure rejects a change to a deployment while another change to it is in progress. Changes made from this
+     * JVM take this lock and keep it until Azure has finished with the change.
+     * @param account the subscription
+     * @param serviceName the hosted service
+     * @param deploymentName the deployment
+     * @return the lock for the deployment
+     */
+    static @Nonnull ReentrantLock getDeploymentLock(@Nonnull String account, @Nonnull String serviceName, @Nonnull String deploymentName) {
+        String key = account + ":" + serviceName + ":" + deploymentName;
+        ReentrantLock lock = deploymentLocks.get(key);
+
+        if( lock == null ) {
+            lock = new ReentrantLock();
+
+            ReentrantLock existing = deploymentLocks.putIfAbsent(key, lock);
+
+            if( existing != null ) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
     private Azure provider;
 
     public AzureVM(Azure provider) {
@@ -155,67 +237,213 @@ public class AzureVM implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new AzureConfigException("No context was set for this request");
         }
-        String[] parts = vmId.split(":");
-        String serviceName, deploymentName, roleName;
+        String[] parts = parseVmId(vmId);
+        ReentrantLock lock = getDeploymentLock(ctx.getAccountNumber(), parts[0], parts[1]);
 
-        if (parts.length == 3)    {
-            serviceName = parts[0];
-            deploymentName = parts[1];
-            roleName= parts[2];
+        lock.lock();
+        try {
+            AzureMethod method = new AzureMethod(provider);
+            String requestId = resizeRole(method, ctx, parts, options.getProviderProductId());
+
+            // the deployment stays locked until Azure has finished the change, so nothing else on it can conflict
+            if( requestId != null ) {
+                waitForResize(method, vmId, requestId, System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L));
+            }
         }
-        else if( parts.length == 2 ) {
-            serviceName = parts[0];
-            deploymentName = parts[1];
-            roleName = serviceName;
+        finally {
+            lock.unlock();
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT: " + AzureVM.class.getName() + ".alterVM()");
+            }
         }
-        else {
-            serviceName = vmId;
-            deploymentName = vmId;
-            roleName = vmId;
+        return getVirtualMachine(vmId);
+    }
 
+    /**
+     * Changes the size of many virtual machines. Virtual machines are grouped by deployment. Up to
+     * <code>concurrency</code> deployments are changed in parallel, but within a deployment the changes are made
+     * one at a time while holding the deployment lock, each waiting on its operation status before the next is
+     * issued, so they never conflict with each other.
+     * @param vmIds the virtual machines to change
+     * @param options the new size
+     * @param concurrency the maximum number of deployments being changed at the same time
+     * @return a future for each virtual machine, keyed by virtual machine ID; a failed change only fails its own future
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Map<String,Future<Void>> alterMany(@Nonnull Collection<String> vmIds, @Nonnull VMScalingOptions options, @Nonnegative int concurrency) throws CloudException, InternalException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was set for this request");
         }
-        String resourceDir = HOSTED_SERVICES + "/" + serviceName + "/deployments/" +  deploymentName + "/roleInstances/" + roleName;
+        final String productId = options.getProviderProductId();
 
-        try{
-            AzureMethod method = new AzureMethod(provider);
+        if( productId == null ) {
+            throw new AzureConfigException("No product id set for this operation");
+        }
+        HashMap<String,Future<Void>> outcomes = new HashMap<String, Future<Void>>();
+        LinkedHashMap<String,Map<String,AzureFuture<Void>>> deployments = new LinkedHashMap<String, Map<String,AzureFuture<Void>>>();
 
-            Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
-            String xml = null;
+        for( String vmId : vmIds ) {
+            String[] parts = parseVmId(vmId);
+            String key = parts[0] + ":" + parts[1];
+            Map<String,AzureFuture<Void>> vms = deployments.get(key);
 
-            NodeList entries = doc.getElementsByTagName("RoleSize");
+            if( vms == null ) {
+                vms = new LinkedHashMap<String, AzureFuture<Void>>();
+                deployments.put(key, vms);
+            }
+            AzureFuture<Void> outcome = new AzureFuture<Void>();
 
-            Node vn = entries.item(0);
-            String vnName = vn.getNodeName();
+            vms.put(vmId, outcome);
+            outcomes.put(vmId, outcome);
+        }
+        if( deployments.isEmpty() ) {
+            return outcomes;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, deployments.size())), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Azure VM alter");
 
-            if( vnName.equalsIgnoreCase("RoleSize") && vn.hasChildNodes() ) {
-                vn.setNodeValue(options.getProviderProductId());
+                t.setDaemon(true);
+                return t;
             }
+        });
 
-            String output="";
-            try{
-                TransformerFactory tf = TransformerFactory.newInstance();
-                Transformer transformer = tf.newTransformer();
-                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-                StringWriter writer = new StringWriter();
-                transformer.transform(new DOMSource(doc), new StreamResult(writer));
-                output = writer.getBuffer().toString().replaceAll("\n|\r", "");
-            }
-            catch (Exception e){
-                System.err.println(e);
+        try {
+            for( final Map<String,AzureFuture<Void>> vms : deployments.values() ) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        alterDeployment(ctx, vms, productId);
+                    }
+                });
             }
-            xml = output;
+        }
+        finally {
+            executor.shutdown();
+        }
+        return outcomes;
+    }
 
-            logger.debug(xml);
-            logger.debug("___________________________________________________");
-            method.invoke("PUT", ctx.getAccountNumber(), resourceDir, xml.toString());
+    private void alterDeployment(@Nonnull ProviderContext ctx, @Nonnull Map<String,AzureFuture<Void>> vms, @Nonnull String productId) {
+        String[] deployment = parseVmId(vms.keySet().iterator().next());
+        ReentrantLock lock = getDeploymentLock(ctx.getAccountNumber(), deployment[0], deployment[1]);
+
+        lock.lock();
+        try {
+            AzureMethod method = new AzureMethod(provider);
 
-            return getVirtualMachine(vmId);
+            for( Map.Entry<String,AzureFuture<Void>> vm : vms.entrySet() ) {
+                if( Thread.currentThread().isInterrupted() ) {
+                    vm.getValue().fail(new InternalException("Interrupted before " + vm.getKey() + " was altered"));
+                    continue;
+                }
+                try {
+                    long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+                    String requestId;
 
-        }finally {
-            if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT: " + AzureVM.class.getName() + ".alterVM()");
+                    while( true ) {
+                        try {
+                            requestId = resizeRole(method, ctx, parseVmId(vm.getKey()), productId);
+                            break;
+                        }
+                        catch( CloudException e ) {
+                            if( e.getProviderCode() != null && e.getProviderCode().equals("ConflictError") && timeout > System.currentTimeMillis() ) {
+                                logger.warn("Conflict error altering " + vm.getKey() + ", retrying in 15 seconds");
+                                try { Thread.sleep(15000L); }
+                                catch( InterruptedException interrupted ) {
+                                    // keep the flag so the rest of the deployment is failed rather than altered
+                                    Thread.currentThread().interrupt();
+                                    throw new InternalException(interrupted);
+                                }
+                                continue;
+                            }
+                            throw e;
+                        }
+                    }
+                    if( requestId != null ) {
+                        waitForResize(method, vm.getKey(), requestId, timeout);
+                    }
+                    vm.getValue().complete(null);
+                }
+                catch( Throwable t ) {
+                    logger.error("Failed to alter " + vm.getKey() + ": " + t.getMessage());
+                    vm.getValue().fail(t);
+                }
+            }
+        }
+        catch( Throwable t ) {
+            for( AzureFuture<Void> outcome : vms.values() ) {
+                outcome.fail(t);
             }
         }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a role size change to finish. Anything short of success is an error, including an operation that
+     * Azure no longer knows about.
+     * @param method the method through which the change was made
+     * @param vmId the virtual machine being changed
+     * @param requestId the request ID of the change
+     * @param timeout the time by which the change must be done
+     * @throws CloudException the change failed, could not be found or did not finish in time
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private void waitForResize(@Nonnull AzureMethod method, @Nonnull String vmId, @Nonnull String requestId, long timeout) throws CloudException, InternalException {
+        int httpCode = waitForOperation(method, requestId, timeout);
+
+        if( httpCode == AzureMethod.OPERATION_IN_PROGRESS ) {
+            throw new CloudException("Timed out waiting for " + vmId + " to be altered");
+        }
+        if( httpCode != HttpServletResponse.SC_OK ) {
+            throw new CloudException("Unable to confirm that " + vmId + " was altered, operation " + requestId + " was not found");
+        }
+    }
+
+    /**
+     * Sets the role size of a virtual machine. The caller must hold the deployment lock.
+     * @param method the method through which to make the change
+     * @param ctx the context of the request
+     * @param parts the service, deployment and role name of the virtual machine
+     * @param productId the new role size
+     * @return the request ID of the change, if Azure returned one
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private @Nullable String resizeRole(@Nonnull AzureMethod method, @Nonnull ProviderContext ctx, @Nonnull String[] parts, @Nonnull String productId) throws CloudException, InternalException {
+        String resourceDir = HOSTED_SERVICES + "/" + parts[0] + "/deployments/" +  parts[1] + "/roleInstances/" + parts[2];
+        Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
+
+        if( doc == null ) {
+            throw new CloudException("No such virtual machine: " + parts[0] + ":" + parts[1] + ":" + parts[2]);
+        }
+        NodeList entries = doc.getElementsByTagName("RoleSize");
+        Node vn = entries.item(0);
+
+        if( vn != null && vn.hasChildNodes() ) {
+            vn.getFirstChild().setNodeValue(productId);
+        }
+        String xml;
+
+        try {
+            TransformerFactory tf = TransformerFactory.newInstance();
+            Transformer transformer = tf.newTransformer();
+            StringWriter writer = new StringWriter();
+
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.transform(new DOMSource(doc), new StreamResult(writer));
+            xml = writer.getBuffer().toString().replaceAll("\n|\r", "");
+        }
+        catch( Exception e ) {
+            throw new InternalException(e);
+        }
+        logger.debug(xml);
+        logger.debug("___________________________________________________");
+        return method.invoke("PUT", ctx.getAccountNumber(), resourceDir, xml);
     }
 
     @Override
@@ -305,10 +533,15 @@ public class AzureVM implements VirtualMachineSupport {
 
         ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
         for (int i = 0; i < entries.getLength(); i++) {
-            parseDeployment(ctx, ctx.getRegionId(), sName+":"+deploymentName, entries.item(i), list);
+            parseDeployment(ctx, method, ctx.getRegionId(), sName+":"+deploymentName, entries.item(i), list);
         }
-        if (list != null && list.size() > 0) {
-            return list.get(0);
+        // a deployment may hold several roles, so pick the one that was asked for
+        String id = sName + ":" + deploymentName + ":" + roleName;
+
+        for( VirtualMachine vm : list ) {
+            if( id.equals(vm.getProviderVirtualMachineId()) ) {
+                return vm;
+            }
         }
         return null;
     }
@@ -399,306 +632,711 @@ public class AzureVM implements VirtualMachineSupport {
             logger.trace("ENTER: " + AzureVM.class.getName() + ".launch(" + options + ")");
         }
         try {
-            logger.debug("----------------------------------------------------------");
-            logger.debug("launching vm "+options.getHostName()+" with machine image id: "+options.getMachineImageId());
-            AzureMachineImage image = (AzureMachineImage)provider.getComputeServices().getImageSupport().getImage(options.getMachineImageId());
+            if( options.getMetaData().get(META_SERVICE_NAME) == null ) {
+                VirtualMachine vm = AzureVMWarmPool.take(provider, options);
 
-            if( image == null ) {
-                throw new CloudException("No such image: " + options.getMachineImageId());
+                if( vm != null ) {
+                    return vm;
+                }
             }
-            logger.debug("----------------------------------------------------------");
-
-            ProviderContext ctx = provider.getContext();
-
-            if( ctx == null ) {
-                throw new AzureConfigException("No context was specified for this request");
+            return launchDirect(options);
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT: " + AzureVM.class.getName() + ".launch()");
             }
-            String label;
+        }
+    }
 
-            try {
-                label = new String(Base64.encodeBase64(options.getFriendlyName().getBytes("utf-8")));
-            }
-            catch( UnsupportedEncodingException e ) {
-                throw new InternalException(e);
-            }
-            AzureMethod method = new AzureMethod(provider);
-            StringBuilder xml = new StringBuilder();
-            String hostName = toUniqueId(options.getHostName());
-            String deploymentSlot = (String)options.getMetaData().get("environment");
+    /**
+     * Launches a virtual machine without drawing on any {@link AzureVMWarmPool}.
+     * @param options the launch options
+     * @return the new virtual machine
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull VirtualMachine launchDirect(@Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        LaunchInputs inputs = new LaunchInputs();
+        String serviceName = (String)options.getMetaData().get(META_SERVICE_NAME);
+
+        if( serviceName != null ) {
+            return awaitLaunch(addRole(options, inputs, serviceName));
+        }
+        return awaitLaunch(provisionConcurrently(options, inputs));
+    }
 
-            if( deploymentSlot == null ) {
-                deploymentSlot = "Production";
-            }
-            else if( !deploymentSlot.equalsIgnoreCase("Production") && !deploymentSlot.equalsIgnoreCase("Staging") ) {
-                deploymentSlot = "Production";
-            }
-            xml.append("<CreateHostedService xmlns=\"http://schemas.microsoft.com/windowsazure\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
-            xml.append("<ServiceName>").append(hostName).append("</ServiceName>");
-            xml.append("<Label>").append(label).append("</Label>");
-            xml.append("<Description>").append(options.getDescription()).append("</Description>");
-            xml.append("<AffinityGroup>").append(provider.getAffinityGroup()).append("</AffinityGroup>");
-            xml.append("</CreateHostedService>");
-            method.post(ctx.getAccountNumber(), HOSTED_SERVICES, xml.toString());
+    /**
+     * Launches a batch of virtual machines. The image, affinity group, storage endpoint and network of the batch
+     * are each resolved once and host names are allocated up front. Creation of the hosted services and deployments
+     * is then pipelined over <code>concurrency</code> threads. A thread is only held while its virtual machine is being
+     * provisioned; waiting for the virtual machine to come up is left to {@link AzureOperationTracker} or the shared
+     * state waiter, so a large batch never has a thread per virtual machine blocked on Azure.
+     * @param options the launch options for each virtual machine
+     * @param concurrency the maximum number of virtual machines being provisioned at the same time
+     * @return one future per launch option, in the same order; a failed launch only fails its own future
+     * @throws CloudException an error occurred resolving the inputs shared by the whole batch
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull List<Future<VirtualMachine>> launchMany(@Nonnull List<VMLaunchOptions> options, @Nonnegative int concurrency) throws CloudException, InternalException {
+        ArrayList<Future<VirtualMachine>> results = new ArrayList<Future<VirtualMachine>>();
+
+        if( options.isEmpty() ) {
+            return results;
+        }
+        final LaunchInputs inputs = new LaunchInputs();
 
-            xml = new StringBuilder();
-            xml.append("<Deployment xmlns=\"http://schemas.microsoft.com/windowsazure\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
-            xml.append("<Name>").append(hostName).append("</Name>");
-            xml.append("<DeploymentSlot>").append(deploymentSlot).append("</DeploymentSlot>");
-            xml.append("<Label>").append(label).append("</Label>");
-            xml.append("<RoleList>");
-            xml.append("<Role>");
-            xml.append("<RoleName>").append(hostName).append("</RoleName>");
-            xml.append("<RoleType>PersistentVMRole</RoleType>");
-            xml.append("<ConfigurationSets>");
-
-            String password = (options.getBootstrapPassword() == null ? provider.generateToken(8, 15) : options.getBootstrapPassword());
-            System.out.println("VM password "+password);
-
-            if( image.getPlatform().isWindows() ) {
-                xml.append("<ConfigurationSet>");
-                xml.append("<ConfigurationSetType>WindowsProvisioningConfiguration</ConfigurationSetType>");
-                xml.append("<ComputerName>").append(hostName).append("</ComputerName>");
-                xml.append("<AdminPassword>").append(password).append("</AdminPassword>");
-                xml.append("<EnableAutomaticUpdate>true</EnableAutomaticUpdate>");
-                xml.append("<TimeZone>UTC</TimeZone>");
-                xml.append("</ConfigurationSet>");
-            }
-            else {
-                xml.append("<ConfigurationSet>");
-                xml.append("<ConfigurationSetType>LinuxProvisioningConfiguration</ConfigurationSetType>");
-                xml.append("<HostName>").append(hostName).append("</HostName>");
+        inputs.getAffinityGroup();
+        inputs.getStorageEndpoint();
 
-                //dmayne using root causes vm to fail provisioning
-                xml.append("<UserName>dasein</UserName>");
-                xml.append("<UserPassword>").append(password).append("</UserPassword>");
-                xml.append("<DisableSshPasswordAuthentication>false</DisableSshPasswordAuthentication>");
-                xml.append("</ConfigurationSet>");
-            }
-            xml.append("<ConfigurationSet>");
-            xml.append("<ConfigurationSetType>NetworkConfiguration</ConfigurationSetType>") ;
-            xml.append("<InputEndpoints><InputEndpoint>");
-            if( image.getPlatform().isWindows() ) {
-                xml.append("<LocalPort>3389</LocalPort>");
-                xml.append("<Name>RemoteDesktop</Name>");
-                xml.append("<Port>58622</Port>");
-            }
-            else {
-                xml.append("<LocalPort>22</LocalPort>");
-                xml.append("<Name>SSH</Name>");
-                xml.append("<Port>22</Port>");
-            }
-            xml.append("<Protocol>TCP</Protocol>");
-            xml.append("</InputEndpoint></InputEndpoints>");
-            //dmayne assuming this is a subnet
-            Subnet subnet = null;
-            String vlanName = null;
-            if (options.getVlanId() != null) {
-                subnet = provider.getNetworkServices().getVlanSupport().getSubnet(options.getVlanId());
-                xml.append("<SubnetNames>");
-                xml.append("<SubnetName>").append(subnet.getName()).append("</SubnetName>");
-                xml.append("</SubnetNames>");
-
-                //dmayne needed for virtual network name later
-                vlanName = provider.getNetworkServices().getVlanSupport().getVlan(subnet.getProviderVlanId()).getName();
-            }
-            xml.append("</ConfigurationSet>");
-            xml.append("</ConfigurationSets>");
-            xml.append("<DataVirtualHardDisks/>");
-            xml.append("<OSVirtualHardDisk>");
-            xml.append("<HostCaching>ReadWrite</HostCaching>");
-            xml.append("<DiskLabel>OS</DiskLabel>");
-            xml.append("<MediaLink>").append(provider.getStorageEndpoint()).append("vhds/").append(hostName).append(".vhd</MediaLink>");
-            xml.append("<SourceImageName>").append(options.getMachineImageId()).append("</SourceImageName>");
-            xml.append("</OSVirtualHardDisk>");
-            xml.append("<RoleSize>").append(options.getStandardProductId()).append("</RoleSize>");
-            xml.append("</Role>");
-            xml.append("</RoleList>");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, options.size())), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Azure VM launch");
 
-            if (options.getVlanId() != null) {
-                xml.append("<VirtualNetworkName>").append(vlanName).append("</VirtualNetworkName>");
+                t.setDaemon(true);
+                return t;
             }
-            xml.append("</Deployment>");
+        });
 
-            String requestId = method.post(ctx.getAccountNumber(), HOSTED_SERVICES + "/" + hostName + "/deployments", xml.toString());
-
-            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
-            VirtualMachine vm = null ;
+        try {
+            for( final VMLaunchOptions launchOptions : options ) {
+                final String serviceName = (String)launchOptions.getMetaData().get(META_SERVICE_NAME);
+                final String hostName;
 
-            if (requestId != null) {
-                int httpCode = method.getOperationStatus(requestId);
-                while (httpCode == -1) {
-                    httpCode = method.getOperationStatus(requestId);
+                try {
+                    inputs.getImage(launchOptions.getMachineImageId());
+                    inputs.getNetwork(launchOptions.getVlanId());
+                    hostName = (serviceName == null ? toUniqueId(launchOptions.getHostName()) : null);
                 }
-                if (httpCode == HttpServletResponse.SC_OK) {
-                    try { vm = getVirtualMachine(hostName + ":" + hostName+":"+hostName); }
-                    catch( Throwable ignore ) { }
-                    if( vm != null ) {
-                        vm.setRootUser("dasein");
-                        vm.setRootPassword(password);
-                    }
+                catch( final Exception e ) {
+                    logger.error("Unable to launch " + launchOptions.getHostName() + ": " + e.getMessage());
+                    FutureTask<VirtualMachine> failed = new FutureTask<VirtualMachine>(new Callable<VirtualMachine>() {
+                        public VirtualMachine call() throws Exception {
+                            throw e;
+                        }
+                    });
+
+                    failed.run();
+                    results.add(failed);
+                    continue;
                 }
-            }
-            else {
-                while( timeout > System.currentTimeMillis() ) {
-                    try { vm = getVirtualMachine(hostName + ":" + hostName+":"+hostName); }
-                    catch( Throwable ignore ) { }
-                    if( vm != null ) {
-                        vm.setRootUser("dasein");
-                        vm.setRootPassword(password);
-                        break;
+                final AzureFuture<VirtualMachine> outcome = new AzureFuture<VirtualMachine>();
+
+                results.add(outcome);
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            Provisioned provisioned;
+
+                            if( serviceName != null ) {
+                                provisioned = addRole(launchOptions, inputs, serviceName);
+                            }
+                            else {
+                                provisioned = provision(launchOptions, inputs, hostName);
+                            }
+                            awaitLaunch(provisioned, outcome);
+                        }
+                        catch( Throwable t ) {
+                            logger.error("Unable to launch " + launchOptions.getHostName() + ": " + t.getMessage());
+                            outcome.fail(t);
+                        }
                     }
-                    try { Thread.sleep(15000L); }
-                    catch( InterruptedException ignore ) { }
-                }
-            }
-            if( vm == null ) {
-                throw new CloudException("System timed out waiting for virtual machine to appear");
+                });
             }
-            if( VmState.STOPPED.equals(vm.getCurrentState()) ) {
-                start(vm.getProviderVirtualMachineId());
-            }
-            return vm;
         }
         finally {
-            if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT: " + AzureVM.class.getName() + ".launch()");
-            }
+            executor.shutdown();
         }
+        return results;
     }
 
-    @Override
-    public @Nonnull Iterable<String> listFirewalls(@Nonnull String vmId) throws InternalException, CloudException {
-        return Collections.emptyList();
-    }
-
-    @Override
-    public @Nonnull Iterable<VirtualMachineProduct> listProducts(@Nonnull Architecture architecture) throws InternalException, CloudException {
-        if( architecture.equals(Architecture.I32) ) {
-            return Collections.emptyList();
-        }
-        
-        ArrayList<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
-        VirtualMachineProduct product = new VirtualMachineProduct();
-
-        product.setCpuCount(1);
-        product.setDescription("Extra Small");
-        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
-        product.setName("Extra Small");
-        product.setProviderProductId("ExtraSmall");
-        product.setRamSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-        list.add(product);
-        
-        product = new VirtualMachineProduct();
-
-        product.setCpuCount(1);
-        product.setDescription("Small");
-        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
-        product.setName("Small");
-        product.setProviderProductId("Small");
-        product.setRamSize(new Storage<Gigabyte>(2, Storage.GIGABYTE));
-        list.add(product);
-        
-        product = new VirtualMachineProduct();
-
-        product.setCpuCount(2);
-        product.setDescription("Medium");
-        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
-        product.setName("Medium");
-        product.setProviderProductId("Medium");
-        product.setRamSize(new Storage<Gigabyte>(4, Storage.GIGABYTE)); //3.5G
-        list.add(product);
-        
-        product = new VirtualMachineProduct();
-
-        product.setCpuCount(4);
-        product.setDescription("Large");
-        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
-        product.setName("Large");
-        product.setProviderProductId("Large");
-        product.setRamSize(new Storage<Gigabyte>(7, Storage.GIGABYTE)); //3.5G
-        list.add(product);
-        
-        product = new VirtualMachineProduct();
-
-        product.setCpuCount(8);
-        product.setDescription("Extra Large");
-        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
-        product.setName("Extra Large");
-        product.setProviderProductId("ExtraLarge");
-        product.setRamSize(new Storage<Gigabyte>(14, Storage.GIGABYTE)); //3.5G
-        list.add(product);
-        
-        return Collections.unmodifiableList(list);
+    /**
+     * Provisions a single virtual machine, running the lookups it needs as a dependency graph. The host name, affinity
+     * group, image, network and storage endpoint are resolved concurrently. The hosted service is created as soon as
+     * its name, affinity group and image are known, while the network and storage endpoint are still being resolved,
+     * and the deployment is posted once everything is in place.
+     * @param options the launch options
+     * @param inputs the inputs for this launch
+     * @return the information needed to wait for the virtual machine
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private @Nonnull Provisioned provisionConcurrently(@Nonnull final VMLaunchOptions options, @Nonnull final LaunchInputs inputs) throws CloudException, InternalException {
+        AzureLaunchGraph graph = new AzureLaunchGraph(options.getHostName());
+
+        final Future<String> hostName = graph.add("name", new Callable<String>() {
+            public String call() throws CloudException, InternalException {
+                return toUniqueId(options.getHostName());
+            }
+        });
+        Future<String> affinityGroup = graph.add("affinityGroup", new Callable<String>() {
+            public String call() throws CloudException, InternalException {
+                return inputs.getAffinityGroup();
+            }
+        });
+        Future<AzureMachineImage> image = graph.add("image", new Callable<AzureMachineImage>() {
+            public AzureMachineImage call() throws CloudException, InternalException {
+                return inputs.getImage(options.getMachineImageId());
+            }
+        });
+        Future<String[]> network = graph.add("network", new Callable<String[]>() {
+            public String[] call() throws CloudException, InternalException {
+                return inputs.getNetwork(options.getVlanId());
+            }
+        });
+        Future<String> storage = graph.add("storageEndpoint", new Callable<String>() {
+            public String call() throws CloudException, InternalException {
+                return inputs.getStorageEndpoint();
+            }
+        });
+        Future<Void> service = graph.add("hostedService", new Callable<Void>() {
+            public Void call() throws Exception {
+                createHostedService(options, inputs, hostName.get());
+                return null;
+            }
+        }, hostName, affinityGroup, image);
+        Future<Provisioned> deployment = graph.add("deployment", new Callable<Provisioned>() {
+            public Provisioned call() throws Exception {
+                return deploy(options, inputs, hostName.get());
+            }
+        }, service, network, storage);
+
+        return graph.get(deployment);
     }
 
-    @Override
-    public Iterable<Architecture> listSupportedArchitectures() throws InternalException, CloudException {
-        return Collections.singletonList(Architecture.I64);
+    /**
+     * Creates the hosted service and posts the deployment for a new virtual machine without waiting for it to come up.
+     * @param options the launch options
+     * @param inputs the resolved inputs for this launch
+     * @param hostName the already allocated, unique host name
+     * @return the information needed to wait for the virtual machine
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private @Nonnull Provisioned provision(@Nonnull VMLaunchOptions options, @Nonnull LaunchInputs inputs, @Nonnull String hostName) throws CloudException, InternalException {
+        logger.debug("----------------------------------------------------------");
+        logger.debug("launching vm "+options.getHostName()+" with machine image id: "+options.getMachineImageId());
+        inputs.getImage(options.getMachineImageId());
+        logger.debug("----------------------------------------------------------");
+
+        createHostedService(options, inputs, hostName);
+        return deploy(options, inputs, hostName);
     }
 
-    @Nonnull
-    @Override
-    public Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
+    private void createHostedService(@Nonnull VMLaunchOptions options, @Nonnull LaunchInputs inputs, @Nonnull String hostName) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
         AzureMethod method = new AzureMethod(provider);
-
-        Document doc = method.getAsXML(ctx.getAccountNumber(), HOSTED_SERVICES);
-
-        if( doc == null ) {
-            return Collections.emptyList();
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<CreateHostedService xmlns=\"http://schemas.microsoft.com/windowsazure\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
+        xml.append("<ServiceName>").append(hostName).append("</ServiceName>");
+        xml.append("<Label>").append(toLabel(options)).append("</Label>");
+        xml.append("<Description>").append(options.getDescription()).append("</Description>");
+        xml.append("<AffinityGroup>").append(inputs.getAffinityGroup()).append("</AffinityGroup>");
+        xml.append("</CreateHostedService>");
+        try {
+            method.post(ctx.getAccountNumber(), HOSTED_SERVICES, xml.toString());
         }
-        NodeList entries = doc.getElementsByTagName("HostedService");
-        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
-
-        for( int i=0; i<entries.getLength(); i++ ) {
-            parseHostedServiceForStatus(ctx, entries.item(i), null, status);
+        catch( CloudException e ) {
+            new AzureHostedServiceNames(provider).release(hostName);
+            throw e;
         }
-        return status;
     }
 
-    @Override
-    public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+    private @Nonnull Provisioned deploy(@Nonnull VMLaunchOptions options, @Nonnull LaunchInputs inputs, @Nonnull String hostName) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
+        AzureMachineImage image = inputs.getImage(options.getMachineImageId());
         AzureMethod method = new AzureMethod(provider);
+        String label = toLabel(options);
+        String deploymentSlot = (String)options.getMetaData().get("environment");
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), HOSTED_SERVICES);
-
-        if( doc == null ) {
-            return Collections.emptyList();
+        if( deploymentSlot == null ) {
+            deploymentSlot = "Production";
         }
-        NodeList entries = doc.getElementsByTagName("HostedService");
-        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
-
-        for( int i=0; i<entries.getLength(); i++ ) {
-            parseHostedService(ctx, entries.item(i), null, vms);
+        else if( !deploymentSlot.equalsIgnoreCase("Production") && !deploymentSlot.equalsIgnoreCase("Staging") ) {
+            deploymentSlot = "Production";
         }
-        return vms;
+        String password = (options.getBootstrapPassword() == null ? provider.generateToken(8, 15) : options.getBootstrapPassword());
+        String[] network = inputs.getNetwork(options.getVlanId());
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<Deployment xmlns=\"http://schemas.microsoft.com/windowsazure\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
+        xml.append("<Name>").append(hostName).append("</Name>");
+        xml.append("<DeploymentSlot>").append(deploymentSlot).append("</DeploymentSlot>");
+        xml.append("<Label>").append(label).append("</Label>");
+        xml.append("<RoleList>");
+        xml.append("<Role>");
+        appendRole(xml, options, image, hostName, password, network, inputs.getStorageEndpoint() + "vhds/" + hostName + ".vhd", -1);
+        xml.append("</Role>");
+        xml.append("</RoleList>");
+
+        if( network != null ) {
+            //dmayne needed for virtual network name
+            xml.append("<VirtualNetworkName>").append(network[1]).append("</VirtualNetworkName>");
+        }
+        xml.append("</Deployment>");
+
+        Provisioned provisioned = new Provisioned();
+
+        provisioned.hostName = hostName;
+        provisioned.vmId = hostName + ":" + hostName + ":" + hostName;
+        provisioned.password = password;
+        provisioned.requestId = method.post(ctx.getAccountNumber(), HOSTED_SERVICES + "/" + hostName + "/deployments", xml.toString());
+        return provisioned;
     }
 
-    @Nonnull
-    @Override
-    public Iterable<VirtualMachine> listVirtualMachines(@Nullable VMFilterOptions vmFilterOptions) throws InternalException, CloudException {
-        Iterable<VirtualMachine> vms = listVirtualMachines();
-        ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
-        for (VirtualMachine vm : vms) {
-            if (vm.getName().matches(vmFilterOptions.getRegex())) {
-                list.add(vm);
-            }
+    private @Nonnull String toLabel(@Nonnull VMLaunchOptions options) throws InternalException {
+        try {
+            return new String(Base64.encodeBase64(options.getFriendlyName().getBytes("utf-8")));
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
         }
-        return list;
     }
 
-    private void parseDeployment(@Nonnull ProviderContext ctx, @Nonnull String regionId, @Nonnull String serviceName, @Nonnull Node node, @Nonnull List<VirtualMachine> virtualMachines) {
-        ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
-        NodeList attributes = node.getChildNodes();
+    /**
+     * Adds a new role to an existing deployment through the Roles endpoint. This avoids creating a hosted service and
+     * deployment per virtual machine. The role name and public remote access port are chosen to be unique within the
+     * deployment, and the deployment is locked until Azure finishes adding the role.
+     * @param options the launch options
+     * @param inputs the resolved inputs for this launch
+     * @param serviceName the hosted service containing the target deployment
+     * @return the information needed to wait for the virtual machine
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private @Nonnull Provisioned addRole(@Nonnull VMLaunchOptions options, @Nonnull LaunchInputs inputs, @Nonnull String serviceName) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        String deploymentName = (String)options.getMetaData().get(META_DEPLOYMENT_NAME);
+
+        if( deploymentName == null ) {
+            deploymentName = serviceName;
+        }
+        AzureMachineImage image = inputs.getImage(options.getMachineImageId());
+        String password = (options.getBootstrapPassword() == null ? provider.generateToken(8, 15) : options.getBootstrapPassword());
+        String[] network = inputs.getNetwork(options.getVlanId());
+        String resourceDir = HOSTED_SERVICES + "/" + serviceName + "/deployments/" + deploymentName;
+        AzureMethod method = new AzureMethod(provider);
+        ReentrantLock lock = getDeploymentLock(ctx.getAccountNumber(), serviceName, deploymentName);
+
+        lock.lock();
+        try {
+            Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
+
+            if( doc == null ) {
+                throw new CloudException("No such deployment: " + serviceName + ":" + deploymentName);
+            }
+            HashSet<String> roleNames = new HashSet<String>();
+            HashSet<String> ports = new HashSet<String>();
+            NodeList entries = doc.getElementsByTagName("RoleName");
+
+            for( int i=0; i<entries.getLength(); i++ ) {
+                Node entry = entries.item(i);
+
+                if( entry.hasChildNodes() ) {
+                    roleNames.add(entry.getFirstChild().getNodeValue().trim().toLowerCase());
+                }
+            }
+            entries = doc.getElementsByTagName("Port");
+            for( int i=0; i<entries.getLength(); i++ ) {
+                Node entry = entries.item(i);
+
+                if( entry.hasChildNodes() ) {
+                    ports.add(entry.getFirstChild().getNodeValue().trim());
+                }
+            }
+            String name = options.getHostName().toLowerCase().replaceAll(" ", "");
+            String roleName = name;
+            int i = 0;
+
+            while( roleNames.contains(roleName) ) {
+                i++;
+                roleName = name + "-" + i;
+            }
+            int port = (image.getPlatform().isWindows() ? 58622 : 22);
+
+            while( ports.contains(String.valueOf(port)) ) {
+                port = (port < 50000 ? 50000 : port + 1);
+            }
+            StringBuilder xml = new StringBuilder();
+
+            xml.append("<PersistentVMRole xmlns=\"http://schemas.microsoft.com/windowsazure\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
+            appendRole(xml, options, image, roleName, password, network, inputs.getStorageEndpoint() + "vhds/" + serviceName + "-" + roleName + ".vhd", port);
+            xml.append("</PersistentVMRole>");
+
+            Provisioned provisioned = new Provisioned();
+
+            provisioned.hostName = roleName;
+            provisioned.vmId = serviceName + ":" + deploymentName + ":" + roleName;
+            provisioned.password = password;
+
+            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
+
+            while( true ) {
+                try {
+                    provisioned.requestId = method.post(ctx.getAccountNumber(), resourceDir + "/roles", xml.toString());
+                    break;
+                }
+                catch( CloudException e ) {
+                    if( e.getProviderCode() != null && e.getProviderCode().equals("ConflictError") && timeout > System.currentTimeMillis() ) {
+                        logger.warn("Conflict error, maybe retrying in 30 seconds");
+                        try { Thread.sleep(30000L); }
+                        catch( InterruptedException interrupted ) {
+                            Thread.currentThread().interrupt();
+                            throw new InternalException(interrupted);
+                        }
+                        continue;
+                    }
+                    throw e;
+                }
+            }
+            if( provisioned.requestId != null ) {
+                int httpCode = waitForOperation(method, provisioned.requestId, timeout);
+
+                if( httpCode != HttpServletResponse.SC_OK ) {
+                    throw new CloudException("Timed out waiting for role " + roleName + " to be added to " + serviceName + ":" + deploymentName);
+                }
+            }
+            return provisioned;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the body of a persistent VM role (everything inside the <code>Role</code> element).
+     * @param xml the request being built
+     * @param options the launch options
+     * @param image the image being launched
+     * @param roleName the role name, which is also used as the host name
+     * @param password the password for the bootstrap user
+     * @param network the subnet name and virtual network name, or null
+     * @param mediaLink the blob URL for the OS disk
+     * @param publicPort the public port for remote access, or -1 for the platform default
+     */
+    private void appendRole(@Nonnull StringBuilder xml, @Nonnull VMLaunchOptions options, @Nonnull AzureMachineImage image, @Nonnull String roleName, @Nonnull String password, @Nullable String[] network, @Nonnull String mediaLink, int publicPort) {
+        xml.append("<RoleName>").append(roleName).append("</RoleName>");
+        xml.append("<RoleType>PersistentVMRole</RoleType>");
+        xml.append("<ConfigurationSets>");
+
+        if( image.getPlatform().isWindows() ) {
+            xml.append("<ConfigurationSet>");
+            xml.append("<ConfigurationSetType>WindowsProvisioningConfiguration</ConfigurationSetType>");
+            xml.append("<ComputerName>").append(roleName).append("</ComputerName>");
+            xml.append("<AdminPassword>").append(password).append("</AdminPassword>");
+            xml.append("<EnableAutomaticUpdate>true</EnableAutomaticUpdate>");
+            xml.append("<TimeZone>UTC</TimeZone>");
+            xml.append("</ConfigurationSet>");
+        }
+        else {
+            xml.append("<ConfigurationSet>");
+            xml.append("<ConfigurationSetType>LinuxProvisioningConfiguration</ConfigurationSetType>");
+            xml.append("<HostName>").append(roleName).append("</HostName>");
+
+            //dmayne using root causes vm to fail provisioning
+            xml.append("<UserName>dasein</UserName>");
+            xml.append("<UserPassword>").append(password).append("</UserPassword>");
+            xml.append("<DisableSshPasswordAuthentication>false</DisableSshPasswordAuthentication>");
+            xml.append("</ConfigurationSet>");
+        }
+        xml.append("<ConfigurationSet>");
+        xml.append("<ConfigurationSetType>NetworkConfiguration</ConfigurationSetType>") ;
+        xml.append("<InputEndpoints><InputEndpoint>");
+        if( image.getPlatform().isWindows() ) {
+            xml.append("<LocalPort>3389</LocalPort>");
+            xml.append("<Name>RemoteDesktop</Name>");
+            xml.append("<Port>").append(publicPort > 0 ? publicPort : 58622).append("</Port>");
+        }
+        else {
+            xml.append("<LocalPort>22</LocalPort>");
+            xml.append("<Name>SSH</Name>");
+            xml.append("<Port>").append(publicPort > 0 ? publicPort : 22).append("</Port>");
+        }
+        xml.append("<Protocol>TCP</Protocol>");
+        xml.append("</InputEndpoint></InputEndpoints>");
+        //dmayne assuming this is a subnet
+        if( network != null ) {
+            xml.append("<SubnetNames>");
+            xml.append("<SubnetName>").append(network[0]).append("</SubnetName>");
+            xml.append("</SubnetNames>");
+        }
+        xml.append("</ConfigurationSet>");
+        xml.append("</ConfigurationSets>");
+        xml.append("<DataVirtualHardDisks/>");
+        xml.append("<OSVirtualHardDisk>");
+        xml.append("<HostCaching>ReadWrite</HostCaching>");
+        xml.append("<DiskLabel>OS</DiskLabel>");
+        xml.append("<MediaLink>").append(mediaLink).append("</MediaLink>");
+        xml.append("<SourceImageName>").append(options.getMachineImageId()).append("</SourceImageName>");
+        xml.append("</OSVirtualHardDisk>");
+        xml.append("<RoleSize>").append(options.getStandardProductId()).append("</RoleSize>");
+    }
+
+    /**
+     * Waits for a provisioned virtual machine to appear and starts it if it came up stopped.
+     * @param provisioned the result of {@link #provision(VMLaunchOptions, LaunchInputs, String)}
+     * @return the new virtual machine
+     * @throws CloudException the virtual machine failed to appear or the deployment failed
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private @Nonnull VirtualMachine awaitLaunch(@Nonnull Provisioned provisioned) throws CloudException, InternalException {
+        long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
+
+        if( provisioned.requestId != null ) {
+            int httpCode = waitForOperation(new AzureMethod(provider), provisioned.requestId, timeout);
+
+            if( httpCode != HttpServletResponse.SC_OK ) {
+                throw new CloudException("System timed out waiting for virtual machine to appear");
+            }
+        }
+        else if( !awaitState(provisioned.vmId, timeout, VmState.PENDING, VmState.RUNNING, VmState.STOPPED) ) {
+            throw new CloudException("System timed out waiting for virtual machine to appear");
+        }
+        return finishLaunch(provisioned);
+    }
+
+    /**
+     * Waits for a provisioned virtual machine to appear without blocking the calling thread. The deployment is
+     * followed by {@link AzureOperationTracker} when Azure returned a request ID, and by the shared state waiter
+     * otherwise; the launch is then finished on a shared executor.
+     * @param provisioned the result of {@link #provision(VMLaunchOptions, LaunchInputs, String)}
+     * @param outcome the future to complete with the new virtual machine, or to fail
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private void awaitLaunch(@Nonnull final Provisioned provisioned, @Nonnull final AzureFuture<VirtualMachine> outcome) throws CloudException, InternalException {
+        final AzureFuture<?> ready;
+
+        if( provisioned.requestId != null ) {
+            ready = AzureOperationTracker.track(new AzureMethod(provider), CalendarWrapper.MINUTE * 10L, new AzureOperationTracker.Step() {
+                public String execute(@Nonnull AzureMethod method) {
+                    // the deployment request has already been made, so there is only its status to follow
+                    return provisioned.requestId;
+                }
+            });
+        }
+        else {
+            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
+
+            ready = AzureVMStateWaiter.getInstance(provider).register(provider, provisioned.vmId, timeout, VmState.PENDING, VmState.RUNNING, VmState.STOPPED);
+        }
+        ready.whenDone(new Runnable() {
+            public void run() {
+                launchFinisher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if( Boolean.FALSE.equals(ready.get()) ) {
+                                throw new CloudException("System timed out waiting for virtual machine to appear");
+                            }
+                            outcome.complete(finishLaunch(provisioned));
+                        }
+                        catch( ExecutionException e ) {
+                            outcome.fail(e.getCause());
+                        }
+                        catch( Throwable t ) {
+                            outcome.fail(t);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fetches a virtual machine whose deployment is done and starts it if it came up stopped.
+     * @param provisioned the result of {@link #provision(VMLaunchOptions, LaunchInputs, String)}
+     * @return the new virtual machine
+     * @throws CloudException the virtual machine could not be found
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    private @Nonnull VirtualMachine finishLaunch(@Nonnull Provisioned provisioned) throws CloudException, InternalException {
+        VirtualMachine vm = null;
+
+        try { vm = getVirtualMachine(provisioned.vmId); }
+        catch( Throwable ignore ) { }
+        if( vm == null ) {
+            throw new CloudException("System timed out waiting for virtual machine to appear");
+        }
+        vm.setRootUser("dasein");
+        vm.setRootPassword(provisioned.password);
+        if( VmState.STOPPED.equals(vm.getCurrentState()) ) {
+            start(vm.getProviderVirtualMachineId());
+        }
+        return vm;
+    }
+
+    /**
+     * Polls an asynchronous operation until it is no longer in progress or the timeout passes.
+     * @param method the method used to check status
+     * @param requestId the request ID of the operation
+     * @param timeout the time at which to give up
+     * @return the last status from {@link AzureMethod#getOperationStatus(String)}
+     * @throws CloudException the operation failed
+     * @throws InternalException the wait was interrupted, or an error occurred within the Dasein Cloud implementation
+     */
+    private int waitForOperation(@Nonnull AzureMethod method, @Nonnull String requestId, long timeout) throws CloudException, InternalException {
+        int httpCode = method.getOperationStatus(requestId);
+
+        while( httpCode == AzureMethod.OPERATION_IN_PROGRESS && timeout > System.currentTimeMillis() ) {
+            try { Thread.sleep(5000L); }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+            httpCode = method.getOperationStatus(requestId);
+        }
+        return httpCode;
+    }
+
+    @Override
+    public @Nonnull Iterable<String> listFirewalls(@Nonnull String vmId) throws InternalException, CloudException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public @Nonnull Iterable<VirtualMachineProduct> listProducts(@Nonnull Architecture architecture) throws InternalException, CloudException {
+        if( architecture.equals(Architecture.I32) ) {
+            return Collections.emptyList();
+        }
+        
+        ArrayList<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
+        VirtualMachineProduct product = new VirtualMachineProduct();
+
+        product.setCpuCount(1);
+        product.setDescription("Extra Small");
+        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
+        product.setName("Extra Small");
+        product.setProviderProductId("ExtraSmall");
+        product.setRamSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+        list.add(product);
+        
+        product = new VirtualMachineProduct();
+
+        product.setCpuCount(1);
+        product.setDescription("Small");
+        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
+        product.setName("Small");
+        product.setProviderProductId("Small");
+        product.setRamSize(new Storage<Gigabyte>(2, Storage.GIGABYTE));
+        list.add(product);
+        
+        product = new VirtualMachineProduct();
+
+        product.setCpuCount(2);
+        product.setDescription("Medium");
+        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
+        product.setName("Medium");
+        product.setProviderProductId("Medium");
+        product.setRamSize(new Storage<Gigabyte>(4, Storage.GIGABYTE)); //3.5G
+        list.add(product);
+        
+        product = new VirtualMachineProduct();
+
+        product.setCpuCount(4);
+        product.setDescription("Large");
+        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
+        product.setName("Large");
+        product.setProviderProductId("Large");
+        product.setRamSize(new Storage<Gigabyte>(7, Storage.GIGABYTE)); //3.5G
+        list.add(product);
+        
+        product = new VirtualMachineProduct();
+
+        product.setCpuCount(8);
+        product.setDescription("Extra Large");
+        product.setRootVolumeSize(new Storage<Gigabyte>(15, Storage.GIGABYTE));
+        product.setName("Extra Large");
+        product.setProviderProductId("ExtraLarge");
+        product.setRamSize(new Storage<Gigabyte>(14, Storage.GIGABYTE)); //3.5G
+        list.add(product);
+        
+        return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public Iterable<Architecture> listSupportedArchitectures() throws InternalException, CloudException {
+        return Collections.singletonList(Architecture.I64);
+    }
+
+    @Nonnull
+    @Override
+    public Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
+        return new AzureVMStatusSweep(provider).sweep();
+    }
+
+    @Override
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+        AzureInventorySnapshot snapshot = AzureInventorySnapshot.getInstance(provider);
+
+        if( snapshot == null ) {
+            return listVirtualMachines(null, (VmState[])null);
+        }
+        return snapshot.list("vms", provider, new AzureInventorySnapshot.Sweep<VirtualMachine>() {
+            public @Nonnull List<VirtualMachine> list(@Nonnull AzureMethod method) throws CloudException, InternalException {
+                return listVirtualMachines(method, AzureVMFilter.getInstance(null));
+            }
+
+            public void markStale(@Nonnull VirtualMachine vm, long timestamp) {
+                vm.setTag(AzureInventorySnapshot.STALE_TAG, String.valueOf(timestamp));
+            }
+        });
+    }
+
+    @Nonnull
+    @Override
+    public Iterable<VirtualMachine> listVirtualMachines(@Nullable VMFilterOptions vmFilterOptions) throws InternalException, CloudException {
+        return listVirtualMachines(vmFilterOptions, (VmState[])null);
+    }
+
+    /**
+     * Lists the virtual machines matching the specified filter options and, optionally, in one of the specified states.
+     * The filters are applied during the hosted service sweep so that hosted services and deployments that cannot
+     * match are never fetched.
+     * @param vmFilterOptions the filter options to apply, or null for no name/tag filtering
+     * @param states the states to include, or none for all states
+     * @return the matching virtual machines
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred with the cloud provider
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nullable VMFilterOptions vmFilterOptions, @Nullable VmState ... states) throws InternalException, CloudException {
+        return listVirtualMachines(new AzureMethod(provider), AzureVMFilter.getInstance(vmFilterOptions, states));
+    }
+
+    private @Nonnull List<VirtualMachine> listVirtualMachines(@Nonnull AzureMethod method, @Nonnull AzureVMFilter filter) throws InternalException, CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        Document doc = method.getAsXML(ctx.getAccountNumber(), HOSTED_SERVICES);
+
+        if( doc == null ) {
+            return Collections.emptyList();
+        }
+        NodeList entries = doc.getElementsByTagName("HostedService");
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+
+        for( int i=0; i<entries.getLength(); i++ ) {
+            parseHostedService(ctx, method, entries.item(i), null, filter, vms);
+        }
+        return vms;
+    }
+
+    private void parseDeployment(@Nonnull ProviderContext ctx, @Nonnull AzureMethod method, @Nonnull String regionId, @Nonnull String serviceName, @Nonnull Node node, @Nonnull List<VirtualMachine> virtualMachines) {
+        ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+        NodeList attributes = node.getChildNodes();
         String deploymentSlot = null;
         String deploymentId = null;
         String dnsName = null;
@@ -981,10 +1619,17 @@ public class AzureVM implements VirtualMachineSupport {
                     vm.setPlatform(Platform.guess(vm.getProviderMachineImageId()));
                     if( vm.getPlatform().equals(Platform.UNKNOWN) ) {
                         try {
-                            MachineImage img = provider.getComputeServices().getImageSupport().getImage(vm.getProviderMachineImageId());
+                            final String machineImageId = vm.getProviderMachineImageId();
+                            String platform = AzureInventorySnapshot.lookup(method, "platform:" + machineImageId, new AzureInventorySnapshot.Lookup() {
+                                public @Nullable String lookup() throws CloudException, InternalException {
+                                    MachineImage img = provider.getComputeServices().getImageSupport().getImage(machineImageId);
+
+                                    return (img == null ? null : img.getPlatform().name());
+                                }
+                            });
 
-                            if( img != null ) {
-                                vm.setPlatform(img.getPlatform());
+                            if( platform != null ) {
+                                vm.setPlatform(Platform.valueOf(platform));
                             }
                         }
                         catch( Throwable t ) {
@@ -997,7 +1642,13 @@ public class AzureVM implements VirtualMachineSupport {
                 }
                 if (vlan != null) {
                     try {
-                        vm.setProviderVlanId(provider.getNetworkServices().getVlanSupport().getVlan(vlan).getProviderVlanId());
+                        final String vlanName = vlan;
+
+                        vm.setProviderVlanId(AzureInventorySnapshot.lookup(method, "vlan:" + vlanName, new AzureInventorySnapshot.Lookup() {
+                            public @Nullable String lookup() throws CloudException, InternalException {
+                                return provider.getNetworkServices().getVlanSupport().getVlan(vlanName).getProviderVlanId();
+                            }
+                        }));
                     }
                     catch (CloudException e) {
                         logger.error("Error getting vlan id for vlan "+vlan);
@@ -1011,7 +1662,8 @@ public class AzureVM implements VirtualMachineSupport {
                 if (subnetName != null) {
                     vm.setProviderSubnetId(subnetName);
                 }
-                String[] parts = serviceName.split(":");
+                // the ID carries the real role name, which the filter also prunes on and the role API paths expect
+                String[] parts = vm.getProviderVirtualMachineId().split(":");
                 String sName, deploymentName, roleName;
 
                 if (parts.length == 3)    {
@@ -1040,113 +1692,43 @@ public class AzureVM implements VirtualMachineSupport {
         }
     }
 
-    private void parseStatus(@Nonnull ProviderContext ctx, @Nonnull String regionId, @Nonnull String serviceName, @Nonnull Node node, @Nonnull List<ResourceStatus> status) {
-        ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
-        NodeList attributes = node.getChildNodes();
-        String id = "";
-        ResourceStatus s = null;
+    private void parseHostedService(@Nonnull ProviderContext ctx, @Nonnull AzureMethod method, @Nonnull Node entry, @Nullable String serviceName, @Nonnull AzureVMFilter filter, @Nonnull List<VirtualMachine> virtualMachines) throws CloudException, InternalException {
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new AzureConfigException("No region ID was specified for this request");
+        }
+
+        NodeList attributes = entry.getChildNodes();
+        String uri = null;
+        long created = 0L;
+        String service = null;
 
         for( int i=0; i<attributes.getLength(); i++ ) {
             Node attribute = attributes.item(i);
 
-            if( attribute.getNodeType() == Node.TEXT_NODE) {
+            if(attribute.getNodeType() == Node.TEXT_NODE) {
                 continue;
             }
-            if( attribute.getNodeName().equalsIgnoreCase("roleinstancelist") && attribute.hasChildNodes() ) {
-                NodeList roleInstances = attribute.getChildNodes();
+            if( attribute.getNodeName().equalsIgnoreCase("url") && attribute.hasChildNodes() ) {
+                uri = attribute.getFirstChild().getNodeValue().trim();
+            }
+            else if( attribute.getNodeName().equalsIgnoreCase("servicename") && attribute.hasChildNodes() ) {
+                service = attribute.getFirstChild().getNodeValue().trim();
+                if( serviceName != null && !service.equals(serviceName) ) {
+                    return;
+                }
+                if( !filter.acceptsService(service) ) {
+                    return;
+                }
+            }
+            else if( attribute.getNodeName().equalsIgnoreCase("hostedserviceproperties") && attribute.hasChildNodes() ) {
+                NodeList properties = attribute.getChildNodes();
 
-                for( int j=0; j<roleInstances.getLength(); j++ ) {
-                    Node roleInstance = roleInstances.item(j);
+                for( int j=0; j<properties.getLength(); j++ ) {
+                    Node property = properties.item(j);
 
-                    if(roleInstance.getNodeType() == Node.TEXT_NODE) {
-                        continue;
-                    }
-                    if( roleInstance.getNodeName().equalsIgnoreCase("roleinstance") && roleInstance.hasChildNodes() ) {
-                        NodeList roleAttributes = roleInstance.getChildNodes();
-
-                        for( int l=0; l<roleAttributes.getLength(); l++ ) {
-                            Node roleAttribute = roleAttributes.item(l);
-
-                            if( roleAttribute.getNodeType() == Node.TEXT_NODE ) {
-                                continue;
-                            }
-                            if( roleAttribute.getNodeName().equalsIgnoreCase("RoleName") && roleAttribute.hasChildNodes() ) {
-                                String vmId  = roleAttribute.getFirstChild().getNodeValue().trim();
-
-                                id = serviceName + ":" + vmId;
-                            }
-                            else if( roleAttribute.getNodeName().equalsIgnoreCase("PowerState") && roleAttribute.hasChildNodes() ) {
-                                String powerStatus = roleAttribute.getFirstChild().getNodeValue().trim();
-
-                                if( "Started".equalsIgnoreCase(powerStatus)){
-                                     s = new ResourceStatus(id, VmState.RUNNING);
-                                }
-                                else if( "Stopped".equalsIgnoreCase(powerStatus)){
-                                     s = new ResourceStatus(id, VmState.STOPPED);
-                                }
-                                else if( "Stopping".equalsIgnoreCase(powerStatus)){
-                                     s = new ResourceStatus(id, VmState.STOPPING);
-                                }
-                                else if( "Starting".equalsIgnoreCase(powerStatus)){
-                                     s = new ResourceStatus(id, VmState.PENDING);
-                                }
-                                else {
-                                    logger.warn("DEBUG: Unknown Azure status: " + powerStatus);
-                                    System.out.println("DEBUG: Unknown Azure status: " + powerStatus);
-                                }
-                            }
-                        }
-                        if( id == null ) {
-                            continue;
-                        }
-
-                        if (s != null) {
-                            list.add(s);
-                            s = null;
-                        }
-                    }
-                }
-            }
-        }
-        for (ResourceStatus rs : list) {
-            status.add(rs);
-        }
-    }
-
-    private void parseHostedService(@Nonnull ProviderContext ctx, @Nonnull Node entry, @Nullable String serviceName, @Nonnull List<VirtualMachine> virtualMachines) throws CloudException, InternalException {
-        String regionId = ctx.getRegionId();
-
-        if( regionId == null ) {
-            throw new AzureConfigException("No region ID was specified for this request");
-        }
-
-        NodeList attributes = entry.getChildNodes();
-        String uri = null;
-        long created = 0L;
-        String service = null;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attribute = attributes.item(i);
-
-            if(attribute.getNodeType() == Node.TEXT_NODE) {
-                continue;
-            }
-            if( attribute.getNodeName().equalsIgnoreCase("url") && attribute.hasChildNodes() ) {
-                uri = attribute.getFirstChild().getNodeValue().trim();
-            }
-            else if( attribute.getNodeName().equalsIgnoreCase("servicename") && attribute.hasChildNodes() ) {
-                service = attribute.getFirstChild().getNodeValue().trim();
-                if( serviceName != null && !service.equals(serviceName) ) {
-                    return;
-                }
-            }
-            else if( attribute.getNodeName().equalsIgnoreCase("hostedserviceproperties") && attribute.hasChildNodes() ) {
-                NodeList properties = attribute.getChildNodes();
-
-                for( int j=0; j<properties.getLength(); j++ ) {
-                    Node property = properties.item(j);
-
-                    if(property.getNodeType() == Node.TEXT_NODE) {
+                    if(property.getNodeType() == Node.TEXT_NODE) {
                         continue;
                     }
                     if( property.getNodeName().equalsIgnoreCase("location") && property.hasChildNodes() ) {
@@ -1164,8 +1746,6 @@ public class AzureVM implements VirtualMachineSupport {
             return;
         }
 
-        AzureMethod method = new AzureMethod(provider);
-
         //dmayne 20130416: get the deployment names for each hosted service so we can then extract the detail
         String deployURL = HOSTED_SERVICES + "/"+ service+"?embed-detail=true";
         Document deployDoc = method.getAsXML(ctx.getAccountNumber(), deployURL);
@@ -1178,7 +1758,6 @@ public class AzureVM implements VirtualMachineSupport {
             Node deployNode = deployments.item(i);
             NodeList deployAttributes = deployNode.getChildNodes();
 
-            String deploymentName = "";
             for (int j = 0; j<deployAttributes.getLength(); j++) {
                 Node deployment = deployAttributes.item(j);
 
@@ -1188,28 +1767,50 @@ public class AzureVM implements VirtualMachineSupport {
 
                 if( deployment.getNodeName().equalsIgnoreCase("Deployment") && deployment.hasChildNodes() ) {
                     NodeList dAttribs = deployment.getChildNodes();
+                    HashMap<String,VmState> roles = new HashMap<String,VmState>();
+                    String deploymentName = null;
+                    String deploymentSlot = null;
+
                     for (int k = 0; k<dAttribs.getLength(); k++) {
                         Node mynode = dAttribs.item(k);
 
                         if ( mynode.getNodeName().equalsIgnoreCase("name") && mynode.hasChildNodes() ) {
                             deploymentName = mynode.getFirstChild().getNodeValue().trim();
+                        }
+                        else if( mynode.getNodeName().equalsIgnoreCase("deploymentslot") && mynode.hasChildNodes() ) {
+                            deploymentSlot = mynode.getFirstChild().getNodeValue().trim();
+                        }
+                        else if( mynode.getNodeName().equalsIgnoreCase("roleinstancelist") && mynode.hasChildNodes() ) {
+                            parseRoleSummary(mynode, roles);
+                        }
+                    }
+                    if( deploymentName == null ) {
+                        continue;
+                    }
+                    if( !filter.acceptsDeployment(deploymentName, deploymentSlot, roles) ) {
+                        if( logger.isDebugEnabled() ) {
+                            logger.debug("Skipping deployment " + service + "/" + deploymentName + " as it cannot match the filter");
+                        }
+                        continue;
+                    }
+                    String resourceDir = HOSTED_SERVICES + "/" + service + "/deployments/" + deploymentName;
+                    Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
 
-                            String resourceDir = HOSTED_SERVICES + "/" + service + "/deployments/" + deploymentName;
-                            Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
-
-                            if (doc == null) {
-                                return;
-                            }
-                            NodeList entries = doc.getElementsByTagName("Deployment");
+                    if (doc == null) {
+                        return;
+                    }
+                    NodeList entries = doc.getElementsByTagName("Deployment");
+                    ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
 
-                            for (int l = 0; l < entries.getLength(); l++) {
-                                parseDeployment(ctx, regionId, service+":"+deploymentName, entries.item(l), virtualMachines);
-                            }
-                            for (VirtualMachine vm : virtualMachines) {
-                                if (vm.getCreationTimestamp() < 1L) {
-                                    vm.setCreationTimestamp(created);
-                                }
-                            }
+                    for (int l = 0; l < entries.getLength(); l++) {
+                        parseDeployment(ctx, method, regionId, service+":"+deploymentName, entries.item(l), list);
+                    }
+                    for (VirtualMachine vm : list) {
+                        if (vm.getCreationTimestamp() < 1L) {
+                            vm.setCreationTimestamp(created);
+                        }
+                        if( filter.matches(vm) ) {
+                            virtualMachines.add(vm);
                         }
                     }
                 }
@@ -1217,99 +1818,54 @@ public class AzureVM implements VirtualMachineSupport {
         }
     }
 
-    private void parseHostedServiceForStatus(@Nonnull ProviderContext ctx, @Nonnull Node entry, @Nullable String serviceName, @Nonnull List<ResourceStatus> status) throws CloudException, InternalException {
-        String regionId = ctx.getRegionId();
-
-        if( regionId == null ) {
-            throw new AzureConfigException("No region ID was specified for this request");
-        }
-
-        NodeList attributes = entry.getChildNodes();
-        String uri = null;
-        String service = null;
+    /**
+     * Reads the role names and power states from the role instance summary embedded in the hosted service detail.
+     * @param roleInstanceList the RoleInstanceList node
+     * @param roles the map into which role names and states are placed
+     */
+    private void parseRoleSummary(@Nonnull Node roleInstanceList, @Nonnull Map<String,VmState> roles) {
+        NodeList roleInstances = roleInstanceList.getChildNodes();
 
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attribute = attributes.item(i);
+        for( int i=0; i<roleInstances.getLength(); i++ ) {
+            Node roleInstance = roleInstances.item(i);
 
-            if(attribute.getNodeType() == Node.TEXT_NODE) {
+            if( roleInstance.getNodeType() == Node.TEXT_NODE || !roleInstance.hasChildNodes() ) {
                 continue;
             }
-            if( attribute.getNodeName().equalsIgnoreCase("url") && attribute.hasChildNodes() ) {
-                uri = attribute.getFirstChild().getNodeValue().trim();
-            }
-            else if( attribute.getNodeName().equalsIgnoreCase("servicename") && attribute.hasChildNodes() ) {
-                service = attribute.getFirstChild().getNodeValue().trim();
-                if( serviceName != null && !service.equals(serviceName) ) {
-                    return;
-                }
-            }
-            else if( attribute.getNodeName().equalsIgnoreCase("hostedserviceproperties") && attribute.hasChildNodes() ) {
-                NodeList properties = attribute.getChildNodes();
+            NodeList roleAttributes = roleInstance.getChildNodes();
+            String roleName = null;
+            VmState state = null;
 
-                for( int j=0; j<properties.getLength(); j++ ) {
-                    Node property = properties.item(j);
+            for( int j=0; j<roleAttributes.getLength(); j++ ) {
+                Node roleAttribute = roleAttributes.item(j);
 
-                    if(property.getNodeType() == Node.TEXT_NODE) {
-                        continue;
-                    }
-                    if( property.getNodeName().equalsIgnoreCase("location") && property.hasChildNodes() ) {
-                        if( !regionId.equals(property.getFirstChild().getNodeValue().trim()) ) {
-                            return;
-                        }
-                    }
+                if( roleAttribute.getNodeName().equalsIgnoreCase("RoleName") && roleAttribute.hasChildNodes() ) {
+                    roleName = roleAttribute.getFirstChild().getNodeValue().trim();
+                }
+                else if( roleAttribute.getNodeName().equalsIgnoreCase("PowerState") && roleAttribute.hasChildNodes() ) {
+                    state = toVmState(roleAttribute.getFirstChild().getNodeValue().trim());
                 }
             }
+            if( roleName != null ) {
+                roles.put(roleName, state);
+            }
         }
-        if( uri == null || service == null ) {
-            return;
-        }
-
-        AzureMethod method = new AzureMethod(provider);
-
-        //dmayne 20130416: get the deployment names for each hosted service so we can then extract the detail
-        String deployURL = HOSTED_SERVICES + "/"+ service+"?embed-detail=true";
-        Document deployDoc = method.getAsXML(ctx.getAccountNumber(), deployURL);
+    }
 
-        if (deployDoc == null) {
-            return;
+    static @Nullable VmState toVmState(@Nonnull String powerStatus) {
+        if( "Started".equalsIgnoreCase(powerStatus) ) {
+            return VmState.RUNNING;
         }
-        NodeList deployments = deployDoc.getElementsByTagName("Deployments");
-        for (int i = 0; i < deployments.getLength(); i++) {
-            Node deployNode = deployments.item(i);
-            NodeList deployAttributes = deployNode.getChildNodes();
-
-            String deploymentName = "";
-            for (int j = 0; j<deployAttributes.getLength(); j++) {
-                Node deployment = deployAttributes.item(j);
-
-                if(deployment.getNodeType() == Node.TEXT_NODE) {
-                    continue;
-                }
-
-                if( deployment.getNodeName().equalsIgnoreCase("Deployment") && deployment.hasChildNodes() ) {
-                    NodeList dAttribs = deployment.getChildNodes();
-                    for (int k = 0; k<dAttribs.getLength(); k++) {
-                        Node mynode = dAttribs.item(k);
-
-                        if ( mynode.getNodeName().equalsIgnoreCase("name") && mynode.hasChildNodes() ) {
-                            deploymentName = mynode.getFirstChild().getNodeValue().trim();
-
-                            String resourceDir = HOSTED_SERVICES + "/" + service + "/deployments/" + deploymentName;
-                            Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
-
-                            if (doc == null) {
-                                return;
-                            }
-                            NodeList entries = doc.getElementsByTagName("Deployment");
-
-                            for (int l = 0; l < entries.getLength(); l++) {
-                                parseStatus(ctx, regionId, service + ":" + deploymentName, entries.item(l), status);
-                            }
-                        }
-                    }
-                }
-            }
+        else if( "Stopped".equalsIgnoreCase(powerStatus) ) {
+            return VmState.STOPPED;
         }
+        else if( "Stopping".equalsIgnoreCase(powerStatus) ) {
+            return VmState.STOPPING;
+        }
+        else if( "Starting".equalsIgnoreCase(powerStatus) ) {
+            return VmState.PENDING;
+        }
+        return null;
     }
 
     @Override
@@ -1374,6 +1930,471 @@ public class AzureVM implements VirtualMachineSupport {
     
     }
 
+    /**
+     * Starts a virtual machine without waiting for Azure to finish starting it.
+     * @param vmId the virtual machine to start
+     * @return a future that completes when Azure reports the start operation finished
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Future<Void> startAsync(@Nonnull String vmId) throws CloudException, InternalException {
+        return roleOperationAsync(vmId, "StartRoleOperation");
+    }
+
+    /**
+     * Stops a virtual machine without waiting for Azure to finish stopping it.
+     * @param vmId the virtual machine to stop
+     * @param force ignored; Azure always performs a shutdown
+     * @return a future that completes when Azure reports the shutdown operation finished
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Future<Void> stopAsync(@Nonnull String vmId, boolean force) throws CloudException, InternalException {
+        return roleOperationAsync(vmId, "ShutdownRoleOperation");
+    }
+
+    /**
+     * Reboots a virtual machine without waiting for Azure to finish restarting it.
+     * @param vmId the virtual machine to reboot
+     * @return a future that completes when Azure reports the restart operation finished
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Future<Void> rebootAsync(@Nonnull String vmId) throws CloudException, InternalException {
+        return roleOperationAsync(vmId, "RestartRoleOperation");
+    }
+
+    /**
+     * Terminates a virtual machine without blocking. If the deployment holds other roles, only the role is deleted;
+     * otherwise the deployment and then its hosted service are deleted. If the deployment cannot be found, the
+     * future fails and nothing is deleted. Conflicts with operations already in progress on the deployment are
+     * retried by the tracker.
+     * @param vmId the virtual machine to terminate
+     * @return a future that completes when Azure reports the last delete finished
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Future<Void> terminateAsync(@Nonnull final String vmId) throws CloudException, InternalException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was set for this request");
+        }
+        String[] parts = parseVmId(vmId);
+        final String serviceName = parts[0];
+        final String deploymentResource = HOSTED_SERVICES + "/" + serviceName + "/deployments/" + parts[1];
+        final String roleResource = deploymentResource + "/roles/" + parts[2];
+        final boolean[] roleOnly = new boolean[] { false };
+
+        if( logger.isInfoEnabled() ) {
+            logger.info("Terminating " + vmId);
+        }
+        AzureOperationTracker.Step deleteDeployment = new AzureOperationTracker.Step() {
+            public String execute(@Nonnull AzureMethod method) throws CloudException, InternalException {
+                Document doc = method.getAsXML(ctx.getAccountNumber(), deploymentResource);
+
+                if( doc == null ) {
+                    // fails the operation, so the hosted service is left alone
+                    throw new CloudException("No such virtual machine: " + vmId);
+                }
+                if( doc.getElementsByTagName("Role").getLength() > 1 ) {
+                    roleOnly[0] = true;
+                    return method.invoke("DELETE", ctx.getAccountNumber(), roleResource, "");
+                }
+                return method.invoke("DELETE", ctx.getAccountNumber(), deploymentResource, "");
+            }
+        };
+        AzureOperationTracker.Step deleteService = new AzureOperationTracker.Step() {
+            public String execute(@Nonnull AzureMethod method) throws CloudException, InternalException {
+                if( roleOnly[0] ) {
+                    return null;
+                }
+                return method.invoke("DELETE", ctx.getAccountNumber(), HOSTED_SERVICES + "/" + serviceName, "");
+            }
+        };
+        return AzureOperationTracker.track(new AzureMethod(provider), CalendarWrapper.MINUTE * 20L, deleteDeployment, deleteService);
+    }
+
+    /**
+     * Terminates many virtual machines at once. The virtual machines are grouped by hosted service and each hosted
+     * service is torn down on one thread of a pool of at most <code>concurrency</code> threads, so that number of
+     * services is worked on at a time while the deletions within a service are issued one after another. When every
+     * role of a deployment is being terminated, the whole deployment is deleted in one request. Otherwise the roles
+     * are deleted one at a time. A hosted service is deleted once all its deployments are gone. The OS disks of the
+     * terminated virtual machines, and their VHD blobs, are then deleted by the operation tracker without holding a
+     * pool thread, retrying while Azure still reports them in use.
+     * @param vmIds the virtual machines to terminate
+     * @param concurrency the number of threads tearing down hosted services, one service per thread at a time
+     * @return a future per virtual machine that completes once the virtual machine is gone
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Map<String,Future<Void>> terminateMany(@Nonnull Collection<String> vmIds, @Nonnegative int concurrency) throws CloudException, InternalException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was set for this request");
+        }
+        HashMap<String,Future<Void>> outcomes = new HashMap<String, Future<Void>>();
+        HashMap<String,Map<String,AzureFuture<Void>>> services = new HashMap<String, Map<String,AzureFuture<Void>>>();
+
+        for( String vmId : vmIds ) {
+            String[] parts = parseVmId(vmId);
+            Map<String,AzureFuture<Void>> vms = services.get(parts[0]);
+
+            if( vms == null ) {
+                vms = new HashMap<String, AzureFuture<Void>>();
+                services.put(parts[0], vms);
+            }
+            AzureFuture<Void> outcome = new AzureFuture<Void>();
+
+            vms.put(vmId, outcome);
+            outcomes.put(vmId, outcome);
+        }
+        if( services.isEmpty() ) {
+            return outcomes;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, services.size())), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Azure VM terminate");
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            for( final Map.Entry<String,Map<String,AzureFuture<Void>>> service : services.entrySet() ) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            teardownService(ctx, service.getKey(), service.getValue());
+                        }
+                        catch( Throwable t ) {
+                            logger.error("Failed to tear down " + service.getKey() + ": " + t.getMessage());
+                            for( AzureFuture<Void> outcome : service.getValue().values() ) {
+                                outcome.fail(t);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        return outcomes;
+    }
+
+    private void teardownService(@Nonnull final ProviderContext ctx, @Nonnull final String serviceName, @Nonnull Map<String,AzureFuture<Void>> vms) throws CloudException, InternalException {
+        AzureMethod method = new AzureMethod(provider);
+        Document doc = method.getAsXML(ctx.getAccountNumber(), HOSTED_SERVICES + "/" + serviceName + "?embed-detail=true");
+
+        if( doc == null ) {
+            for( Map.Entry<String,AzureFuture<Void>> vm : vms.entrySet() ) {
+                vm.getValue().fail(new CloudException("No such virtual machine: " + vm.getKey()));
+            }
+            return;
+        }
+        HashMap<String,AzureFuture<Void>> pending = new HashMap<String, AzureFuture<Void>>();
+
+        for( Map.Entry<String,AzureFuture<Void>> vm : vms.entrySet() ) {
+            String[] parts = parseVmId(vm.getKey());
+
+            pending.put(parts[1] + ":" + parts[2], vm.getValue());
+        }
+        ArrayList<String> disks = new ArrayList<String>();
+        NodeList deployments = doc.getElementsByTagName("Deployment");
+        // the service only goes once a deployment of ours was really deleted and nothing else is left in it
+        boolean deleted = false;
+        boolean remaining = false;
+
+        for( int i=0; i<deployments.getLength(); i++ ) {
+            Node deployment = deployments.item(i);
+            String deploymentName = null;
+            HashMap<String,String> roles = new HashMap<String, String>();
+            NodeList attributes = deployment.getChildNodes();
+
+            for( int j=0; j<attributes.getLength(); j++ ) {
+                Node attribute = attributes.item(j);
+
+                if( attribute.getNodeName().equalsIgnoreCase("Name") && attribute.hasChildNodes() ) {
+                    deploymentName = attribute.getFirstChild().getNodeValue().trim();
+                }
+                else if( attribute.getNodeName().equalsIgnoreCase("RoleList") && attribute.hasChildNodes() ) {
+                    parseRoleDisks(attribute, roles);
+                }
+            }
+            if( deploymentName == null || roles.isEmpty() ) {
+                remaining = true;
+                continue;
+            }
+            ArrayList<String> targets = new ArrayList<String>();
+
+            for( String roleName : roles.keySet() ) {
+                if( pending.containsKey(deploymentName + ":" + roleName) ) {
+                    targets.add(roleName);
+                }
+            }
+            if( targets.size() < roles.size() ) {
+                remaining = true;
+            }
+            if( targets.isEmpty() ) {
+                continue;
+            }
+            final String resourceDir = HOSTED_SERVICES + "/" + serviceName + "/deployments/" + deploymentName;
+            ReentrantLock lock = getDeploymentLock(ctx.getAccountNumber(), serviceName, deploymentName);
+
+            lock.lock();
+            try {
+                if( targets.size() == roles.size() ) {
+                    if( logger.isInfoEnabled() ) {
+                        logger.info("Deleting deployment " + serviceName + ":" + deploymentName);
+                    }
+                    Throwable error = await(AzureOperationTracker.track(method, CalendarWrapper.MINUTE * 20L, new AzureOperationTracker.Step() {
+                        public String execute(@Nonnull AzureMethod m) throws CloudException, InternalException {
+                            return m.invoke("DELETE", ctx.getAccountNumber(), resourceDir, "");
+                        }
+                    }));
+
+                    if( error == null ) {
+                        deleted = true;
+                    }
+                    else {
+                        remaining = true;
+                    }
+                    for( String roleName : targets ) {
+                        finish(pending.remove(deploymentName + ":" + roleName), error, disks, roles.get(roleName));
+                    }
+                }
+                else {
+                    for( final String roleName : targets ) {
+                        if( logger.isInfoEnabled() ) {
+                            logger.info("Deleting role " + serviceName + ":" + deploymentName + ":" + roleName);
+                        }
+                        Throwable error = await(AzureOperationTracker.track(method, CalendarWrapper.MINUTE * 20L, new AzureOperationTracker.Step() {
+                            public String execute(@Nonnull AzureMethod m) throws CloudException, InternalException {
+                                return m.invoke("DELETE", ctx.getAccountNumber(), resourceDir + "/roles/" + roleName, "");
+                            }
+                        }));
+
+                        finish(pending.remove(deploymentName + ":" + roleName), error, disks, roles.get(roleName));
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        for( Map.Entry<String,AzureFuture<Void>> vm : pending.entrySet() ) {
+            vm.getValue().fail(new CloudException("No such virtual machine: " + serviceName + ":" + vm.getKey()));
+        }
+        if( deleted && !remaining ) {
+            if( logger.isInfoEnabled() ) {
+                logger.info("Deleting hosted service " + serviceName);
+            }
+            Throwable error = await(AzureOperationTracker.track(method, CalendarWrapper.MINUTE * 10L, new AzureOperationTracker.Step() {
+                public String execute(@Nonnull AzureMethod m) throws CloudException, InternalException {
+                    return m.invoke("DELETE", ctx.getAccountNumber(), HOSTED_SERVICES + "/" + serviceName, "");
+                }
+            }));
+
+            if( error != null ) {
+                logger.warn("Unable to delete hosted service for " + serviceName + ": " + error.getMessage());
+            }
+        }
+        for( final String disk : disks ) {
+            AzureOperationTracker.track(method, CalendarWrapper.MINUTE * 30L, new AzureOperationTracker.Step() {
+                public String execute(@Nonnull AzureMethod m) throws CloudException, InternalException {
+                    return m.invoke("DELETE", ctx.getAccountNumber(), "/services/disks/" + disk + "?comp=media", "");
+                }
+
+                @Override
+                public boolean isRetryable(@Nonnull CloudException e) {
+                    // the disk stays attached for a while after its role is gone
+                    return (super.isRetryable(e) || isDiskInUse(e));
+                }
+            });
+        }
+    }
+
+    /**
+     * Tells whether the deletion of a disk failed only because the disk is still attached to, or leased by, the role
+     * that used it. Any other error, including other bad requests, is final.
+     * @param e the error
+     * @return true if the deletion may succeed once the role has let go of the disk
+     */
+    static boolean isDiskInUse(@Nonnull CloudException e) {
+        String code = e.getProviderCode();
+
+        if( code == null ) {
+            return false;
+        }
+        for( String lease : DISK_LEASE_CODES ) {
+            if( lease.equals(code) ) {
+                return true;
+            }
+        }
+        if( e.getHttpCode() == HttpServletResponse.SC_BAD_REQUEST && code.equals("BadRequest") ) {
+            String message = e.getMessage();
+
+            return (message != null && message.contains("is currently in use"));
+        }
+        return false;
+    }
+
+    /**
+     * Reads the OS disk name of each role in a RoleList.
+     * @param roleList the RoleList node
+     * @param roles the map into which role names and their OS disk names (if known) are placed
+     */
+    private void parseRoleDisks(@Nonnull Node roleList, @Nonnull Map<String,String> roles) {
+        NodeList entries = roleList.getChildNodes();
+
+        for( int i=0; i<entries.getLength(); i++ ) {
+            Node role = entries.item(i);
+
+            if( role.getNodeType() == Node.TEXT_NODE || !role.hasChildNodes() ) {
+                continue;
+            }
+            NodeList attributes = role.getChildNodes();
+            String roleName = null;
+            String diskName = null;
+
+            for( int j=0; j<attributes.getLength(); j++ ) {
+                Node attribute = attributes.item(j);
+
+                if( attribute.getNodeName().equalsIgnoreCase("RoleName") && attribute.hasChildNodes() ) {
+                    roleName = attribute.getFirstChild().getNodeValue().trim();
+                }
+                else if( attribute.getNodeName().equalsIgnoreCase("OSVirtualHardDisk") && attribute.hasChildNodes() ) {
+                    NodeList disk = attribute.getChildNodes();
+
+                    for( int k=0; k<disk.getLength(); k++ ) {
+                        Node d = disk.item(k);
+
+                        if( d.getNodeName().equalsIgnoreCase("DiskName") && d.hasChildNodes() ) {
+                            diskName = d.getFirstChild().getNodeValue().trim();
+                        }
+                    }
+                }
+            }
+            if( roleName != null ) {
+                roles.put(roleName, diskName);
+            }
+        }
+    }
+
+    private @Nullable Throwable await(@Nonnull Future<Void> operation) {
+        try {
+            operation.get();
+            return null;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return e;
+        }
+        catch( ExecutionException e ) {
+            return e.getCause();
+        }
+    }
+
+    private void finish(@Nonnull AzureFuture<Void> outcome, @Nullable Throwable error, @Nonnull List<String> disks, @Nullable String diskName) {
+        if( error == null ) {
+            if( diskName != null ) {
+                disks.add(diskName);
+            }
+            outcome.complete(null);
+        }
+        else {
+            outcome.fail(error);
+        }
+    }
+
+    private @Nonnull Future<Void> roleOperationAsync(@Nonnull String vmId, @Nonnull String operationType) throws CloudException, InternalException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was set for this request");
+        }
+        String[] parts = parseVmId(vmId);
+        final String resourceDir = HOSTED_SERVICES + "/" + parts[0] + "/deployments/" +  parts[1] + "/roleInstances/" + parts[2] + "/Operations";
+        final StringBuilder xml = new StringBuilder();
+
+        xml.append("<").append(operationType).append(" xmlns=\"http://schemas.microsoft.com/windowsazure\" xmlns:i=\"http://www.w3.org/2001/XMLSchema-instance\">");
+        xml.append("<OperationType>").append(operationType).append("</OperationType>");
+        xml.append("</").append(operationType).append(">");
+
+        if( logger.isInfoEnabled() ) {
+            logger.info(operationType + " for " + vmId);
+        }
+        return AzureOperationTracker.track(new AzureMethod(provider), CalendarWrapper.MINUTE * 10L, new AzureOperationTracker.Step() {
+            public String execute(@Nonnull AzureMethod method) throws CloudException, InternalException {
+                return method.post(ctx.getAccountNumber(), resourceDir, xml.toString());
+            }
+        });
+    }
+
+    /**
+     * Splits a virtual machine ID into its hosted service, deployment and role names.
+     * @param vmId the virtual machine ID
+     * @return the service name, deployment name and role name
+     */
+    static @Nonnull String[] parseVmId(@Nonnull String vmId) {
+        String[] parts = vmId.split(":");
+
+        if( parts.length == 3 ) {
+            return parts;
+        }
+        else if( parts.length == 2 ) {
+            return new String[] { parts[0], parts[1], parts[0] };
+        }
+        return new String[] { vmId, vmId, vmId };
+    }
+
+    /**
+     * Waits for a virtual machine to reach the specified state. Waiters share one periodic status sweep per account
+     * and region, so many concurrent waiters cost no more API calls than one.
+     * @param vmId the virtual machine to watch
+     * @param state the desired state; a virtual machine that no longer exists is {@link VmState#TERMINATED}
+     * @param deadline the time (in milliseconds since the epoch) at which to give up
+     * @return true if the state was reached, false if the deadline passed first
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public boolean waitForState(@Nonnull String vmId, @Nonnull VmState state, long deadline) throws CloudException, InternalException {
+        return awaitState(vmId, deadline, state);
+    }
+
+    /**
+     * Registers a waiter for a virtual machine state without blocking.
+     * @param vmId the virtual machine to watch
+     * @param state the desired state; a virtual machine that no longer exists is {@link VmState#TERMINATED}
+     * @param deadline the time (in milliseconds since the epoch) at which to give up
+     * @return a future that completes with true if the state was reached, or false if the deadline passed first
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Future<Boolean> waitForStateAsync(@Nonnull String vmId, @Nonnull VmState state, long deadline) throws CloudException, InternalException {
+        return AzureVMStateWaiter.getInstance(provider).register(provider, vmId, deadline, state);
+    }
+
+    private boolean awaitState(@Nonnull String vmId, long deadline, @Nonnull VmState ... states) throws CloudException, InternalException {
+        Future<Boolean> waiter = AzureVMStateWaiter.getInstance(provider).register(provider, vmId, deadline, states);
+
+        try {
+            return waiter.get();
+        }
+        catch( InterruptedException e ) {
+            waiter.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            throw new InternalException(e.getCause());
+        }
+    }
+
     @Override
     public void resume(@Nonnull String vmId) throws CloudException, InternalException {
         throw new OperationNotSupportedException("Suspend/resume is not supported in Microsoft Azure");
@@ -1482,17 +2503,11 @@ public class AzureVM implements VirtualMachineSupport {
             }
             long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
 
-            while( timeout > System.currentTimeMillis() ) {
-                if( vm == null || VmState.TERMINATED.equals(vm.getCurrentState()) ) {
-                    return;
-                }
-                if( !VmState.PENDING.equals(vm.getCurrentState()) && !VmState.STOPPING.equals(vm.getCurrentState()) ) {
-                    break;
-                }
-                try { Thread.sleep(15000L); }
-                catch( InterruptedException ignore ) { }
-                try { vm = getVirtualMachine(vmId); }
-                catch( Throwable ignore ) { }
+            if( VmState.TERMINATED.equals(vm.getCurrentState()) ) {
+                return;
+            }
+            if( VmState.PENDING.equals(vm.getCurrentState()) || VmState.STOPPING.equals(vm.getCurrentState()) ) {
+                awaitState(vmId, timeout, VmState.RUNNING, VmState.STOPPED, VmState.TERMINATED);
             }
             ProviderContext ctx = provider.getContext();
 
@@ -1520,6 +2535,9 @@ public class AzureVM implements VirtualMachineSupport {
             String resourceDir = HOSTED_SERVICES + "/" + serviceName + "/deployments/" +  deploymentName;
             AzureMethod method = new AzureMethod(provider);
 
+            if( deleteRole(ctx, method, serviceName, deploymentName, roleName) ) {
+                return;
+            }
             timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE*10L);
             while( timeout > System.currentTimeMillis() ) {
                 if( logger.isInfoEnabled() ) {
@@ -1540,16 +2558,7 @@ public class AzureVM implements VirtualMachineSupport {
                 }
             }
 
-            timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE*10L);
-            while( timeout > System.currentTimeMillis() ) {
-                if( vm == null || VmState.TERMINATED.equals(vm.getCurrentState()) ) {
-                    break;
-                }
-                try { Thread.sleep(15000L); }
-                catch( InterruptedException ignore ) { }
-                try { vm = getVirtualMachine(vmId); }
-                catch( Throwable ignore ) { }
-            }
+            waitForState(vmId, VmState.TERMINATED, System.currentTimeMillis() + (CalendarWrapper.MINUTE*10L));
 
             resourceDir = HOSTED_SERVICES + "/" + serviceName;
             timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
@@ -1584,6 +2593,55 @@ public class AzureVM implements VirtualMachineSupport {
         }
     }
 
+    /**
+     * Removes just the role when the deployment holds other roles, so that terminating one member of a scaled-out
+     * deployment does not take down the whole deployment.
+     * @return true if the deployment had other roles and the role was deleted, false if the whole deployment should go
+     */
+    private boolean deleteRole(@Nonnull ProviderContext ctx, @Nonnull AzureMethod method, @Nonnull String serviceName, @Nonnull String deploymentName, @Nonnull String roleName) throws CloudException, InternalException {
+        String resourceDir = HOSTED_SERVICES + "/" + serviceName + "/deployments/" +  deploymentName;
+        ReentrantLock lock = getDeploymentLock(ctx.getAccountNumber(), serviceName, deploymentName);
+
+        lock.lock();
+        try {
+            Document doc = method.getAsXML(ctx.getAccountNumber(), resourceDir);
+
+            if( doc == null || doc.getElementsByTagName("Role").getLength() < 2 ) {
+                return false;
+            }
+            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE*10L);
+
+            while( true ) {
+                try {
+                    if( logger.isInfoEnabled() ) {
+                        logger.info("Deleting role " + roleName + " from " + serviceName + ":" + deploymentName);
+                    }
+                    String requestId = method.invoke("DELETE", ctx.getAccountNumber(), resourceDir + "/roles/" + roleName, "");
+
+                    if( requestId != null && waitForOperation(method, requestId, timeout) != HttpServletResponse.SC_OK ) {
+                        throw new CloudException("Timed out waiting for role " + roleName + " to be deleted from " + serviceName + ":" + deploymentName);
+                    }
+                    return true;
+                }
+                catch( CloudException e ) {
+                    if( e.getProviderCode() != null && e.getProviderCode().equals("ConflictError") && timeout > System.currentTimeMillis() ) {
+                        logger.warn("Conflict error, maybe retrying in 30 seconds");
+                        try { Thread.sleep(30000L); }
+                        catch( InterruptedException interrupted ) {
+                            Thread.currentThread().interrupt();
+                            throw new InternalException(interrupted);
+                        }
+                        continue;
+                    }
+                    throw e;
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void unpause(@Nonnull String vmId) throws CloudException, InternalException {
         throw new OperationNotSupportedException("Pause/unpause is not supported in Microsoft Azure");
@@ -1600,15 +2658,86 @@ public class AzureVM implements VirtualMachineSupport {
     }
 
     private @Nonnull String toUniqueId(@Nonnull String name) throws CloudException, InternalException {
-        name = name.toLowerCase().replaceAll(" ", "");
+        return new AzureHostedServiceNames(provider).allocate(name);
+    }
+
+    /**
+     * A virtual machine whose hosted service and deployment have been requested but which may not be up yet.
+     */
+    static private class Provisioned {
+        public String hostName;
+        public String password;
+        public String requestId;
+        public String vmId;
+    }
+
+    /**
+     * Launch inputs that are the same for every virtual machine in a batch and so are looked up only once. Each
+     * kind of input is guarded separately so that different inputs can be resolved concurrently.
+     */
+    private class LaunchInputs {
+        private final Object affinityLock = new Object();
+        private final Object storageLock  = new Object();
+        private String affinityGroup;
+        private final HashMap<String,AzureMachineImage> images = new HashMap<String, AzureMachineImage>();
+        private final HashMap<String,String[]> networks = new HashMap<String, String[]>();
+        private String storageEndpoint;
+
+        @Nonnull String getAffinityGroup() throws CloudException, InternalException {
+            synchronized( affinityLock ) {
+                if( affinityGroup == null ) {
+                    affinityGroup = provider.getAffinityGroup();
+                }
+                return affinityGroup;
+            }
+        }
+
+        @Nonnull AzureMachineImage getImage(@Nonnull String imageId) throws CloudException, InternalException {
+            synchronized( images ) {
+                AzureMachineImage image = images.get(imageId);
+
+                if( image == null ) {
+                    image = (AzureMachineImage)provider.getComputeServices().getImageSupport().getImage(imageId);
+                    if( image == null ) {
+                        throw new CloudException("No such image: " + imageId);
+                    }
+                    images.put(imageId, image);
+                }
+                return image;
+            }
+        }
+
+        /**
+         * @param subnetId the subnet into which the virtual machine is launched, if any
+         * @return the subnet name and virtual network name, or null if no subnet was specified
+         */
+        @Nullable String[] getNetwork(@Nullable String subnetId) throws CloudException, InternalException {
+            if( subnetId == null ) {
+                return null;
+            }
+            synchronized( networks ) {
+                String[] network = networks.get(subnetId);
+
+                if( network == null ) {
+                    Subnet subnet = provider.getNetworkServices().getVlanSupport().getSubnet(subnetId);
 
-        String id = name;
-        int i = 0;
+                    if( subnet == null ) {
+                        throw new CloudException("No such subnet: " + subnetId);
+                    }
+                    network = new String[] { subnet.getName(), provider.getNetworkServices().getVlanSupport().getVlan(subnet.getProviderVlanId()).getName() };
+                    networks.put(subnetId, network);
+                }
+                return network;
+            }
+        }
 
-        while( getVirtualMachine(id) != null ) {
-            i++;
-            id = name + "-" + i;
+        @Nonnull String getStorageEndpoint() throws CloudException, InternalException {
+            synchronized( storageLock ) {
+                if( storageEndpoint == null ) {
+                    storageEndpoint = provider.getStorageEndpoint();
+                }
+                return storageEndpoint;
+            }
         }
-        return id;
     }
 }
@@ -0,0 +1,168 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import org.dasein.cloud.compute.VMFilterOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a virtual machine filter that can be evaluated at each level of the hosted service
+ * sweep. The regular expression is compiled once per listing, and hosted services, deployments and role
+ * instances that cannot possibly match are rejected before any further documents are fetched for them.
+ * <p>
+ * Early rejection is only performed when all criteria must match. When the options ask for a match on any
+ * criterion, everything is fetched and the complete virtual machine is checked at the end.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureVMFilter {
+    static private final AzureVMFilter NONE = new AzureVMFilter(null, Collections.<String,String>emptyMap(), false, null);
+
+    static @Nonnull AzureVMFilter getInstance(@Nullable VMFilterOptions options, @Nullable VmState ... states) {
+        Set<VmState> stateSet = null;
+
+        if( states != null && states.length > 0 ) {
+            stateSet = EnumSet.noneOf(VmState.class);
+            for( VmState state : states ) {
+                if( state != null ) {
+                    stateSet.add(state);
+                }
+            }
+            if( stateSet.isEmpty() ) {
+                stateSet = null;
+            }
+        }
+        if( options == null ) {
+            if( stateSet == null ) {
+                return NONE;
+            }
+            return new AzureVMFilter(null, Collections.<String,String>emptyMap(), false, stateSet);
+        }
+        String regex = options.getRegex();
+        Map<String,String> tags = options.getTags();
+
+        return new AzureVMFilter((regex == null ? null : Pattern.compile(regex)), (tags == null ? Collections.<String,String>emptyMap() : new HashMap<String,String>(tags)), options.isMatchesAny(), stateSet);
+    }
+
+    private final Pattern           pattern;
+    private final Map<String,String> tags;
+    private final boolean           matchesAny;
+    private final Set<VmState>      states;
+
+    private AzureVMFilter(@Nullable Pattern pattern, @Nonnull Map<String,String> tags, boolean matchesAny, @Nullable Set<VmState> states) {
+        this.pattern = pattern;
+        this.tags = tags;
+        this.matchesAny = matchesAny;
+        this.states = states;
+    }
+
+    boolean hasCriteria() {
+        return (pattern != null || !tags.isEmpty() || states != null);
+    }
+
+    private boolean canPrune() {
+        return (!matchesAny && hasCriteria());
+    }
+
+    /**
+     * Tests the hosted service itself. Only the <code>serviceName</code> tag can be decided at this level.
+     * @param serviceName the name of the hosted service
+     * @return false if no virtual machine in the service can match
+     */
+    boolean acceptsService(@Nonnull String serviceName) {
+        if( !canPrune() ) {
+            return true;
+        }
+        return tagMatches("serviceName", serviceName);
+    }
+
+    /**
+     * Tests a deployment using the summary found in the hosted service detail, before the deployment itself
+     * is fetched.
+     * @param deploymentName the deployment name
+     * @param deploymentSlot the deployment slot (Production or Staging), if known
+     * @param roles the role names in the deployment mapped to their current state (null if unknown)
+     * @return false if no virtual machine in the deployment can match
+     */
+    boolean acceptsDeployment(@Nonnull String deploymentName, @Nullable String deploymentSlot, @Nonnull Map<String,VmState> roles) {
+        if( !canPrune() ) {
+            return true;
+        }
+        if( !tagMatches("deploymentName", deploymentName) ) {
+            return false;
+        }
+        if( deploymentSlot != null && !tagMatches("environment", deploymentSlot) ) {
+            return false;
+        }
+        if( roles.isEmpty() ) {
+            return true;
+        }
+        for( Map.Entry<String,VmState> role : roles.entrySet() ) {
+            if( acceptsRole(role.getKey(), role.getValue()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests a role from the deployment summary. The role name is the one the <code>roleName</code> tag of the parsed
+     * virtual machine carries, so pruning here never rejects a role that {@link #matches(VirtualMachine)} accepts.
+     */
+    private boolean acceptsRole(@Nonnull String roleName, @Nullable VmState state) {
+        if( pattern != null && !pattern.matcher(roleName).matches() ) {
+            return false;
+        }
+        if( !tagMatches("roleName", roleName) ) {
+            return false;
+        }
+        return (states == null || state == null || states.contains(state));
+    }
+
+    /**
+     * Final check against a fully parsed virtual machine.
+     * @param vm the virtual machine to test
+     * @return true if the virtual machine passes this filter
+     */
+    boolean matches(@Nonnull VirtualMachine vm) {
+        if( !hasCriteria() ) {
+            return true;
+        }
+        if( states != null && !states.contains(vm.getCurrentState()) ) {
+            return false;
+        }
+        boolean regexMatches = (pattern == null || (vm.getName() != null && pattern.matcher(vm.getName()).matches()));
+        boolean tagsMatch = true;
+
+        for( Map.Entry<String,String> tag : tags.entrySet() ) {
+            Object value = vm.getTag(tag.getKey());
+
+            if( value == null || !value.toString().equals(tag.getValue()) ) {
+                tagsMatch = false;
+                break;
+            }
+        }
+        if( matchesAny ) {
+            if( pattern == null && tags.isEmpty() ) {
+                return true;
+            }
+            return ((pattern != null && regexMatches) || (!tags.isEmpty() && tagsMatch));
+        }
+        return (regexMatches && tagsMatch);
+    }
+
+    private boolean tagMatches(@Nonnull String key, @Nonnull String value) {
+        String expected = tags.get(key);
+
+        return (expected == null || expected.equals(value));
+    }
+}
@@ -0,0 +1,234 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureFuture;
+import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared registry of threads waiting on virtual machine state changes. All waiters for the same account, credentials
+ * and region are served from one periodic status sweep, so the cost per interval does not depend on the number of waiters.
+ * When only a handful of hosted services are involved, just those services are swept. Polling speeds up while any
+ * watched virtual machine is in a transitional state and slows down again once everything is at rest. Each sweep is
+ * made through the provider of the most recent waiter, so no provider is held beyond the waits it registered. The
+ * scheduler only keeps time; the sweeps themselves run on a separate pool, so a slow subscription does not hold up
+ * the sweeps of the others.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureVMStateWaiter {
+    static private final Logger logger = Azure.getLogger(AzureVMStateWaiter.class);
+
+    static private final long FAST_INTERVAL         = 3000L;
+    static private final long IDLE_TIME             = 60000L;
+    static private final int  MAX_SWEEPS            = 8;
+    static private final int  MAX_TARGETED_SERVICES = 4;
+    static private final long SLOW_INTERVAL         = 15000L;
+
+    static private final ConcurrentHashMap<String,AzureVMStateWaiter> registry = new ConcurrentHashMap<String, AzureVMStateWaiter>();
+
+    static private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure VM state waiter");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Runs the sweeps handed over by the scheduler. Each waiter has at most one sweep outstanding, so up to
+     * {@link #MAX_SWEEPS} subscriptions are swept at the same time and the rest queue. This is kept apart from the
+     * executor of {@link AzureVMStatusSweep}, which a sweep itself waits on. Idle threads exit.
+     */
+    static private final ThreadPoolExecutor sweeper = new ThreadPoolExecutor(MAX_SWEEPS, MAX_SWEEPS, IDLE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure VM state sweep");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        sweeper.allowCoreThreadTimeOut(true);
+    }
+
+    static @Nonnull AzureVMStateWaiter getInstance(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        String key = ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + AzureMethod.getCredentialKey(ctx) + "|" + ctx.getRegionId();
+        AzureVMStateWaiter waiter = registry.get(key);
+
+        if( waiter == null ) {
+            waiter = new AzureVMStateWaiter();
+
+            AzureVMStateWaiter existing = registry.putIfAbsent(key, waiter);
+
+            if( existing != null ) {
+                waiter = existing;
+            }
+        }
+        return waiter;
+    }
+
+    static private class Waiter extends AzureFuture<Boolean> {
+        public Azure        provider;
+        public long         deadline;
+        public Set<VmState> states;
+        public String       vmId;
+    }
+
+    private final ArrayList<Waiter> pending = new ArrayList<Waiter>();
+    private boolean                 scheduled = false;
+
+    private final Runnable sweep = new Runnable() {
+        public void run() {
+            sweep();
+        }
+    };
+
+    private final Runnable dispatch = new Runnable() {
+        public void run() {
+            sweeper.execute(sweep);
+        }
+    };
+
+    private AzureVMStateWaiter() { }
+
+    /**
+     * Registers a waiter.
+     * @param provider the provider of the caller, through which the virtual machine is swept
+     * @param vmId the virtual machine to watch
+     * @param deadline the time at which to give up
+     * @param states the states that satisfy the waiter; a virtual machine that has disappeared is
+     *               {@link VmState#TERMINATED}
+     * @return a future that completes with true when the virtual machine reaches one of the states, or false if the
+     * deadline passes first
+     */
+    @Nonnull AzureFuture<Boolean> register(@Nonnull Azure provider, @Nonnull String vmId, long deadline, @Nonnull VmState ... states) {
+        String[] parts = AzureVM.parseVmId(vmId);
+        Waiter waiter = new Waiter();
+
+        waiter.provider = provider;
+        waiter.vmId = parts[0] + ":" + parts[1] + ":" + parts[2];
+        waiter.deadline = deadline;
+        waiter.states = EnumSet.noneOf(VmState.class);
+        for( VmState state : states ) {
+            waiter.states.add(state);
+        }
+        synchronized( this ) {
+            pending.add(waiter);
+            if( !scheduled ) {
+                scheduled = true;
+                scheduler.schedule(dispatch, FAST_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        return waiter;
+    }
+
+    private void sweep() {
+        ArrayList<Waiter> current;
+
+        synchronized( this ) {
+            current = new ArrayList<Waiter>(pending);
+        }
+        HashMap<String,VmState> states = null;
+        boolean transitioning = false;
+
+        try {
+            HashSet<String> services = new HashSet<String>();
+            Azure provider = null;
+
+            for( Waiter waiter : current ) {
+                if( !waiter.isDone() ) {
+                    services.add(waiter.vmId.substring(0, waiter.vmId.indexOf(':')));
+                    provider = waiter.provider;
+                }
+            }
+            if( provider != null ) {
+                AzureVMStatusSweep statusSweep = new AzureVMStatusSweep(provider);
+                List<ResourceStatus> status;
+
+                if( services.size() <= MAX_TARGETED_SERVICES ) {
+                    status = new ArrayList<ResourceStatus>();
+                    for( String service : services ) {
+                        status.addAll(statusSweep.sweep(service));
+                    }
+                }
+                else {
+                    status = statusSweep.sweep();
+                }
+                states = new HashMap<String, VmState>();
+                for( ResourceStatus s : status ) {
+                    states.put(s.getProviderResourceId(), (VmState)s.getResourceStatus());
+                }
+            }
+        }
+        catch( Throwable t ) {
+            logger.warn("Virtual machine state sweep failed: " + t.getMessage());
+        }
+        long now = System.currentTimeMillis();
+
+        for( Waiter waiter : current ) {
+            if( waiter.isDone() ) {
+                continue;
+            }
+            if( states != null ) {
+                VmState state = states.get(waiter.vmId);
+
+                if( state == null ) {
+                    state = VmState.TERMINATED;
+                }
+                if( waiter.states.contains(state) ) {
+                    waiter.complete(true);
+                    continue;
+                }
+                if( VmState.PENDING.equals(state) || VmState.STOPPING.equals(state) || VmState.REBOOTING.equals(state) ) {
+                    transitioning = true;
+                }
+            }
+            if( now >= waiter.deadline ) {
+                waiter.complete(false);
+            }
+        }
+        synchronized( this ) {
+            Iterator<Waiter> it = pending.iterator();
+
+            while( it.hasNext() ) {
+                if( it.next().isDone() ) {
+                    it.remove();
+                }
+            }
+            if( pending.isEmpty() ) {
+                scheduled = false;
+                return;
+            }
+            scheduler.schedule(dispatch, (transitioning ? FAST_INTERVAL : SLOW_INTERVAL), TimeUnit.MILLISECONDS);
+        }
+    }
+}
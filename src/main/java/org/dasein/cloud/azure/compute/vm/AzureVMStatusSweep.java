@@ -0,0 +1,334 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status-only sweep of the virtual machines in the current region. Rather than building a DOM for every deployment
+ * as the full listing does, each hosted service is fetched once with its embedded detail and streamed through a
+ * StAX reader that only picks out the deployment names, role names and instance/power states. Hosted services are
+ * swept in parallel over the shared connection pool of {@link AzureMethod}.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureVMStatusSweep {
+    static private final Logger logger = Azure.getLogger(AzureVMStatusSweep.class);
+
+    static private final int  MAX_THREADS = 8;
+    static private final long IDLE_TIME   = 60000L;
+
+    static private final XMLInputFactory factory;
+
+    /**
+     * Shared by all sweeps, so concurrent sweeps together never hold more than {@link #MAX_THREADS} requests open.
+     * Idle threads exit, so the executor costs nothing between sweeps.
+     */
+    static private final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, IDLE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure VM status sweep");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private Azure provider;
+
+    AzureVMStatusSweep(@Nonnull Azure provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Sweeps all hosted services in the context region.
+     * @return the status of every virtual machine found
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull List<ResourceStatus> sweep() throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new AzureConfigException("No region ID was specified for this request");
+        }
+        AzureMethod method = new AzureMethod(provider);
+        InputStream input = method.getAsStream(ctx.getAccountNumber(), AzureVM.HOSTED_SERVICES);
+
+        if( input == null ) {
+            return Collections.emptyList();
+        }
+        List<String> services = parseServices(input, regionId);
+
+        if( services.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        if( services.size() == 1 ) {
+            return sweep(services.get(0));
+        }
+        ArrayList<Future<List<ResourceStatus>>> results = new ArrayList<Future<List<ResourceStatus>>>();
+
+        try {
+            for( final String service : services ) {
+                results.add(executor.submit(new Callable<List<ResourceStatus>>() {
+                    public List<ResourceStatus> call() throws CloudException, InternalException {
+                        return sweep(service);
+                    }
+                }));
+            }
+            ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+
+            for( Future<List<ResourceStatus>> result : results ) {
+                try {
+                    status.addAll(result.get());
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException(e);
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+
+                    if( cause instanceof CloudException ) {
+                        throw (CloudException)cause;
+                    }
+                    if( cause instanceof InternalException ) {
+                        throw (InternalException)cause;
+                    }
+                    throw new InternalException(cause);
+                }
+            }
+            return status;
+        }
+        finally {
+            // stops whatever is left of a failed sweep; a no-op for completed ones
+            for( Future<List<ResourceStatus>> result : results ) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Sweeps a single hosted service with one request for its embedded detail.
+     * @param serviceName the hosted service to sweep
+     * @return the status of every virtual machine in the hosted service
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull List<ResourceStatus> sweep(@Nonnull String serviceName) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        AzureMethod method = new AzureMethod(provider);
+        InputStream input = method.getAsStream(ctx.getAccountNumber(), AzureVM.HOSTED_SERVICES + "/" + serviceName + "?embed-detail=true");
+
+        if( input == null ) {
+            return Collections.emptyList();
+        }
+        return parseStatus(input, serviceName);
+    }
+
+    private @Nonnull List<String> parseServices(@Nonnull InputStream input, @Nonnull String regionId) throws CloudException {
+        ArrayList<String> services = new ArrayList<String>();
+        ArrayList<String> path = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+        String service = null;
+        String location = null;
+
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(input);
+
+            try {
+                while( reader.hasNext() ) {
+                    int event = reader.next();
+
+                    if( event == XMLStreamConstants.START_ELEMENT ) {
+                        path.add(reader.getLocalName());
+                        text.setLength(0);
+                    }
+                    else if( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA ) {
+                        text.append(reader.getText());
+                    }
+                    else if( event == XMLStreamConstants.END_ELEMENT ) {
+                        String name = path.remove(path.size()-1);
+                        String parent = (path.isEmpty() ? "" : path.get(path.size()-1));
+
+                        if( name.equalsIgnoreCase("ServiceName") && parent.equalsIgnoreCase("HostedService") ) {
+                            service = text.toString().trim();
+                        }
+                        else if( name.equalsIgnoreCase("Location") && parent.equalsIgnoreCase("HostedServiceProperties") ) {
+                            location = text.toString().trim();
+                        }
+                        else if( name.equalsIgnoreCase("HostedService") ) {
+                            if( service != null && (location == null || regionId.equals(location)) ) {
+                                services.add(service);
+                            }
+                            service = null;
+                            location = null;
+                        }
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            close(input);
+        }
+        return services;
+    }
+
+    private @Nonnull List<ResourceStatus> parseStatus(@Nonnull InputStream input, @Nonnull String serviceName) throws CloudException {
+        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+        ArrayList<String[]> roles = new ArrayList<String[]>();
+        ArrayList<String> path = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+        String deploymentName = null;
+        String roleName = null;
+        String powerState = null;
+        String instanceStatus = null;
+
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(input);
+
+            try {
+                while( reader.hasNext() ) {
+                    int event = reader.next();
+
+                    if( event == XMLStreamConstants.START_ELEMENT ) {
+                        path.add(reader.getLocalName());
+                        text.setLength(0);
+                    }
+                    else if( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA ) {
+                        text.append(reader.getText());
+                    }
+                    else if( event == XMLStreamConstants.END_ELEMENT ) {
+                        String name = path.remove(path.size()-1);
+                        String parent = (path.isEmpty() ? "" : path.get(path.size()-1));
+
+                        if( parent.equalsIgnoreCase("RoleInstance") ) {
+                            if( name.equalsIgnoreCase("RoleName") ) {
+                                roleName = text.toString().trim();
+                            }
+                            else if( name.equalsIgnoreCase("PowerState") ) {
+                                powerState = text.toString().trim();
+                            }
+                            else if( name.equalsIgnoreCase("InstanceStatus") ) {
+                                instanceStatus = text.toString().trim();
+                            }
+                        }
+                        else if( name.equalsIgnoreCase("Name") && parent.equalsIgnoreCase("Deployment") ) {
+                            deploymentName = text.toString().trim();
+                        }
+                        else if( name.equalsIgnoreCase("RoleInstance") ) {
+                            if( roleName != null ) {
+                                roles.add(new String[] { roleName, powerState, instanceStatus });
+                            }
+                            roleName = null;
+                            powerState = null;
+                            instanceStatus = null;
+                        }
+                        else if( name.equalsIgnoreCase("Deployment") ) {
+                            if( deploymentName != null ) {
+                                for( String[] role : roles ) {
+                                    VmState state = toState(role[1], role[2]);
+
+                                    if( state != null ) {
+                                        status.add(new ResourceStatus(serviceName + ":" + deploymentName + ":" + role[0], state));
+                                    }
+                                }
+                            }
+                            roles.clear();
+                            deploymentName = null;
+                        }
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            close(input);
+        }
+        return status;
+    }
+
+    private @Nullable VmState toState(@Nullable String powerState, @Nullable String instanceStatus) {
+        if( powerState != null ) {
+            VmState state = AzureVM.toVmState(powerState);
+
+            if( state != null ) {
+                return state;
+            }
+        }
+        if( instanceStatus == null ) {
+            logger.warn("Unknown Azure status: " + powerState);
+            return null;
+        }
+        if( "ReadyRole".equalsIgnoreCase(instanceStatus) ) {
+            return VmState.RUNNING;
+        }
+        else if( "StoppedVM".equalsIgnoreCase(instanceStatus) ) {
+            return VmState.STOPPED;
+        }
+        else if( "StoppingVM".equalsIgnoreCase(instanceStatus) || "StoppingRole".equalsIgnoreCase(instanceStatus) ) {
+            return VmState.STOPPING;
+        }
+        return VmState.PENDING;
+    }
+
+    private void close(@Nonnull InputStream input) {
+        try {
+            input.close();
+        }
+        catch( IOException e ) {
+            logger.warn("Failed to close response stream: " + e.getMessage());
+        }
+    }
+}
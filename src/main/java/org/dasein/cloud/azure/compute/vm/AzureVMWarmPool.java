@@ -0,0 +1,418 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.util.CalendarWrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional pool of pre-provisioned, stopped virtual machines. Creating a deployment takes several minutes, while
+ * starting a stopped virtual machine takes a fraction of that. Once a pool is configured for a launch template,
+ * {@link AzureVM#launch(VMLaunchOptions)} hands out a pooled virtual machine for any launch that would have produced
+ * the same guest: the same image, product, VLAN, data center and host name, and no bootstrap user, key, password,
+ * firewalls or user data other than the template's. The hosted service is relabelled with the requested name and
+ * description, the virtual machine is started and returned with the credentials it was provisioned with. The pool
+ * is refilled in the background.
+ * <p>
+ * Pooled hosted services carry a marker in their description, so a pool picks up the virtual machines it left
+ * behind when it is configured again after a restart.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public final class AzureVMWarmPool {
+    static private final Logger logger = Azure.getLogger(AzureVMWarmPool.class);
+
+    static private final String MARKER          = "dasein-warm-pool ";
+    static private final int    MAX_THREADS     = 4;
+    static private final long   REFILL_INTERVAL = 60000L;
+    static private final String ROOT_USER       = "dasein";
+
+    static private final ConcurrentHashMap<String,Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+    static private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(MAX_THREADS, new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure VM warm pool");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for( Pool pool : pools.values() ) {
+                    pool.refill();
+                }
+            }
+        }, REFILL_INTERVAL, REFILL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private AzureVMWarmPool() { }
+
+    /**
+     * Configures the pool for a launch template, creating it if needed. Virtual machines in the pool are launched
+     * from the template as is, then stopped. Setting the size to zero drains the pool, terminating the virtual
+     * machines in it.
+     * @param provider the provider, whose context is used for all background work on the pool
+     * @param template the launch options from which pooled virtual machines are created
+     * @param size the number of stopped virtual machines to keep ready
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static public void configure(@Nonnull Azure provider, @Nonnull VMLaunchOptions template, @Nonnegative int size) throws CloudException, InternalException {
+        String key = toKey(provider, template);
+        Pool pool = pools.get(key);
+
+        if( pool == null ) {
+            pool = new Pool(provider, template, key);
+
+            Pool existing = pools.putIfAbsent(key, pool);
+
+            if( existing == null ) {
+                pool.recover();
+            }
+            else {
+                pool = existing;
+            }
+        }
+        pool.resize(size);
+    }
+
+    /**
+     * Provides the number of pooled virtual machines ready to be handed out for a template.
+     * @param provider the provider
+     * @param template the launch template
+     * @return the number of stopped virtual machines ready in the pool
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static public int getReadyCount(@Nonnull Azure provider, @Nonnull VMLaunchOptions template) throws CloudException, InternalException {
+        Pool pool = pools.get(toKey(provider, template));
+
+        return (pool == null ? 0 : pool.ready.size());
+    }
+
+    /**
+     * Hands out a pooled virtual machine for a launch, if a pool matches it.
+     * @param provider the provider making the launch
+     * @param options the launch options
+     * @return the started virtual machine, or null if no pooled virtual machine was available
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static @Nullable VirtualMachine take(@Nonnull Azure provider, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        if( pools.isEmpty() ) {
+            return null;
+        }
+        Pool pool = pools.get(toKey(provider, options));
+
+        if( pool == null ) {
+            return null;
+        }
+        if( !accepts(pool.template, options) ) {
+            return null;
+        }
+        return pool.take(provider, options);
+    }
+
+    /**
+     * Checks the launch options that shape the guest but are not part of the pool key. A launch that leaves one of
+     * them unset takes whatever the template set up; one that sets it to anything else bypasses the pool.
+     */
+    static private boolean accepts(@Nonnull VMLaunchOptions template, @Nonnull VMLaunchOptions options) {
+        if( !sameOrUnset(options.getBootstrapPassword(), template.getBootstrapPassword()) ) {
+            return false;
+        }
+        if( !sameOrUnset(options.getBootstrapUser(), template.getBootstrapUser()) ) {
+            return false;
+        }
+        if( !sameOrUnset(options.getBootstrapKey(), template.getBootstrapKey()) ) {
+            return false;
+        }
+        if( !sameOrUnset(options.getUserData(), template.getUserData()) ) {
+            return false;
+        }
+        String[] firewalls = options.getFirewallIds();
+
+        if( firewalls != null && firewalls.length > 0 ) {
+            String[] pooled = template.getFirewallIds();
+
+            if( pooled == null ) {
+                return false;
+            }
+            TreeSet<String> requested = new TreeSet<String>(Arrays.asList(firewalls));
+
+            if( !requested.equals(new TreeSet<String>(Arrays.asList(pooled))) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static private boolean sameOrUnset(@Nullable String requested, @Nullable String pooled) {
+        return (requested == null || requested.equals(pooled));
+    }
+
+    static private @Nonnull String toKey(@Nonnull Azure provider, @Nonnull VMLaunchOptions options) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        return ctx.getAccountNumber() + "|" + ctx.getRegionId() + "|" + options.getDataCenterId() + "|" + options.getMachineImageId() + "|" + options.getStandardProductId() + "|" + options.getVlanId() + "|" + options.getHostName();
+    }
+
+    /**
+     * A stopped virtual machine in a pool, with the credentials it was provisioned with.
+     */
+    static private class Pooled {
+        final String vmId;
+        final String rootUser;
+        final String rootPassword;
+
+        Pooled(@Nonnull String vmId, @Nullable String rootUser, @Nullable String rootPassword) {
+            this.vmId = vmId;
+            this.rootUser = rootUser;
+            this.rootPassword = rootPassword;
+        }
+    }
+
+    static private class Pool {
+        private final Azure                         provider;
+        private final VMLaunchOptions               template;
+        private final String                        key;
+        private final ConcurrentLinkedQueue<Pooled> ready   = new ConcurrentLinkedQueue<Pooled>();
+        private final AtomicInteger                 pending = new AtomicInteger();
+        private volatile int                        size    = 0;
+
+        Pool(@Nonnull Azure provider, @Nonnull VMLaunchOptions template, @Nonnull String key) {
+            this.provider = provider;
+            this.template = template;
+            this.key = key;
+        }
+
+        /**
+         * Finds stopped virtual machines left in this pool by an earlier process. Their credentials are only known if
+         * the template sets the bootstrap password; otherwise they cannot be handed out and are terminated.
+         */
+        void recover() throws CloudException, InternalException {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new AzureConfigException("No context was specified for this request");
+            }
+            AzureMethod method = new AzureMethod(provider);
+            Document doc = method.getAsXML(ctx.getAccountNumber(), AzureVM.HOSTED_SERVICES);
+
+            if( doc == null ) {
+                return;
+            }
+            NodeList services = doc.getElementsByTagName("HostedService");
+            AzureVM support = new AzureVM(provider);
+
+            for( int i=0; i<services.getLength(); i++ ) {
+                NodeList attributes = services.item(i).getChildNodes();
+                String serviceName = null;
+                String description = null;
+
+                for( int j=0; j<attributes.getLength(); j++ ) {
+                    Node attribute = attributes.item(j);
+
+                    if( attribute.getNodeName().equalsIgnoreCase("ServiceName") && attribute.hasChildNodes() ) {
+                        serviceName = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                    else if( attribute.getNodeName().equalsIgnoreCase("HostedServiceProperties") ) {
+                        NodeList properties = attribute.getChildNodes();
+
+                        for( int k=0; k<properties.getLength(); k++ ) {
+                            Node property = properties.item(k);
+
+                            if( property.getNodeName().equalsIgnoreCase("Description") && property.hasChildNodes() ) {
+                                description = property.getFirstChild().getNodeValue().trim();
+                            }
+                        }
+                    }
+                }
+                if( serviceName != null && (MARKER + key).equals(description) ) {
+                    String vmId = serviceName + ":" + serviceName + ":" + serviceName;
+                    VirtualMachine vm = support.getVirtualMachine(vmId);
+
+                    if( vm != null && VmState.STOPPED.equals(vm.getCurrentState()) ) {
+                        String password = template.getBootstrapPassword();
+
+                        if( password == null ) {
+                            logger.info("Discarding pooled virtual machine " + vmId + " with unknown credentials");
+                            discard(support, vmId);
+                        }
+                        else {
+                            logger.info("Recovered pooled virtual machine " + vmId);
+                            ready.add(new Pooled(vmId, ROOT_USER, password));
+                        }
+                    }
+                }
+            }
+        }
+
+        void resize(int size) {
+            this.size = size;
+            while( ready.size() > size ) {
+                final Pooled pooled = ready.poll();
+
+                if( pooled == null ) {
+                    break;
+                }
+                scheduler.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            new AzureVM(provider).terminate(pooled.vmId);
+                        }
+                        catch( Throwable t ) {
+                            logger.warn("Unable to terminate pooled virtual machine " + pooled.vmId + ": " + t.getMessage());
+                        }
+                    }
+                });
+            }
+            refill();
+        }
+
+        @Nullable VirtualMachine take(@Nonnull Azure requester, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+            AzureVM support = new AzureVM(requester);
+            Pooled pooled;
+
+            try {
+                while( (pooled = ready.poll()) != null ) {
+                    String vmId = pooled.vmId;
+                    boolean handedOut = false;
+
+                    try {
+                        relabel(requester, AzureVM.parseVmId(vmId)[0], options);
+                        support.start(vmId);
+                        if( !support.waitForState(vmId, VmState.RUNNING, System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L)) ) {
+                            throw new CloudException("Timed out waiting for pooled virtual machine " + vmId + " to start");
+                        }
+                        VirtualMachine vm = support.getVirtualMachine(vmId);
+
+                        if( vm != null ) {
+                            vm.setRootUser(pooled.rootUser);
+                            vm.setRootPassword(pooled.rootPassword);
+                            logger.info("Launched " + options.getHostName() + " from pooled virtual machine " + vmId);
+                            handedOut = true;
+                            return vm;
+                        }
+                    }
+                    catch( CloudException e ) {
+                        // try the next one; anything else is not specific to this virtual machine and is thrown
+                        logger.warn("Unable to use pooled virtual machine " + vmId + ", discarding it: " + e.getMessage());
+                    }
+                    finally {
+                        if( !handedOut ) {
+                            discard(support, vmId);
+                        }
+                    }
+                }
+                return null;
+            }
+            finally {
+                refill();
+            }
+        }
+
+        /**
+         * Terminates a pooled virtual machine that will not be handed out, without waiting for it to go.
+         */
+        private void discard(@Nonnull AzureVM support, @Nonnull String vmId) {
+            try {
+                support.terminateAsync(vmId);
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to terminate pooled virtual machine " + vmId + ": " + t.getMessage());
+            }
+        }
+
+        void refill() {
+            while( ready.size() + pending.get() < size ) {
+                pending.incrementAndGet();
+                scheduler.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            fill();
+                        }
+                        catch( Throwable t ) {
+                            logger.warn("Unable to add a virtual machine to the warm pool: " + t.getMessage());
+                        }
+                        finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+
+        private void fill() throws CloudException, InternalException {
+            AzureVM support = new AzureVM(provider);
+            VirtualMachine vm = support.launchDirect(template);
+            String vmId = vm.getProviderVirtualMachineId();
+            long deadline = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+
+            relabel(provider, AzureVM.parseVmId(vmId)[0], template, MARKER + key);
+            support.stop(vmId, false);
+            if( !support.waitForState(vmId, VmState.STOPPED, deadline) ) {
+                throw new CloudException("Timed out waiting for pooled virtual machine " + vmId + " to stop");
+            }
+            ready.add(new Pooled(vmId, vm.getRootUser(), vm.getRootPassword()));
+        }
+
+        private void relabel(@Nonnull Azure requester, @Nonnull String serviceName, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+            relabel(requester, serviceName, options, options.getDescription());
+        }
+
+        private void relabel(@Nonnull Azure requester, @Nonnull String serviceName, @Nonnull VMLaunchOptions options, @Nullable String description) throws CloudException, InternalException {
+            ProviderContext ctx = requester.getContext();
+
+            if( ctx == null ) {
+                throw new AzureConfigException("No context was specified for this request");
+            }
+            String label;
+
+            try {
+                label = new String(Base64.encodeBase64(options.getFriendlyName().getBytes("utf-8")));
+            }
+            catch( UnsupportedEncodingException e ) {
+                throw new InternalException(e);
+            }
+            StringBuilder xml = new StringBuilder();
+
+            xml.append("<UpdateHostedService xmlns=\"http://schemas.microsoft.com/windowsazure\">");
+            xml.append("<Label>").append(label).append("</Label>");
+            xml.append("<Description>").append(description == null ? "" : description).append("</Description>");
+            xml.append("</UpdateHostedService>");
+            new AzureMethod(requester).invoke("PUT", ctx.getAccountNumber(), AzureVM.HOSTED_SERVICES + "/" + serviceName, xml.toString());
+        }
+    }
+}
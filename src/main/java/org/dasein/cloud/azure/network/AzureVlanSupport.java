@@ -17,6 +17,7 @@ import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureMetadataCache;
 import org.dasein.cloud.azure.AzureMethod;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.network.AbstractVLANSupport;
@@ -42,6 +43,8 @@ public class AzureVlanSupport implements VLANSupport {
 	
 	static private final String NETWORKING_SERVICES = "/services/networking";
 
+    static private final long CACHE_TTL = 2L * 60000L;
+
     private Azure provider;
 
     public AzureVlanSupport(Azure provider) {
@@ -223,6 +226,7 @@ public class AzureVlanSupport implements VLANSupport {
 
             String resourceDir = NETWORKING_SERVICES + "/media";
             String requestId = method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            AzureMetadataCache.invalidate(ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK);
 
             if (requestId != null) {
                 int httpCode = method.getOperationStatus(requestId);
@@ -341,6 +345,7 @@ public class AzureVlanSupport implements VLANSupport {
 
             String resourceDir = NETWORKING_SERVICES + "/media";
             String requestId = method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            AzureMetadataCache.invalidate(ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK);
 
             if (requestId != null) {
                 int httpCode = method.getOperationStatus(requestId);
@@ -442,7 +447,7 @@ public class AzureVlanSupport implements VLANSupport {
         }
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK, NETWORKING_SERVICES+"/virtualnetwork", CACHE_TTL);
 
         NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
 
@@ -576,7 +581,7 @@ public class AzureVlanSupport implements VLANSupport {
         }
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK, NETWORKING_SERVICES+"/virtualnetwork", CACHE_TTL);
 
         NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
         ArrayList<Subnet> list = new ArrayList<Subnet>();
@@ -636,7 +641,7 @@ public class AzureVlanSupport implements VLANSupport {
         }
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK, NETWORKING_SERVICES+"/virtualnetwork", CACHE_TTL);
 
         NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
         ArrayList<ResourceStatus> list = new ArrayList<ResourceStatus>();
@@ -661,7 +666,7 @@ public class AzureVlanSupport implements VLANSupport {
         }
         AzureMethod method = new AzureMethod(provider);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
+        Document doc = AzureMetadataCache.getDocument(method, ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK, NETWORKING_SERVICES+"/virtualnetwork", CACHE_TTL);
                 
         NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
         ArrayList<VLAN> list = new ArrayList<VLAN>();
@@ -789,6 +794,7 @@ public class AzureVlanSupport implements VLANSupport {
 
             String resourceDir = NETWORKING_SERVICES + "/media";
             method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            AzureMetadataCache.invalidate(ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK);
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -865,6 +871,7 @@ public class AzureVlanSupport implements VLANSupport {
 
             String resourceDir = NETWORKING_SERVICES + "/media";
             method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            AzureMetadataCache.invalidate(ctx.getAccountNumber(), null, AzureMetadataCache.NETWORK);
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -0,0 +1,307 @@
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.Jiterator;
+import org.dasein.util.uom.storage.Byte;
+import org.dasein.util.uom.storage.Storage;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Lists containers, or the blobs in a container, one page at a time. Each page is decoded as it arrives and every
+ * entry is pushed to the iterator as soon as it has been read, so no page is ever held in memory as a whole; the
+ * listing follows <code>NextMarker</code> until the service reports no more pages.
+ * <p>
+ * When a delimiter is given, blobs whose names continue past the delimiter are rolled up by the service into their
+ * common prefix. Each prefix is listed as a container named after the bucket and the prefix.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureBlobListing extends DefaultHandler {
+    static private final Logger logger = Azure.getLogger(AzureBlobListing.class);
+
+    /**
+     * Pushes every matching container or blob to an iterator.
+     * @param provider the provider
+     * @param regionId the region of the storage service
+     * @param bucket the container whose blobs are listed, or null to list the containers
+     * @param prefix lists only the entries whose names start with this prefix, if any
+     * @param delimiter rolls up blob names at this delimiter, if any
+     * @param maxResults the number of entries the service returns per page, or 0 for the service default
+     * @param iterator the iterator to which entries are pushed
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static void list(@Nonnull Azure provider, @Nonnull String regionId, @Nullable String bucket, @Nullable String prefix, @Nullable String delimiter, int maxResults, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
+        list(provider, regionId, bucket, prefix, delimiter, maxResults, Integer.MAX_VALUE, iterator);
+    }
+
+    /**
+     * Checks whether a container holds any blobs by reading a single page of at most one entry.
+     * @param provider the provider
+     * @param regionId the region of the storage service
+     * @param bucket the container
+     * @return true if the container holds no blobs
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static boolean isEmpty(@Nonnull Azure provider, @Nonnull String regionId, @Nonnull String bucket) throws CloudException, InternalException {
+        return (list(provider, regionId, bucket, null, null, 1, 1, null) == 0);
+    }
+
+    static private int list(@Nonnull Azure provider, @Nonnull String regionId, @Nullable String bucket, @Nullable String prefix, @Nullable String delimiter, int maxResults, int maxPages, @Nullable Jiterator<Blob> iterator) throws CloudException, InternalException {
+        SAXParser parser;
+
+        try {
+            parser = SAXParserFactory.newInstance().newSAXParser();
+        }
+        catch( ParserConfigurationException e ) {
+            throw new InternalException(e);
+        }
+        catch( SAXException e ) {
+            throw new InternalException(e);
+        }
+        String location = provider.getStorageEndpoint();
+        String marker = null;
+        int pages = 0;
+        int entries = 0;
+
+        if( !location.endsWith("/") ) {
+            location = location + "/";
+        }
+        do {
+            TreeMap<String, String> queries = new TreeMap<String, String>();
+
+            if( bucket != null ) {
+                queries.put("restype", "container");
+            }
+            queries.put("comp", "list");
+            if( prefix != null && prefix.length() > 0 ) {
+                queries.put("prefix", encode(prefix));
+            }
+            if( bucket != null && delimiter != null && delimiter.length() > 0 ) {
+                queries.put("delimiter", encode(delimiter));
+            }
+            if( marker != null ) {
+                queries.put("marker", encode(marker));
+            }
+            if( maxResults > 0 ) {
+                queries.put("maxresults", String.valueOf(maxResults));
+            }
+            InputStream input = new AzureStorageMethod(provider).getAsStream(AzureStorageMethod.Storage_OPERATION_GET, (bucket == null ? "" : bucket), queries, null, null, true);
+
+            if( input == null ) {
+                break;
+            }
+            AzureBlobListing page = new AzureBlobListing(regionId, location, bucket, delimiter, iterator);
+
+            try {
+                parser.parse(skipPreamble(input), page);
+            }
+            catch( SAXException e ) {
+                throw new CloudException(e);
+            }
+            catch( IOException e ) {
+                throw new CloudException(e);
+            }
+            finally {
+                try { input.close(); }
+                catch( Throwable ignore ) { }
+            }
+            parser.reset();
+            marker = page.getNextMarker();
+            pages++;
+            entries += page.getCount();
+        } while( marker != null && marker.length() > 0 && pages < maxPages );
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Listed " + entries + " entries of " + (bucket == null ? "the storage service" : bucket) + " in " + pages + " pages");
+        }
+        return entries;
+    }
+
+    static private @Nonnull String encode(@Nonnull String value) throws InternalException {
+        try {
+            return URLEncoder.encode(value, "utf-8").replaceAll("\\+", "%20");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Skips anything, such as a byte order mark, ahead of the first element of a response.
+     */
+    static @Nonnull InputStream skipPreamble(@Nonnull InputStream input) throws IOException {
+        PushbackInputStream stream = new PushbackInputStream(input, 1);
+        int b;
+
+        while( (b = stream.read()) != -1 ) {
+            if( b == '<' ) {
+                stream.unread(b);
+                break;
+            }
+        }
+        return stream;
+    }
+
+    private final String          regionId;
+    private final String          location;
+    private final String          bucket;
+    private final String          delimiter;
+    private final Jiterator<Blob> iterator;
+    private final StringBuilder   text    = new StringBuilder();
+    private final DateFormat      rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+
+    private String  entry;
+    private boolean inProperties;
+    private boolean inMetadata;
+    private String  name;
+    private String  url;
+    private long    size;
+    private long    creationDate;
+    private String  nextMarker;
+    private int     count;
+
+    AzureBlobListing(@Nonnull String regionId, @Nonnull String location, @Nullable String bucket, @Nullable String delimiter, @Nullable Jiterator<Blob> iterator) {
+        this.regionId = regionId;
+        this.location = location;
+        this.bucket = bucket;
+        this.delimiter = delimiter;
+        this.iterator = iterator;
+        rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    /**
+     * @return the marker from which the next page is listed, or null or empty if this page is the last
+     */
+    @Nullable String getNextMarker() {
+        return nextMarker;
+    }
+
+    /**
+     * @return the number of entries pushed from this page
+     */
+    int getCount() {
+        return count;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        text.setLength(0);
+        if( entry == null ) {
+            if( qName.equals("Container") || qName.equals("Blob") || qName.equals("BlobPrefix") ) {
+                entry = qName;
+                name = null;
+                url = null;
+                size = -1L;
+                creationDate = 0L;
+            }
+        }
+        else if( qName.equals("Properties") ) {
+            inProperties = true;
+        }
+        else if( qName.equals("Metadata") ) {
+            inMetadata = true;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        text.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        String value = text.toString().trim();
+
+        text.setLength(0);
+        if( entry == null ) {
+            if( qName.equals("NextMarker") ) {
+                nextMarker = value;
+            }
+        }
+        else if( qName.equals(entry) ) {
+            push();
+            entry = null;
+        }
+        else if( inMetadata ) {
+            if( qName.equals("Metadata") ) {
+                inMetadata = false;
+            }
+        }
+        else if( qName.equals("Properties") ) {
+            inProperties = false;
+        }
+        else if( inProperties ) {
+            if( qName.equalsIgnoreCase("Content-Length") && value.length() > 0 ) {
+                size = Long.valueOf(value);
+            }
+            else if( qName.equalsIgnoreCase("Last-Modified") && value.length() > 0 ) {
+                try {
+                    creationDate = rfc1123.parse(value).getTime();
+                }
+                catch( ParseException e ) {
+                    logger.warn("Invalid date: " + value);
+                }
+            }
+        }
+        else if( qName.equalsIgnoreCase("Name") ) {
+            name = value;
+        }
+        else if( qName.equalsIgnoreCase("Url") ) {
+            url = value;
+        }
+    }
+
+    private void push() {
+        if( name == null ) {
+            return;
+        }
+        Blob blob;
+
+        if( entry.equals("Container") ) {
+            blob = Blob.getInstance(regionId, url, name, creationDate);
+        }
+        else if( entry.equals("BlobPrefix") ) {
+            String prefix = name;
+
+            if( delimiter != null && prefix.endsWith(delimiter) ) {
+                prefix = prefix.substring(0, prefix.length() - delimiter.length());
+            }
+            blob = Blob.getInstance(regionId, location + bucket + "/" + name, bucket + "/" + prefix, creationDate);
+        }
+        else {
+            blob = Blob.getInstance(regionId, url, bucket, name, creationDate, new Storage<Byte>(size, Storage.BYTE));
+        }
+        if( blob != null ) {
+            if( iterator != null ) {
+                iterator.push(blob);
+            }
+            count++;
+        }
+    }
+}
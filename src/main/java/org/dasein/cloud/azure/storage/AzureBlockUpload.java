@@ -0,0 +1,342 @@
+package org.dasein.cloud.azure.storage;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureStorageMethod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Uploads the blocks of a block blob over several connections at once. Blocks are read from the source in order on
+ * the calling thread into buffers leased from the {@link AzureBufferPool} and handed to a shared pool of upload
+ * threads; the number of blocks held in memory is bounded by the concurrency, so a slow connection holds back the
+ * reader rather than letting buffers pile up. Each block is retried on its own before the upload as a whole fails.
+ * Block IDs are fixed width and allocated in read order, which is the order in which they must be committed.
+ * Files are not read at all: each block is sent straight from its region of the file, so no buffers are needed.
+ * With an {@link AzureUploadJournal}, blocks already uploaded by an earlier attempt are skipped.
+ * <p>
+ * The concurrency defaults to {@link #DEFAULT_CONCURRENCY} and may be set with the {@link #CONCURRENCY} custom
+ * property of the provider context.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureBlockUpload {
+    static private final Logger logger = Azure.getLogger(AzureBlockUpload.class);
+
+    static public final String CONCURRENCY         = "blobUploadConcurrency";
+    static public final int    DEFAULT_CONCURRENCY = 4;
+
+    static final int BLOCK_SIZE = AzureBufferPool.BUFFER_SIZE;
+
+    static private final int  MAX_ATTEMPTS = 3;
+    static private final long RETRY_DELAY  = 2000L;
+
+    static private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure block upload");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static int getConcurrency(@Nonnull Azure provider) {
+        return getConcurrency(provider, CONCURRENCY, DEFAULT_CONCURRENCY);
+    }
+
+    static int getConcurrency(@Nonnull Azure provider, @Nonnull String property, int defaultConcurrency) {
+        ProviderContext ctx = provider.getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(property));
+
+        if( value != null ) {
+            try {
+                int concurrency = Integer.parseInt(value.trim());
+
+                if( concurrency > 0 ) {
+                    return concurrency;
+                }
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for " + property + ": " + value);
+            }
+        }
+        return defaultConcurrency;
+    }
+
+    /**
+     * Generates the ID of a block from its position in the blob. Azure requires every block ID of a blob to have the
+     * same length; nine digits encode to twelve characters with no padding.
+     * @param index the position of the block
+     * @return the block ID
+     */
+    static @Nonnull String toBlockId(int index) {
+        return new String(Base64.encodeBase64(String.format("%09d", index).getBytes()));
+    }
+
+    private final Azure                       provider;
+    private final String                      resource;
+    private final Semaphore                   buffers;
+    private final AzureUploadJournal          journal;
+    private final AtomicReference<Throwable>  failure = new AtomicReference<Throwable>();
+    private final AtomicInteger               skipped = new AtomicInteger();
+
+    AzureBlockUpload(@Nonnull Azure provider, @Nonnull String bucket, @Nonnull String object, int concurrency) {
+        this(provider, bucket, object, concurrency, null);
+    }
+
+    AzureBlockUpload(@Nonnull Azure provider, @Nonnull String bucket, @Nonnull String object, int concurrency, @Nullable AzureUploadJournal journal) {
+        this.provider = provider;
+        this.resource = bucket + "/" + object;
+        this.buffers = new Semaphore(Math.max(1, concurrency));
+        this.journal = journal;
+    }
+
+    /**
+     * Uploads the contents of a stream as uncommitted blocks. The stream is not closed.
+     * @param input the stream to upload
+     * @return the IDs of the uploaded blocks in the order in which they must be committed
+     * @throws CloudException a block could not be uploaded
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull List<String> upload(@Nonnull InputStream input) throws CloudException, InternalException {
+        ArrayList<String> blockIds = new ArrayList<String>();
+        ArrayList<Future<?>> uploads = new ArrayList<Future<?>>();
+        AzureBufferPool pool = AzureBufferPool.getInstance();
+        long start = System.currentTimeMillis();
+        long total = 0L;
+
+        try {
+            while( failure.get() == null ) {
+                buffers.acquire();
+
+                byte[] buffer;
+
+                try {
+                    buffer = pool.lease();
+                }
+                catch( InterruptedException e ) {
+                    buffers.release();
+                    throw e;
+                }
+                int length;
+
+                try {
+                    length = read(input, buffer);
+                }
+                catch( IOException e ) {
+                    release(buffer);
+                    throw new CloudException(e);
+                }
+                if( length < 1 ) {
+                    release(buffer);
+                    break;
+                }
+                String blockId = toBlockId(blockIds.size());
+
+                blockIds.add(blockId);
+                total += length;
+                uploads.add(submit(blockId, new ByteArrayEntity(buffer, 0, length), buffer));
+            }
+            await(uploads);
+        }
+        catch( InterruptedException e ) {
+            interrupted(e);
+        }
+        catch( CloudException e ) {
+            failure.compareAndSet(null, e);
+        }
+        return finish(blockIds, total, start);
+    }
+
+    /**
+     * Uploads the contents of a file as uncommitted blocks, sending each block straight from its region of the file.
+     * The channel is not closed.
+     * @param channel the channel of the file to upload
+     * @param size the number of bytes to upload from the start of the file
+     * @return the IDs of the uploaded blocks in the order in which they must be committed
+     * @throws CloudException a block could not be uploaded
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    @Nonnull List<String> upload(@Nonnull FileChannel channel, long size) throws CloudException, InternalException {
+        ArrayList<String> blockIds = new ArrayList<String>();
+        ArrayList<Future<?>> uploads = new ArrayList<Future<?>>();
+        long start = System.currentTimeMillis();
+
+        try {
+            for( long position=0L; position<size && failure.get() == null; position += BLOCK_SIZE ) {
+                buffers.acquire();
+
+                String blockId = toBlockId(blockIds.size());
+
+                blockIds.add(blockId);
+                uploads.add(submit(blockId, new AzureFileRegionEntity(channel, position, Math.min(BLOCK_SIZE, size - position)), null));
+            }
+            await(uploads);
+        }
+        catch( InterruptedException e ) {
+            interrupted(e);
+        }
+        return finish(blockIds, size, start);
+    }
+
+    /**
+     * Starts the upload of a block for which a concurrency permit is held. The permit, and the buffer if any, are
+     * released when the upload completes.
+     */
+    private @Nonnull Future<?> submit(@Nonnull final String blockId, @Nonnull final HttpEntity content, @Nullable final byte[] buffer) {
+        return executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    if( failure.get() == null ) {
+                        if( journal == null ) {
+                            putBlock(blockId, content);
+                        }
+                        else if( journal.isTrusted() ) {
+                            if( journal.isUploaded(blockId) ) {
+                                skipped.incrementAndGet();
+                            }
+                            else {
+                                putBlock(blockId, content);
+                                journal.record(blockId, null);
+                            }
+                        }
+                        else {
+                            String hash = journal.hash(content);
+
+                            if( journal.isUploaded(blockId, hash) ) {
+                                skipped.incrementAndGet();
+                            }
+                            else {
+                                putBlock(blockId, content);
+                                journal.record(blockId, hash);
+                            }
+                        }
+                    }
+                }
+                catch( Throwable t ) {
+                    failure.compareAndSet(null, t);
+                }
+                finally {
+                    if( buffer == null ) {
+                        buffers.release();
+                    }
+                    else {
+                        release(buffer);
+                    }
+                }
+            }
+        });
+    }
+
+    private void await(@Nonnull List<Future<?>> uploads) throws InterruptedException {
+        for( Future<?> upload : uploads ) {
+            try {
+                upload.get();
+            }
+            catch( ExecutionException e ) {
+                // failures are recorded by the upload itself
+                failure.compareAndSet(null, e.getCause());
+            }
+        }
+    }
+
+    private void interrupted(@Nonnull InterruptedException e) {
+        // pending uploads skip their blocks and return their buffers once they see the failure
+        failure.compareAndSet(null, new InternalException(e));
+        Thread.currentThread().interrupt();
+    }
+
+    private @Nonnull List<String> finish(@Nonnull List<String> blockIds, long total, long start) throws CloudException, InternalException {
+        Throwable t = failure.get();
+
+        if( t != null ) {
+            logger.error("Upload of " + resource + " failed: " + t.getMessage());
+            if( t instanceof CloudException ) {
+                throw (CloudException)t;
+            }
+            if( t instanceof InternalException ) {
+                throw (InternalException)t;
+            }
+            throw new InternalException(t);
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Uploaded " + blockIds.size() + " blocks (" + total + " bytes, " + skipped.get() + " blocks skipped) of " + resource + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return blockIds;
+    }
+
+    private void putBlock(@Nonnull String blockId, @Nonnull HttpEntity content) throws CloudException, InternalException {
+        TreeMap<String, String> queries = new TreeMap<String, String>();
+        TreeMap<String, String> headers = new TreeMap<String, String>();
+
+        queries.put("blockid", blockId);
+        queries.put("comp", "block");
+
+        headers.put("x-ms-blob-type", "BlockBlob");
+        headers.put("content-type", "text/plain");
+
+        for( int attempt=1; ; attempt++ ) {
+            try {
+                new AzureStorageMethod(provider).putWithEntity(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, content, headers, true);
+                return;
+            }
+            catch( CloudException e ) {
+                if( attempt >= MAX_ATTEMPTS || failure.get() != null ) {
+                    throw e;
+                }
+                logger.warn("Upload of block " + blockId + " of " + resource + " failed, retrying: " + e.getMessage());
+            }
+            try { Thread.sleep(RETRY_DELAY * attempt); }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+        }
+    }
+
+    private void release(@Nonnull byte[] buffer) {
+        AzureBufferPool.getInstance().release(buffer);
+        buffers.release();
+    }
+
+    /**
+     * Fills a buffer from a stream, stopping short only at the end of the stream.
+     */
+    private int read(@Nonnull InputStream input, @Nonnull byte[] buffer) throws IOException {
+        int length = 0;
+
+        while( length < buffer.length ) {
+            int count = input.read(buffer, length, buffer.length - length);
+
+            if( count == -1 ) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,154 @@
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.azure.Azure;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JVM-wide pool of the buffers used to stage blob blocks and ranges. Buffers are leased for the duration of a single
+ * transfer and returned afterwards, so sustained transfers reuse the same buffers rather than allocating a new one for
+ * every block. The number of buffers leased at once is bounded; a lease beyond the bound waits for a buffer to be
+ * returned, which also bounds the heap used by all concurrent transfers together.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public final class AzureBufferPool {
+    static private final Logger logger = Azure.getLogger(AzureBufferPool.class);
+
+    static public final int BUFFER_SIZE = 4 * 1024 * 1024;
+    static public final int CAPACITY    = 32;
+
+    static private final AzureBufferPool instance = new AzureBufferPool(BUFFER_SIZE, CAPACITY);
+
+    /**
+     * @return the pool shared by all blob transfers
+     */
+    static public @Nonnull AzureBufferPool getInstance() {
+        return instance;
+    }
+
+    private final int                           bufferSize;
+    private final int                           capacity;
+    private final ConcurrentLinkedQueue<byte[]> idle        = new ConcurrentLinkedQueue<byte[]>();
+    private final Semaphore                     permits;
+    private final AtomicInteger                 leased      = new AtomicInteger();
+    private final AtomicInteger                 peak        = new AtomicInteger();
+    private final AtomicLong                    allocations = new AtomicLong();
+    private final AtomicLong                    leases      = new AtomicLong();
+    private final AtomicLong                    waits       = new AtomicLong();
+
+    private AzureBufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Leases a buffer, waiting for one to be returned if the pool is at capacity. Every lease must be matched by a
+     * call to {@link #release(byte[])}.
+     * @return a buffer of {@link #getBufferSize()} bytes with undefined contents
+     * @throws InterruptedException the thread was interrupted while waiting for a buffer
+     */
+    @Nonnull byte[] lease() throws InterruptedException {
+        if( !permits.tryAcquire() ) {
+            waits.incrementAndGet();
+            permits.acquire();
+        }
+        leases.incrementAndGet();
+
+        int count = leased.incrementAndGet();
+        int max = peak.get();
+
+        while( count > max && !peak.compareAndSet(max, count) ) {
+            max = peak.get();
+        }
+        byte[] buffer = idle.poll();
+
+        if( buffer == null ) {
+            allocations.incrementAndGet();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool.
+     * @param buffer the buffer
+     */
+    void release(@Nonnull byte[] buffer) {
+        if( buffer.length == bufferSize ) {
+            idle.offer(buffer);
+        }
+        leased.decrementAndGet();
+        permits.release();
+        if( logger.isTraceEnabled() ) {
+            logger.trace(toString());
+        }
+    }
+
+    /**
+     * @return the size in bytes of each buffer
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the maximum number of buffers that may be leased at once
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of buffers currently leased
+     */
+    public int getLeased() {
+        return leased.get();
+    }
+
+    /**
+     * @return the number of allocated buffers waiting to be leased again
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return the largest number of buffers leased at once
+     */
+    public int getPeakLeased() {
+        return peak.get();
+    }
+
+    /**
+     * @return the number of buffers allocated since the pool was created
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of leases since the pool was created
+     */
+    public long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return the number of leases that had to wait for a buffer to be returned
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "AzureBufferPool[leased=" + getLeased() + "/" + capacity + ",idle=" + getIdle() + ",peak=" + getPeakLeased() + ",allocations=" + getAllocations() + ",leases=" + getLeases() + ",waits=" + getWaits() + "]";
+    }
+}
@@ -0,0 +1,89 @@
+package org.dasein.cloud.azure.storage;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Request entity for a region of a file, written straight from the file channel with positional transfers. Nothing is
+ * staged in a block buffer and the channel position is never touched, so any number of regions of the same file may
+ * be sent at once, and a failed region can be sent again.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureFileRegionEntity extends AbstractHttpEntity {
+    private final FileChannel channel;
+    private final long        position;
+    private final long        length;
+
+    AzureFileRegionEntity(@Nonnull FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public @Nonnull InputStream getContent() throws IOException {
+        return new InputStream() {
+            private long offset = 0L;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+
+                return (read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff));
+            }
+
+            @Override
+            public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+                if( offset >= length ) {
+                    return -1;
+                }
+                int count = channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, length - offset)), position + offset);
+
+                if( count > 0 ) {
+                    offset += count;
+                }
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(@Nonnull OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long offset = 0L;
+
+        while( offset < length ) {
+            long count = channel.transferTo(position + offset, length - offset, target);
+
+            if( count < 1 && position + offset >= channel.size() ) {
+                throw new IOException("File ended " + (length - offset) + " bytes short of the region being sent");
+            }
+            offset += count;
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+package org.dasein.cloud.azure.storage;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a bulk move of objects between buckets, such as {@link BlobStore#renameBucket(String, String, boolean, boolean, int, AzureMoveProgress)}.
+ * The move updates it as it goes, so it may be read from another thread while the move runs.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public final class AzureMoveProgress {
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong moved  = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile String    target;
+    private volatile boolean   complete;
+    private volatile Throwable error;
+
+    /**
+     * @return the number of objects found to move so far
+     */
+    public long getListed() {
+        return listed.get();
+    }
+
+    /**
+     * @return the number of objects moved so far
+     */
+    public long getMoved() {
+        return moved.get();
+    }
+
+    /**
+     * @return the number of objects that could not be moved, and remain in the source bucket
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the bucket into which objects are being moved, once known
+     */
+    public @Nullable String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return true once the move has finished, successfully or not
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the error that ended the move, if it failed
+     */
+    public @Nullable Throwable getError() {
+        return error;
+    }
+
+    void setTarget(@Nullable String target) {
+        this.target = target;
+    }
+
+    long listed() {
+        return listed.incrementAndGet();
+    }
+
+    long moved() {
+        return moved.incrementAndGet();
+    }
+
+    long failed() {
+        return failed.incrementAndGet();
+    }
+
+    void complete(@Nullable Throwable error) {
+        this.error = error;
+        this.complete = true;
+    }
+
+    @Override
+    public String toString() {
+        return "listed=" + getListed() + ",moved=" + getMoved() + ",failed=" + getFailed() + (complete ? ",complete" : "");
+    }
+}
@@ -0,0 +1,256 @@
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.dasein.cloud.storage.FileTransfer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads a blob over several connections at once. Each connection repeatedly takes the next range of the blob,
+ * reads it with an <code>x-ms-range</code> request and writes it at its offset in the target file channel. A range
+ * that fails is retried from the last byte written rather than from its start. Range sizes adapt to the observed
+ * transfer times: ranges that complete quickly make later ones larger, cutting per-request overhead, while slow or
+ * failed ranges make later ones smaller, so less is lost to a retry and the tail of the download is spread evenly.
+ * Given the ETag of the blob when it was sized, every range is requested with <code>If-Match</code>, and the download
+ * fails without retrying if the blob changes part way rather than stitching together two versions of it.
+ * <p>
+ * The number of connections defaults to {@link #DEFAULT_CONCURRENCY} and may be set with the {@link #CONCURRENCY}
+ * custom property of the provider context.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureRangeDownload {
+    static private final Logger logger = Azure.getLogger(AzureRangeDownload.class);
+
+    static public final String CONCURRENCY         = "blobDownloadConcurrency";
+    static public final int    DEFAULT_CONCURRENCY = 4;
+
+    static final long INITIAL_RANGE = 4L * 1024L * 1024L;
+
+    static private final long MIN_RANGE    = 1024L * 1024L;
+    static private final long MAX_RANGE    = 64L * 1024L * 1024L;
+    static private final long FAST_RANGE   = 2000L;
+    static private final long SLOW_RANGE   = 10000L;
+    static private final int  MAX_ATTEMPTS = 3;
+    static private final long RETRY_DELAY  = 2000L;
+
+    static private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure range download");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Azure                      provider;
+    private final String                     resource;
+    private final String                     etag;
+    private final int                        concurrency;
+    private final AtomicLong                 transferred = new AtomicLong();
+    private final AtomicReference<Throwable> failure     = new AtomicReference<Throwable>();
+    private long                             next        = 0L;
+    private long                             rangeSize   = INITIAL_RANGE;
+    private int                              ranges      = 0;
+
+    AzureRangeDownload(@Nonnull Azure provider, @Nonnull String bucket, @Nonnull String object, @Nullable String etag) {
+        this.provider = provider;
+        this.resource = bucket + "/" + object;
+        this.etag = etag;
+        this.concurrency = AzureBlockUpload.getConcurrency(provider, CONCURRENCY, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Downloads the blob into a file channel. The channel is not closed.
+     * @param channel the channel of the target file
+     * @param size the size of the blob
+     * @param transfer tracks the progress of the download, if any
+     * @throws CloudException a range could not be downloaded
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    void download(@Nonnull final FileChannel channel, final long size, @Nullable final FileTransfer transfer) throws CloudException, InternalException {
+        ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+        long start = System.currentTimeMillis();
+        long count = Math.min(concurrency, (size + INITIAL_RANGE - 1) / INITIAL_RANGE);
+
+        for( int i=0; i<count; i++ ) {
+            workers.add(executor.submit(new Runnable() {
+                public void run() {
+                    AzureBufferPool pool = AzureBufferPool.getInstance();
+                    byte[] buffer = null;
+
+                    try {
+                        buffer = pool.lease();
+
+                        long[] range;
+
+                        while( failure.get() == null && (range = nextRange(size)) != null ) {
+                            fetch(channel, range[0], range[1], buffer, transfer);
+                        }
+                    }
+                    catch( Throwable t ) {
+                        failure.compareAndSet(null, t);
+                    }
+                    finally {
+                        if( buffer != null ) {
+                            pool.release(buffer);
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for( Future<?> worker : workers ) {
+                try {
+                    worker.get();
+                }
+                catch( ExecutionException e ) {
+                    failure.compareAndSet(null, e.getCause());
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            // workers stop after their current range once they see the failure
+            failure.compareAndSet(null, new InternalException(e));
+            Thread.currentThread().interrupt();
+        }
+        Throwable t = failure.get();
+
+        if( t != null ) {
+            logger.error("Download of " + resource + " failed: " + t.getMessage());
+            if( t instanceof CloudException ) {
+                throw (CloudException)t;
+            }
+            if( t instanceof InternalException ) {
+                throw (InternalException)t;
+            }
+            throw new InternalException(t);
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Downloaded " + size + " bytes of " + resource + " in " + ranges + " ranges over " + count + " connections in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private synchronized @Nullable long[] nextRange(long size) {
+        if( next >= size ) {
+            return null;
+        }
+        long[] range = new long[] { next, Math.min(size, next + rangeSize) };
+
+        next = range[1];
+        ranges++;
+        return range;
+    }
+
+    private synchronized void adapt(long millis, boolean failed) {
+        if( failed || millis > SLOW_RANGE ) {
+            rangeSize = Math.max(MIN_RANGE, rangeSize / 2);
+        }
+        else if( millis < FAST_RANGE ) {
+            rangeSize = Math.min(MAX_RANGE, rangeSize * 2);
+        }
+    }
+
+    private void fetch(@Nonnull FileChannel channel, long start, long end, @Nonnull byte[] buffer, @Nullable FileTransfer transfer) throws CloudException, InternalException {
+        long[] position = new long[] { start };
+
+        for( int attempt=1; ; attempt++ ) {
+            long t = System.currentTimeMillis();
+
+            try {
+                read(channel, position, end, buffer, transfer);
+                adapt(System.currentTimeMillis() - t, false);
+                return;
+            }
+            catch( CloudException e ) {
+                if( e.getHttpCode() == HttpServletResponse.SC_PRECONDITION_FAILED ) {
+                    throw new CloudException("Download of " + resource + " failed, the blob changed during the download");
+                }
+                adapt(System.currentTimeMillis() - t, true);
+                if( attempt >= MAX_ATTEMPTS || failure.get() != null ) {
+                    throw e;
+                }
+                logger.warn("Download of bytes " + position[0] + "-" + (end - 1) + " of " + resource + " failed, retrying: " + e.getMessage());
+            }
+            try { Thread.sleep(RETRY_DELAY * attempt); }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a range, advancing the position as bytes are written so that a retry picks up where this
+     * attempt left off.
+     */
+    private void read(@Nonnull FileChannel channel, @Nonnull long[] position, long end, @Nonnull byte[] buffer, @Nullable FileTransfer transfer) throws CloudException, InternalException {
+        HashMap<String,String> headers = new HashMap<String, String>();
+
+        headers.put("x-ms-range", "bytes=" + position[0] + "-" + (end - 1));
+        if( etag != null ) {
+            headers.put("If-Match", etag);
+        }
+
+        InputStream input = new AzureStorageMethod(provider).getAsStream(AzureStorageMethod.Storage_OPERATION_GET, resource, new HashMap<String, String>(), null, headers, true);
+
+        if( input == null ) {
+            throw new CloudException("No such file: " + resource);
+        }
+        try {
+            while( position[0] < end ) {
+                int length = (int)Math.min(buffer.length, end - position[0]);
+                int count = 0;
+
+                while( count < length ) {
+                    int n = input.read(buffer, count, length - count);
+
+                    if( n == -1 ) {
+                        break;
+                    }
+                    count += n;
+                }
+                if( count < 1 ) {
+                    throw new CloudException("Range of " + resource + " ended " + (end - position[0]) + " bytes short");
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                long offset = position[0];
+
+                while( bytes.hasRemaining() ) {
+                    offset += channel.write(bytes, offset);
+                }
+                position[0] += count;
+                if( transfer != null ) {
+                    transfer.setBytesTransferred(transferred.addAndGet(count));
+                }
+            }
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            try { input.close(); }
+            catch( Throwable ignore ) { }
+        }
+    }
+}
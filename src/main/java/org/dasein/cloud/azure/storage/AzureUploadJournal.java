@@ -0,0 +1,257 @@
+package org.dasein.cloud.azure.storage;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local journal of the blocks of a block blob upload that have reached the storage service, so that an upload that
+ * fails part way can be restarted without sending those blocks again. Each block is recorded with a hash of its
+ * content as soon as it has been uploaded. When the same source is uploaded to the same blob again, the journal is
+ * reconciled with the blocks the service still holds uncommitted, and blocks found in both with the same content are
+ * skipped. A trusted journal, whose source alone identifies the content, skips hashing altogether and takes every
+ * block it recorded as unchanged. The journal is deleted once the blob is committed.
+ * <p>
+ * Journals are opt-in: they are kept only if the {@link #DIRECTORY} custom property of the provider context names a
+ * directory to keep them in.
+ * </p>
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+final class AzureUploadJournal {
+    static private final Logger logger = Azure.getLogger(AzureUploadJournal.class);
+
+    static public final String DIRECTORY = "blobUploadJournalDir";
+
+    static private final String MAGIC = "azure-upload-journal 1";
+
+    /**
+     * Recorded in place of a hash by trusted journals.
+     */
+    static private final String UNHASHED = "-";
+
+    /**
+     * Provides the journal for an upload, if journals are enabled for the provider context.
+     * @param provider the provider
+     * @param resource the bucket and object being uploaded
+     * @param source identifies the content being uploaded, such that a change to the content changes the source
+     * @param blockSize the size of the blocks into which the content is cut
+     * @param trusted true if the source alone identifies the content, so blocks need not be hashed
+     * @return the journal, not yet opened, or null if journals are not enabled
+     * @throws CloudException the storage service could not be identified
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    static @Nullable AzureUploadJournal getInstance(@Nonnull Azure provider, @Nonnull String resource, @Nonnull String source, int blockSize, boolean trusted) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return null;
+        }
+        Properties p = ctx.getCustomProperties();
+        String dir = (p == null ? null : p.getProperty(DIRECTORY));
+
+        if( dir == null || dir.length() < 1 ) {
+            return null;
+        }
+        String target = provider.getStorageService() + "/" + resource;
+        String name = Base64.encodeBase64URLSafeString(digest().digest(target.getBytes())) + ".journal";
+
+        return new AzureUploadJournal(new File(dir, name), MAGIC + " " + blockSize + " " + target + " " + source, trusted);
+    }
+
+    static private @Nonnull MessageDigest digest() throws InternalException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    private final File                             file;
+    private final String                           header;
+    private final boolean                          trusted;
+    private final ConcurrentHashMap<String,String> uploaded = new ConcurrentHashMap<String, String>();
+    private Writer                                 writer;
+
+    private AzureUploadJournal(@Nonnull File file, @Nonnull String header, boolean trusted) {
+        this.file = file;
+        this.header = (trusted ? header + " trusted" : header);
+        this.trusted = trusted;
+    }
+
+    /**
+     * @return true if the source alone identifies the content, so blocks are recorded and skipped without hashing
+     */
+    boolean isTrusted() {
+        return trusted;
+    }
+
+    /**
+     * Opens the journal for recording, first loading the blocks recorded by an earlier attempt at the same upload
+     * that the service still holds uncommitted.
+     * @param uncommitted the IDs of the blocks the service holds uncommitted for the blob
+     */
+    synchronized void open(@Nonnull Collection<String> uncommitted) {
+        HashSet<String> onService = new HashSet<String>(uncommitted);
+
+        uploaded.clear();
+        if( file.exists() ) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf-8"));
+
+                try {
+                    if( header.equals(reader.readLine()) ) {
+                        String line;
+
+                        while( (line = reader.readLine()) != null ) {
+                            String[] parts = line.split(" ");
+
+                            if( parts.length == 2 && onService.contains(parts[0]) ) {
+                                uploaded.put(parts[0], parts[1]);
+                            }
+                        }
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            catch( IOException e ) {
+                logger.warn("Unable to read upload journal " + file + ", starting over: " + e.getMessage());
+                uploaded.clear();
+            }
+            if( !uploaded.isEmpty() ) {
+                logger.info("Resuming upload with " + uploaded.size() + " blocks already uploaded according to " + file);
+            }
+        }
+        try {
+            File dir = file.getParentFile();
+
+            if( dir != null && !dir.exists() && !dir.mkdirs() ) {
+                throw new IOException("Unable to create " + dir);
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(file), "utf-8");
+            writer.write(header + "\n");
+            for( String blockId : uploaded.keySet() ) {
+                writer.write(blockId + " " + uploaded.get(blockId) + "\n");
+            }
+            writer.flush();
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to write upload journal " + file + ", continuing without it: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Hashes the content of a block for recording and comparison.
+     * @param content the content of the block
+     * @return the hash
+     * @throws InternalException the content could not be read
+     */
+    @Nonnull String hash(@Nonnull HttpEntity content) throws InternalException {
+        MessageDigest digest = digest();
+        byte[] scratch = new byte[64 * 1024];
+
+        try {
+            InputStream input = content.getContent();
+
+            try {
+                int count;
+
+                while( (count = input.read(scratch)) != -1 ) {
+                    digest.update(scratch, 0, count);
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        return new String(Base64.encodeBase64(digest.digest()));
+    }
+
+    /**
+     * @param blockId the ID of a block
+     * @param hash the hash of the content of the block
+     * @return true if the block was uploaded by an earlier attempt with the same content and is still on the service
+     */
+    boolean isUploaded(@Nonnull String blockId, @Nonnull String hash) {
+        return hash.equals(uploaded.get(blockId));
+    }
+
+    /**
+     * @param blockId the ID of a block
+     * @return true if the block was uploaded by an earlier attempt and is still on the service, whatever its content
+     */
+    boolean isUploaded(@Nonnull String blockId) {
+        return uploaded.containsKey(blockId);
+    }
+
+    /**
+     * Records a block that has been uploaded.
+     * @param blockId the ID of the block
+     * @param hash the hash of the content of the block, or null if the journal is trusted
+     */
+    synchronized void record(@Nonnull String blockId, @Nullable String hash) {
+        if( hash == null ) {
+            hash = UNHASHED;
+        }
+        uploaded.put(blockId, hash);
+        if( writer != null ) {
+            try {
+                writer.write(blockId + " " + hash + "\n");
+                writer.flush();
+            }
+            catch( IOException e ) {
+                logger.warn("Unable to write upload journal " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the journal, leaving it in place for a later attempt.
+     */
+    synchronized void close() {
+        if( writer != null ) {
+            try { writer.close(); }
+            catch( Throwable ignore ) { }
+            writer = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the journal once the upload is committed.
+     */
+    synchronized void delete() {
+        close();
+        if( file.exists() && !file.delete() ) {
+            logger.warn("Unable to delete upload journal " + file);
+        }
+    }
+}
@@ -6,18 +6,27 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.azure.Azure;
@@ -38,6 +47,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -48,6 +58,14 @@ public class BlobStore extends AbstractBlobStoreSupport {
     static public final int                                       MAX_OBJECTS     = -1;
     static public final Storage<org.dasein.util.uom.storage.Byte> MAX_OBJECT_SIZE = new Storage<org.dasein.util.uom.storage.Byte>(5000000000L, Storage.BYTE);
 
+    static public final String MOVE_CONCURRENCY         = "blobMoveConcurrency";
+    static public final int    DEFAULT_MOVE_CONCURRENCY = 8;
+
+    static private final long COPY_POLL_MIN          = 500L;
+    static private final long COPY_POLL_MAX          = 30000L;
+    static private final int  MAX_MOVE_ATTEMPTS      = 3;
+    static private final long MOVE_PROGRESS_INTERVAL = 1000L;
+
     private Azure provider = null;
 
     public BlobStore(Azure provider) {
@@ -113,26 +131,101 @@ public class BlobStore extends AbstractBlobStoreSupport {
             AzureStorageMethod method = new AzureStorageMethod(provider);
 
             method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, targetBucket + "/" + targetObject, queryParams, null, headers, true);
+            waitForCopy(targetBucket + "/" + targetObject, System.currentTimeMillis() + (CalendarWrapper.MINUTE * 30L));
+        }
+        finally {
+            logger.debug("EXIT - " + BlobStore.class.getName() + ".copyFile()");
+        }
+    }
 
-            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 30L);
+    /**
+     * Copies many objects from one bucket to another on the service side, keeping their names. Up to
+     * <code>concurrency</code> copies run at the same time, each tracked to completion through the copy status of
+     * its target.
+     * @param sourceBucket the bucket holding the objects
+     * @param objects the names of the objects to copy
+     * @param targetBucket the bucket into which the objects are copied
+     * @param concurrency the maximum number of copies running at the same time
+     * @return a future for each copy, keyed by object name; a failed copy only fails its own future, and cancelling a
+     * future with interruption stops waiting on its copy, or keeps it from starting if it is still queued
+     */
+    public @Nonnull Map<String,Future<Void>> copyMany(@Nonnull final String sourceBucket, @Nonnull Collection<String> objects, @Nonnull final String targetBucket, @Nonnegative int concurrency) {
+        HashMap<String,Future<Void>> outcomes = new HashMap<String, Future<Void>>();
+
+        if( objects.isEmpty() ) {
+            return outcomes;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, objects.size())), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Azure blob copy");
 
-            while( timeout > System.currentTimeMillis() ) {
-                try {
-                    Blob blob = getObject(targetBucket, targetObject);
+                t.setDaemon(true);
+                return t;
+            }
+        });
 
-                    if( blob != null ) {
-                        return;
+        try {
+            for( final String object : objects ) {
+                outcomes.put(object, executor.submit(new Callable<Void>() {
+                    public Void call() throws CloudException, InternalException {
+                        try {
+                            copyFile(sourceBucket, object, targetBucket, object);
+                            return null;
+                        }
+                        catch( CloudException e ) {
+                            logger.warn("Unable to copy " + sourceBucket + "/" + object + " to " + targetBucket + ": " + e.getMessage());
+                            throw e;
+                        }
+                        catch( InternalException e ) {
+                            logger.warn("Unable to copy " + sourceBucket + "/" + object + " to " + targetBucket + ": " + e.getMessage());
+                            throw e;
+                        }
                     }
-                }
-                catch( Throwable ignore ) {
-                    // ignore
-                }
-                try { Thread.sleep(60000L); }
-                catch( InterruptedException ignore ) { }
+                }));
             }
         }
         finally {
-            logger.debug("EXIT - " + BlobStore.class.getName() + ".copyFile()");
+            executor.shutdown();
+        }
+        return outcomes;
+    }
+
+    /**
+     * Waits for a copy to complete, polling the copy status of the target with backoff so that short copies are
+     * seen to complete quickly and long ones are not polled needlessly. Versions of the storage API that predate
+     * asynchronous copies report no copy status; their copies are complete once the target exists.
+     */
+    private void waitForCopy(@Nonnull String resource, long timeout) throws CloudException, InternalException {
+        AzureStorageMethod method = new AzureStorageMethod(provider);
+        long delay = COPY_POLL_MIN;
+
+        while( true ) {
+            Map<String,String> properties = method.getProperties(resource, new HashMap<String, String>());
+
+            if( properties != null ) {
+                String status = properties.get("x-ms-copy-status");
+
+                if( status == null || status.equalsIgnoreCase("success") ) {
+                    return;
+                }
+                if( !status.equalsIgnoreCase("pending") ) {
+                    String description = properties.get("x-ms-copy-status-description");
+
+                    throw new CloudException("Copy to " + resource + " " + status + (description == null ? "" : ": " + description));
+                }
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Copy to " + resource + " pending: " + properties.get("x-ms-copy-progress"));
+                }
+            }
+            if( System.currentTimeMillis() + delay > timeout ) {
+                throw new CloudException("Timed out waiting for copy to " + resource);
+            }
+            try { Thread.sleep(delay); }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+            delay = Math.min(COPY_POLL_MAX, delay * 2);
         }
     }
 
@@ -184,32 +277,7 @@ public class BlobStore extends AbstractBlobStoreSupport {
 
     @Override
     public boolean exists(@Nonnull String bucketName) throws InternalException, CloudException {
-        TreeMap <String, String> queries = new TreeMap <String, String>();
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-
-        queries.put("comp", "list");
-
-        Document doc = method.getAsDoc(AzureStorageMethod.Storage_OPERATION_GET, "", queries, null, null, true);
-        NodeList matches = doc.getElementsByTagName("Container");
-
-        if( matches != null ){
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node bucket = matches.item(i);
-
-                if( bucket.hasChildNodes() ) {
-                    NodeList attributes = bucket.getChildNodes();
-
-                    for( int j=0; j<attributes.getLength(); j++ ) {
-                        Node attr = attributes.item(j);
-
-                        if( attr.getNodeName().equalsIgnoreCase("name") && attr.hasChildNodes() && attr.getFirstChild().getNodeValue().trim().equals(bucketName) ) {
-                            return true;
-                        }
-                    }
-                }
-            }
-        }
-        return false;
+        return (getBucket(bucketName) != null);
     }
 
     private @Nonnull Collection<String> getBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull String blocklistType, @Nonnull String blockTypeTag) throws  InternalException, CloudException{
@@ -228,9 +296,9 @@ public class BlobStore extends AbstractBlobStoreSupport {
             Document doc = method.getAsDoc(AzureStorageMethod.Storage_OPERATION_GET,
                     resource, queries, null, null, true);
 
-            NodeList matches = doc.getElementsByTagName(blockTypeTag);
+            NodeList matches = (doc == null ? null : doc.getElementsByTagName(blockTypeTag));
 
-            if(matches != null){
+            if( matches != null && matches.getLength() > 0 ) {
                 Node block = matches.item(0);
                 NodeList blockAttributes = block.getChildNodes();
                 for( int i=0; i<blockAttributes.getLength(); i++ ) {
@@ -247,25 +315,25 @@ public class BlobStore extends AbstractBlobStoreSupport {
                 }
             }
         } catch (AzureConfigException e) {
-            e.printStackTrace();
+            logger.warn("Unable to list blocks of " + resource + ": " + e.getMessage());
         } catch (InternalException e) {
-            e.printStackTrace();
+            logger.warn("Unable to list blocks of " + resource + ": " + e.getMessage());
         }
         return idList;
     }
 
     @Override
     public Blob getBucket(@Nonnull String bucketName) throws InternalException, CloudException {
-        for( Blob blob : list(null) ) {
-            if( blob.isContainer() ) {
-                String name = blob.getBucketName();
+        TreeMap <String, String> queries = new TreeMap <String, String>();
 
-                if( name != null && name.equals(bucketName) ) {
-                    return blob;
-                }
-            }
+        queries.put("restype", "container");
+
+        Map<String,String> properties = new AzureStorageMethod(provider).getProperties(bucketName, queries);
+
+        if( properties == null ) {
+            return null;
         }
-        return null;
+        return Blob.getInstance(getRegionId(), getLocation(bucketName), bucketName, toTimestamp(properties.get("last-modified")));
     }
 
     @Override
@@ -273,24 +341,25 @@ public class BlobStore extends AbstractBlobStoreSupport {
         if( bucketName == null ) {
             return null;
         }
-        for( Blob blob : list(bucketName) ) {
-            String name = blob.getObjectName();
+        String resource = bucketName + "/" + objectName;
+        Map<String,String> properties = new AzureStorageMethod(provider).getProperties(resource, new HashMap<String, String>());
 
-            if( name != null && name.equals(objectName) ) {
-                return blob;
-            }
+        if( properties == null ) {
+            return null;
         }
-        return null;
+        String length = properties.get("content-length");
+        long size = (length == null ? -1L : Long.parseLong(length));
+
+        return Blob.getInstance(getRegionId(), getLocation(resource), bucketName, objectName, toTimestamp(properties.get("last-modified")), new Storage<org.dasein.util.uom.storage.Byte>(size, Storage.BYTE));
     }
 
     @Override
     public @Nullable Storage<org.dasein.util.uom.storage.Byte> getObjectSize(@Nullable String bucket, @Nullable String object) throws InternalException, CloudException {
-        String resource = bucket + "/" + object;
-
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-        String blobProperty = "Content-Length";
-
-        String result = method.getBlobProperty(AzureStorageMethod.Storage_OPERATION_GET, resource, new HashMap<String, String>(), null, null, true, blobProperty);
+        if( bucket == null || object == null ) {
+            return null;
+        }
+        Map<String,String> properties = new AzureStorageMethod(provider).getProperties(bucket + "/" + object, new HashMap<String, String>());
+        String result = (properties == null ? null : properties.get("content-length"));
 
         if( result != null ) {
             return new Storage<org.dasein.util.uom.storage.Byte>(Long.valueOf(result), Storage.BYTE);
@@ -298,6 +367,42 @@ public class BlobStore extends AbstractBlobStoreSupport {
         return null;
     }
 
+    private @Nonnull String getLocation(@Nonnull String resource) throws InternalException, CloudException {
+        String endpoint = provider.getStorageEndpoint();
+
+        return (endpoint.endsWith("/") ? endpoint : endpoint + "/") + resource;
+    }
+
+    private @Nonnull String getRegionId() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was set for this request");
+        }
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new AzureConfigException("No region ID was specified for this request");
+        }
+        return regionId;
+    }
+
+    private long toTimestamp(@Nullable String lastModified) {
+        if( lastModified == null ) {
+            return 0L;
+        }
+        DateFormat rfc1123Format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+
+        rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return rfc1123Format.parse(lastModified).getTime();
+        }
+        catch( ParseException e ) {
+            logger.warn("Invalid date: " + lastModified);
+            return 0L;
+        }
+    }
+
     @Override
     public int getMaxBuckets() throws CloudException, InternalException {
         return MAX_BUCKETS;
@@ -312,6 +417,18 @@ public class BlobStore extends AbstractBlobStoreSupport {
             if( bucket == null ) {
                 throw new CloudException("No bucket was specified");
             }
+            Map<String,String> properties = new AzureStorageMethod(provider).getProperties(bucket + "/" + object, new HashMap<String, String>());
+            String length = (properties == null ? null : properties.get("content-length"));
+            long size = (length == null ? -1L : Long.parseLong(length));
+
+            if( size >= 2 * AzureRangeDownload.INITIAL_RANGE ) {
+                if( transfer != null ) {
+                    transfer.setBytesToTransfer(size);
+                }
+                // every range is read from the version of the blob that was sized
+                getRanges(bucket, object, properties.get("etag"), toFile, size, transfer);
+                return;
+            }
             StringBuilder resource = new StringBuilder();
 
             resource.append(bucket);
@@ -344,6 +461,30 @@ public class BlobStore extends AbstractBlobStoreSupport {
         }
     }
 
+    private void getRanges(@Nonnull String bucket, @Nonnull String object, @Nullable String etag, @Nonnull File toFile, long size, @Nullable FileTransfer transfer) throws InternalException, CloudException {
+        RandomAccessFile file;
+
+        try {
+            file = new RandomAccessFile(toFile, "rw");
+        }
+        catch( FileNotFoundException e ) {
+            logger.error("Could not find target file to fetch to " + toFile + ": " + e.getMessage());
+            throw new InternalException(e);
+        }
+        try {
+            file.setLength(size);
+            new AzureRangeDownload(provider, bucket, object, etag).download(file.getChannel(), size, transfer);
+        }
+        catch( IOException e ) {
+            logger.error("Could not fetch file to " + toFile + ": " + e.getMessage());
+            throw new CloudException(e);
+        }
+        finally {
+            try { file.close(); }
+            catch( Throwable ignore ) { }
+        }
+    }
+
     @Override
     public Storage<org.dasein.util.uom.storage.Byte> getMaxObjectSize() {
         return MAX_OBJECT_SIZE;
@@ -386,7 +527,13 @@ public class BlobStore extends AbstractBlobStoreSupport {
 
         InputStream input = method.getAsStream(AzureStorageMethod.Storage_OPERATION_GET, resource, queries, null, null, false);
 
-        return (input != null);
+        if( input == null ) {
+            return false;
+        }
+        // the stream still holds its pooled connection, so hand it back before answering
+        try { input.close(); }
+        catch( Throwable ignore ) { }
+        return true;
     }
 
     @Override
@@ -406,6 +553,22 @@ public class BlobStore extends AbstractBlobStoreSupport {
 
     @Override
     public @Nonnull Collection<Blob> list(final @Nullable String bucket) throws CloudException, InternalException {
+        return list(bucket, null, null, 0);
+    }
+
+    /**
+     * Lists the blobs in a bucket, or the buckets if no bucket is specified, following the service's paging until every
+     * match has been listed. Entries are available to the caller as soon as they have been read.
+     * @param bucket the bucket whose contents are listed, or null to list the buckets
+     * @param prefix lists only the entries whose names start with this prefix, if any
+     * @param delimiter rolls blob names up at this delimiter into prefixes, which are listed as buckets named after the
+     * bucket and the prefix; ignored when listing buckets
+     * @param maxResults the number of entries to read per page, or 0 for the service default of 5,000
+     * @return the matching entries
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull Collection<Blob> list(final @Nullable String bucket, final @Nullable String prefix, final @Nullable String delimiter, final int maxResults) throws CloudException, InternalException {
         final ProviderContext ctx = provider.getContext();
         PopulatorThread <Blob> populator;
 
@@ -421,7 +584,7 @@ public class BlobStore extends AbstractBlobStoreSupport {
         populator = new PopulatorThread<Blob>(new JiteratorPopulator<Blob>() {
             public void populate(@Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
                 try {
-                    list(regionId, bucket, iterator);
+                    AzureBlobListing.list(provider, regionId, bucket, prefix, delimiter, maxResults, iterator);
                 }
                 finally {
                     provider.release();
@@ -432,70 +595,6 @@ public class BlobStore extends AbstractBlobStoreSupport {
         return populator.getResult();
     }
 
-    private void list(@Nonnull String regionId, @Nullable String bucket, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
-        if( bucket == null ) {
-            loadBuckets(regionId, iterator);
-        }
-        else {
-            loadObjects(regionId, bucket, iterator);
-        }
-    }
-
-    private void loadBuckets(@Nonnull String regionId, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
-        if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + BlobStore.class.getName() + ".listBuckets()");
-        }
-        try {
-            TreeMap <String, String> queries = new TreeMap <String, String>();
-            AzureStorageMethod method = new AzureStorageMethod(provider);
-
-            queries.put("comp", "list");
-
-            Document doc = method.getAsDoc(AzureStorageMethod.Storage_OPERATION_GET, "", queries, null, null, true);
-            NodeList matches = doc.getElementsByTagName("Container");
-
-            if( matches != null ){
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Blob bucket = toBlob(regionId, matches.item(i), "/", true);
-
-                    if( bucket != null ) {
-
-                        iterator.push(bucket);
-                    }
-                }
-            }
-        }
-        finally {
-            if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT - " + BlobStore.class.getName() + ".listBuckets()");
-            }
-        }
-    }
-
-    private void loadObjects(@Nonnull String regionId, @Nonnull String bucket, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
-        TreeMap <String, String> queries = new TreeMap <String, String>();
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-
-        queries.put("restype", "container");
-        queries.put("comp", "list");
-
-
-        Document doc = method.getAsDoc(AzureStorageMethod.Storage_OPERATION_GET, bucket, queries, null, null, true);
-        if(doc == null) return;
-
-        NodeList matches = doc.getElementsByTagName("Blob");
-
-        if(matches != null){
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Blob file = toBlob(regionId, matches.item(i), bucket, false);
-
-                if( file != null ) {
-                    iterator.push(file);
-                }
-            }
-        }
-    }
-
     @Override
     public void makePublic(@Nonnull String bucket) throws InternalException, CloudException {
         makePublic(bucket, null);
@@ -535,51 +634,185 @@ public class BlobStore extends AbstractBlobStoreSupport {
         if( object == null ) {
             throw new CloudException("No source object was specified");
         }
-        copy(sourceBucket, object, targetBucket, object);
-        removeObject(sourceBucket, object);
+        moveObject(sourceBucket, object, targetBucket);
     }
 
-    @Override
-    protected void put(@Nullable String bucket, @Nonnull String object, @Nonnull File file) throws CloudException, InternalException {
-        if( bucket == null ) {
-            throw new CloudException("No bucket was specified");
-        }
+    /**
+     * Moves every object in a bucket to another bucket as a bounded pipeline: objects are listed page by page while
+     * up to <code>concurrency</code> of them are being copied on the service side and then deleted. An object that
+     * fails is retried a few times and then left in place without stopping the others. Objects the target already holds
+     * as complete copies from an earlier, interrupted move are only deleted, so a failed move can be resumed by running
+     * it again; any other object of the same name in the target is overwritten.
+     * @param sourceBucket the bucket from which objects are moved
+     * @param targetBucket the bucket to which objects are moved
+     * @param concurrency the maximum number of objects being moved at the same time
+     * @param progress tracks the progress of the move, if any
+     * @throws CloudException an error occurred with the cloud provider, or some objects could not be moved
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public void moveAll(@Nonnull final String sourceBucket, @Nonnull final String targetBucket, @Nonnegative int concurrency, @Nullable AzureMoveProgress progress) throws CloudException, InternalException {
+        final AzureMoveProgress tracker = (progress == null ? new AzureMoveProgress() : progress);
+        final Semaphore permits = new Semaphore(Math.max(1, concurrency));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency), new ThreadFactory() {
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Azure blob move");
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long start = System.currentTimeMillis();
 
+        tracker.setTarget(targetBucket);
         try {
-            InputStream input;
+            for( final Blob file : list(sourceBucket) ) {
+                final String name = file.getObjectName();
+
+                if( name == null ) {
+                    continue;
+                }
+                tracker.listed();
+                permits.acquire();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            moveObject(sourceBucket, name, targetBucket);
+                            if( tracker.moved() % MOVE_PROGRESS_INTERVAL == 0 ) {
+                                logger.info("Moving " + sourceBucket + " to " + targetBucket + ": " + tracker);
+                            }
+                        }
+                        catch( Throwable t ) {
+                            tracker.failed();
+                            logger.error("Unable to move " + sourceBucket + "/" + name + " to " + targetBucket + ": " + t.getMessage());
+                        }
+                        finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while( !executor.awaitTermination(1L, TimeUnit.MINUTES) ) {
+                logger.info("Moving " + sourceBucket + " to " + targetBucket + ": " + tracker);
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            tracker.complete(e);
+            throw new InternalException(e);
+        }
+        catch( CloudException e ) {
+            tracker.complete(e);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            tracker.complete(e);
+            throw e;
+        }
+        finally {
+            executor.shutdown();
+        }
+        logger.info("Moved " + sourceBucket + " to " + targetBucket + " in " + (System.currentTimeMillis() - start) + "ms: " + tracker);
+        if( tracker.getFailed() > 0 ) {
+            CloudException e = new CloudException(tracker.getFailed() + " objects could not be moved from " + sourceBucket + " to " + targetBucket + "; run the move again to resume it");
+
+            tracker.complete(e);
+            throw e;
+        }
+        tracker.complete(null);
+    }
 
+    /**
+     * Moves a single object, skipping the copy if the target already holds a copy of it from an earlier attempt.
+     */
+    private void moveObject(@Nonnull String sourceBucket, @Nonnull String object, @Nonnull String targetBucket) throws CloudException, InternalException {
+        AzureStorageMethod method = new AzureStorageMethod(provider);
+        String source = sourceBucket + "/" + object;
+
+        for( int attempt=1; ; attempt++ ) {
             try {
-                input =  new FileInputStream(file);
+                Map<String,String> copy = method.getProperties(targetBucket + "/" + object, new HashMap<String, String>());
+
+                if( copy == null || !isCopyOf(copy, source, method.getProperties(source, new HashMap<String, String>())) ) {
+                    copyFile(sourceBucket, object, targetBucket, object);
+                }
+                removeObject(sourceBucket, object);
+                return;
             }
-            catch( IOException e ) {
-                logger.error("Error reading input file " + file + ": " + e.getMessage());
+            catch( CloudException e ) {
+                if( getObject(sourceBucket, object) == null && getObject(targetBucket, object) != null ) {
+                    // the delete went through even though its response did not
+                    return;
+                }
+                if( attempt >= MAX_MOVE_ATTEMPTS ) {
+                    throw e;
+                }
+                logger.warn("Unable to move " + source + ", retrying: " + e.getMessage());
+            }
+            try { Thread.sleep(2000L * attempt); }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
                 throw new InternalException(e);
             }
+        }
+    }
+
+    /**
+     * Checks whether a blob is a complete copy of another. A blob of the same name and size is not enough, since it
+     * may hold different content: the blob must either name the source as its completed copy source, or carry the
+     * same content MD5 as the source.
+     * @param copy the properties of the candidate copy
+     * @param source the bucket and name of the source object
+     * @param original the properties of the source object, or null if they are not known
+     * @return true if the candidate is known to be a copy of the source
+     */
+    private boolean isCopyOf(@Nonnull Map<String,String> copy, @Nonnull String source, @Nullable Map<String,String> original) throws CloudException, InternalException {
+        String status = copy.get("x-ms-copy-status");
+
+        if( status != null && !status.equalsIgnoreCase("success") ) {
+            return false;
+        }
+        String copySource = copy.get("x-ms-copy-source");
 
-            int fileSize = input.available();
+        if( copySource != null ) {
+            int idx = copySource.indexOf('?');
 
-            if( fileSize > (63 * 1024 * 1024) ) {
-                putBlocks(bucket, object, input);
+            if( idx > -1 ) {
+                copySource = copySource.substring(0, idx);
             }
-            else {
-                TreeMap <String, String> queries = new TreeMap <String, String>();
-                TreeMap <String, String> headers = new TreeMap <String, String>();
-                AzureStorageMethod method = new AzureStorageMethod(provider);
-                String resource = bucket + "/" + object ;
+            if( copySource.equals(getLocation(source)) || copySource.equals("/" + provider.getStorageService() + "/" + source) ) {
+                return true;
+            }
+        }
+        if( original == null ) {
+            return false;
+        }
+        String md5 = copy.get("content-md5");
+        String length = copy.get("content-length");
 
-                queries.put("timeout", "600");
+        return (md5 != null && md5.equals(original.get("content-md5")) && length != null && length.equals(original.get("content-length")));
+    }
 
-                headers.put("x-ms-blob-type", "BlockBlob");
-                headers.put("content-type", "application/octet-stream");
-                method.putWithFile(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, file, headers, true);
-            }
+    @Override
+    protected void put(@Nullable String bucket, @Nonnull String object, @Nonnull File file) throws CloudException, InternalException {
+        if( bucket == null ) {
+            throw new CloudException("No bucket was specified");
         }
-        catch( IOException e ) {
-            logger.error("Error uploading file " + file + ": " + e.getMessage());
-            throw new CloudException(e);
+        if( file.length() > (63 * 1024 * 1024) ) {
+            putBlocks(bucket, object, file);
         }
+        else {
+            TreeMap <String, String> queries = new TreeMap <String, String>();
+            TreeMap <String, String> headers = new TreeMap <String, String>();
+            AzureStorageMethod method = new AzureStorageMethod(provider);
+            String resource = bucket + "/" + object ;
 
+            queries.put("timeout", "600");
 
+            headers.put("x-ms-blob-type", "BlockBlob");
+            headers.put("content-type", "application/octet-stream");
+            method.putWithFile(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, file, headers, true);
+        }
     }
 
     @Override
@@ -594,43 +827,90 @@ public class BlobStore extends AbstractBlobStoreSupport {
         method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, bucket + "/" + object, new HashMap<String, String>(), content, headers, true);
     }
 
-    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull InputStream input) throws  InternalException, CloudException {
+    /**
+     * Uploads the contents of a stream of unknown length as a block blob without spooling it to disk. The stream is
+     * cut into blocks as it is read, and each block is uploaded while the next one is being produced; the blob is
+     * committed once the stream ends. The stream is closed when done.
+     * @param bucket the bucket into which the object is uploaded
+     * @param object the name of the object
+     * @param input the stream to upload
+     * @throws CloudException an error occurred with the cloud provider, and nothing was committed
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public void put(@Nullable String bucket, @Nonnull String object, @Nonnull InputStream input) throws CloudException, InternalException {
+        if( bucket == null ) {
+            try { input.close(); }
+            catch( Throwable ignore ) { }
+            throw new CloudException("No bucket was specified");
+        }
+        putBlocks(bucket, object, input);
+    }
+
+    /**
+     * Opens the upload journal for a blob, reconciled with the blocks the service holds uncommitted for it.
+     * @return the journal, or null if upload journals are not enabled
+     */
+    private @Nullable AzureUploadJournal openJournal(@Nonnull String bucket, @Nonnull String object, @Nonnull String source, boolean trusted) throws InternalException, CloudException {
+        AzureUploadJournal journal = AzureUploadJournal.getInstance(provider, bucket + "/" + object, source, AzureBlockUpload.BLOCK_SIZE, trusted);
+
+        if( journal == null ) {
+            return null;
+        }
+        Collection<String> uncommitted;
+
+        try {
+            uncommitted = getBlocks(bucket, object, "uncommitted", "UncommittedBlocks");
+        }
+        catch( CloudException e ) {
+            // typically no blob exists yet, so there is nothing to resume
+            uncommitted = new ArrayList<String>();
+        }
+        journal.open(uncommitted);
+        return journal;
+    }
+
+    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull File file) throws  InternalException, CloudException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + BlobStore.class.getName() + ".putBlocks(" + bucket + "," + object + ",<<INPUT STREAM>>)");
+            logger.trace("ENTER - " + BlobStore.class.getName() + ".putBlocks(" + bucket + "," + object + "," + file + ")");
         }
         try {
-            int basicId = 1000;
-            int blockSize = 4 * 1024 * 1024;
-            byte[] bytes = new byte[blockSize];
-            int read;
+            // the path, size and modification time identify the content, so journaled blocks are not hashed
+            AzureUploadJournal journal = openJournal(bucket, object, file.getAbsolutePath() + " " + file.length() + " " + file.lastModified(), true);
+
+            try {
+                FileInputStream input;
+                List<String> blockIds;
 
-            try{
                 try {
-                    while ((read = input.read(bytes)) != -1) {
-                        String blockId = Base64.encodeBase64String(String.valueOf(basicId).getBytes());
+                    input = new FileInputStream(file);
+                }
+                catch( IOException e ) {
+                    logger.error("Error reading input file " + file + ": " + e.getMessage());
+                    throw new InternalException(e);
+                }
 
-                        if( read < blockSize ) {
-                            byte [] subArray = Arrays.copyOfRange(bytes, 0, read);
+                try {
+                    FileChannel channel = input.getChannel();
 
-                            putBlocks(bucket, object, subArray, blockId);
-                        }
-                        else {
-                            putBlocks(bucket, object, bytes, blockId);
-                        }
-                        basicId ++;
-                    }
+                    blockIds = new AzureBlockUpload(provider, bucket, object, AzureBlockUpload.getConcurrency(provider), journal).upload(channel, channel.size());
                 }
                 catch( IOException e ) {
+                    logger.error("Error uploading file " + file + ": " + e.getMessage());
                     throw new CloudException(e);
                 }
+                finally {
+                    try { input.close(); }
+                    catch( Throwable ignore ) { }
+                }
+                commitBlocks(bucket, object, blockIds);
+                if( journal != null ) {
+                    journal.delete();
+                }
             }
-            finally{
-                try { input.close(); }
-                catch( Throwable ignore ) { }
-
-                ArrayList<String> blockIds = (ArrayList<String>)getBlocks(object, bucket, "all", "UncommittedBlocks");
-
-                commitBlocks(object, bucket, blockIds);
+            finally {
+                if( journal != null ) {
+                    journal.close();
+                }
             }
         }
         finally{
@@ -640,20 +920,40 @@ public class BlobStore extends AbstractBlobStoreSupport {
         }
     }
 
-    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull byte[] content, @Nonnull String blockId) throws  InternalException, CloudException {
-        TreeMap <String, String> queries = new TreeMap <String, String>();
-        TreeMap <String, String> headers = new TreeMap <String, String>();
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-        String resource = bucket + "/" + object;
-
-        queries.put("blockid", blockId);
-        queries.put("comp", "block");
-
-        headers.put("x-ms-blob-type", "BlockBlob");
-        headers.put("content-type", "text/plain");
+    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull InputStream input) throws  InternalException, CloudException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + BlobStore.class.getName() + ".putBlocks(" + bucket + "," + object + ",<<INPUT STREAM>>)");
+        }
+        try {
+            // the content of a stream is only known once it has been read, so resumption relies on the block hashes
+            AzureUploadJournal journal = openJournal(bucket, object, "stream", false);
 
+            try {
+                List<String> blockIds;
 
-        method.putWithBytes(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, content, headers, true);
+                try {
+                    blockIds = new AzureBlockUpload(provider, bucket, object, AzureBlockUpload.getConcurrency(provider), journal).upload(input);
+                }
+                finally {
+                    try { input.close(); }
+                    catch( Throwable ignore ) { }
+                }
+                commitBlocks(bucket, object, blockIds);
+                if( journal != null ) {
+                    journal.delete();
+                }
+            }
+            finally {
+                if( journal != null ) {
+                    journal.close();
+                }
+            }
+        }
+        finally{
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + BlobStore.class.getName() + ".putBlocks()");
+            }
+        }
     }
 
     @Override
@@ -678,36 +978,51 @@ public class BlobStore extends AbstractBlobStoreSupport {
 
     @Override
     public @Nonnull String renameBucket(@Nonnull String oldName, @Nonnull String newName, boolean findFreeName) throws CloudException, InternalException {
-        Blob bucket = createBucket(newName, findFreeName);
-
-        for( Blob file : list(oldName) ) {
-            int retries = 10;
+        return renameBucket(oldName, newName, findFreeName, false, AzureBlockUpload.getConcurrency(provider, MOVE_CONCURRENCY, DEFAULT_MOVE_CONCURRENCY), null);
+    }
 
-            while( true ) {
-                retries--;
-                try {
-                    move(oldName, file.getObjectName(), bucket.getBucketName());
-                    break;
-                }
-                catch( CloudException e ) {
-                    if( retries < 1 ) {
-                        throw e;
-                    }
-                }
-                try { Thread.sleep(retries * 10000L); }
-                catch( InterruptedException ignore ) { }
+    /**
+     * Renames a bucket by moving its objects into a new bucket with {@link #moveAll(String, String, int, AzureMoveProgress)}
+     * and removing the old bucket once a final scan finds it empty. A rename into a bucket that already exists fails
+     * unless <code>resume</code> is set, in which case the existing bucket is taken to be left by an earlier,
+     * interrupted rename, which is resumed.
+     * @param oldName the current name of the bucket
+     * @param newName the new name of the bucket
+     * @param findFreeName true to use a variation of the new name if it is taken
+     * @param resume true to resume an earlier rename into the new name if that bucket already exists
+     * @param concurrency the maximum number of objects being moved at the same time
+     * @param progress tracks the progress of the rename, if any
+     * @return the new name of the bucket
+     * @throws CloudException an error occurred with the cloud provider, the new bucket exists and is not to be
+     * resumed, or some objects could not be moved
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     */
+    public @Nonnull String renameBucket(@Nonnull String oldName, @Nonnull String newName, boolean findFreeName, boolean resume, @Nonnegative int concurrency, @Nullable AzureMoveProgress progress) throws CloudException, InternalException {
+        String bucketName;
+
+        if( !findFreeName && exists(newName) ) {
+            if( !resume ) {
+                throw new CloudException("Unable to rename " + oldName + ", a bucket named " + newName + " already exists");
             }
+            logger.info("Resuming rename of " + oldName + " into existing bucket " + newName);
+            bucketName = newName;
         }
-        boolean ok = true;
-        for( Blob file : list(oldName ) ) {
-            if( file != null ) {
-                ok = false;
+        else {
+            Blob bucket = createBucket(newName, findFreeName);
+
+            bucketName = bucket.getBucketName();
+            if( bucketName == null ) {
+                bucketName = newName;
             }
         }
-        if( ok ) {
+        moveAll(oldName, bucketName, concurrency, progress);
+        if( AzureBlobListing.isEmpty(provider, getRegionId(), oldName) ) {
             removeBucket(oldName);
         }
-        return newName;
+        else {
+            logger.warn("Not removing " + oldName + " after renaming it to " + bucketName + ", objects were added during the rename");
+        }
+        return bucketName;
     }
 
     @Override
@@ -732,6 +1047,29 @@ public class BlobStore extends AbstractBlobStoreSupport {
         return getObject(bucket, fileName);
     }
 
+    /**
+     * Uploads the contents of a stream of unknown length, creating the bucket if needed.
+     * @param source the stream to upload, which is closed when done
+     * @param bucket the bucket into which the object is uploaded
+     * @param fileName the name of the object
+     * @return the uploaded object
+     * @throws CloudException an error occurred with the cloud provider
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @see #put(String, String, InputStream)
+     */
+    public @Nonnull Blob upload(@Nonnull InputStream source, @Nullable String bucket, @Nonnull String fileName) throws CloudException, InternalException {
+        if( bucket == null ) {
+            try { source.close(); }
+            catch( Throwable ignore ) { }
+            throw new OperationNotSupportedException("Root objects not supported in cloud");
+        }
+        if( !exists(bucket) ) {
+            createBucket(bucket, false);
+        }
+        put(bucket, fileName, source);
+        return getObject(bucket, fileName);
+    }
+
     @Override
     public @Nonnull NameRules getBucketNameRules() throws CloudException, InternalException {
         return NameRules.getInstance(1, 255, false, true, true, new char[] { '-', '.' });
@@ -741,74 +1079,4 @@ public class BlobStore extends AbstractBlobStoreSupport {
     public @Nonnull NameRules getObjectNameRules() throws CloudException, InternalException {
         return NameRules.getInstance(1, 255, false, true, true, new char[] { '-', '.', ',', '#', '+' });
     }
-
-    private @Nullable Blob toBlob(@Nonnull String regionId, @Nullable Node node, @Nonnull String bucket, boolean isContainer) {
-        if( node == null ) {
-            return null;
-        }
-        NodeList attributes = node.getChildNodes();
-        String object = null, location = null;
-        long size = -1L, creationDate = 0L;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attribute = attributes.item(i);
-
-            if( attribute.getNodeType() == Node.TEXT_NODE ) {
-                continue;
-            }
-            String aname = attribute.getNodeName().toLowerCase();
-            String value;
-
-            if( attribute.getChildNodes().getLength() > 0 ) {
-                value = attribute.getFirstChild().getNodeValue();
-            }
-            else {
-                continue;
-            }
-            if( aname.equalsIgnoreCase("Name") ) {
-                object = value;
-            }
-            else if( aname.equalsIgnoreCase("Url") ) {
-                location = value;
-            }
-            else if( aname.equalsIgnoreCase("Properties") ) {
-                NodeList propertyAttributes  = attribute.getChildNodes();
-
-                for(int j=0;j<propertyAttributes.getLength();j++ ){
-                    Node property = propertyAttributes.item(j);
-                    String propertyName = property.getNodeName();
-                    String propertyValue;
-
-                    if( property.getChildNodes().getLength() > 0 ) {
-                        propertyValue = property.getFirstChild().getNodeValue();
-                    }
-                    else{
-                        continue;
-                    }
-
-                    if( propertyName.equalsIgnoreCase("Content-Length") ) {
-                        size = Long.valueOf(propertyValue);
-                    }
-                    else if( propertyName.equalsIgnoreCase("Last-Modified") ) {
-                        String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
-                        DateFormat rfc1123Format = new SimpleDateFormat(RFC1123_PATTERN);
-
-                        rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
-                        try {
-                            creationDate = rfc1123Format.parse(propertyValue).getTime();
-                        }
-                        catch (ParseException e) {
-                            logger.warn("Invalid date: " + propertyValue);
-                        }
-                    }
-                }
-            }
-        }
-        if( isContainer ) {
-            return Blob.getInstance(regionId, location, object, creationDate);
-        }
-        else {
-            return Blob.getInstance(regionId, location, bucket, object, creationDate, new Storage<Byte>(size, Storage.BYTE));
-        }
-    }
 }
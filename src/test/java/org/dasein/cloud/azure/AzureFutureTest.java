@@ -0,0 +1,75 @@
+package org.dasein.cloud.azure;
+
+import junit.framework.TestCase;
+import org.dasein.cloud.CloudException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the completion and listeners of {@link AzureFuture}.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureFutureTest extends TestCase {
+    private Runnable count(final AtomicInteger counter) {
+        return new Runnable() {
+            public void run() {
+                counter.incrementAndGet();
+            }
+        };
+    }
+
+    public void testListenerRunsOnCompletion() throws Exception {
+        AzureFuture<String> future = new AzureFuture<String>();
+        AtomicInteger runs = new AtomicInteger();
+
+        future.whenDone(count(runs));
+        assertEquals(0, runs.get());
+        future.complete("done");
+        assertEquals(1, runs.get());
+        assertEquals("done", future.get());
+    }
+
+    public void testListenerRunsOnFailure() throws Exception {
+        AzureFuture<String> future = new AzureFuture<String>();
+        AtomicInteger runs = new AtomicInteger();
+
+        future.whenDone(count(runs));
+        future.fail(new CloudException("failed"));
+        assertEquals(1, runs.get());
+        try {
+            future.get();
+            fail("A failed future returned a result");
+        }
+        catch( ExecutionException expected ) {
+            assertTrue(expected.getCause() instanceof CloudException);
+        }
+    }
+
+    public void testListenerAddedLateRunsAtOnce() throws Exception {
+        AzureFuture<String> future = new AzureFuture<String>();
+        AtomicInteger runs = new AtomicInteger();
+
+        future.complete("done");
+        future.whenDone(count(runs));
+        assertEquals(1, runs.get());
+    }
+
+    public void testListenersRunOnce() throws Exception {
+        AzureFuture<String> future = new AzureFuture<String>();
+        AtomicInteger runs = new AtomicInteger();
+
+        future.whenDone(count(runs));
+        future.whenDone(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("a failing listener does not stop the others");
+            }
+        });
+        future.whenDone(count(runs));
+        future.complete("done");
+        future.complete("again");
+        future.cancel(false);
+        assertEquals(2, runs.get());
+    }
+}
@@ -0,0 +1,231 @@
+package org.dasein.cloud.azure;
+
+import junit.framework.TestCase;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for the expiry, eviction and invalidation rules of {@link AzureMetadataCache}.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureMetadataCacheTest extends TestCase {
+    static private final String ACCOUNT = "test-account";
+    static private final long   TTL     = 60000L;
+
+    static private class CountingLoader extends AzureMetadataCache.Loader<String> {
+        private final AtomicInteger loads = new AtomicInteger();
+        private final String        value;
+
+        CountingLoader(@Nullable String value) {
+            this.value = value;
+        }
+
+        public @Nullable String load() throws CloudException, InternalException {
+            loads.incrementAndGet();
+            return value;
+        }
+
+        int getLoads() {
+            return loads.get();
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        AzureMetadataCache.invalidateAll();
+    }
+
+    @Override
+    protected void tearDown() {
+        AzureMetadataCache.invalidateAll();
+    }
+
+    public void testHitWithinTtl() throws Exception {
+        CountingLoader loader = new CountingLoader("value");
+
+        assertEquals("value", AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+        assertEquals("value", AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+        assertEquals(1, loader.getLoads());
+    }
+
+    public void testReloadAfterTtl() throws Exception {
+        CountingLoader loader = new CountingLoader("value");
+
+        AzureMetadataCache.get(ACCOUNT, null, "category", 1L, loader);
+        Thread.sleep(10L);
+        AzureMetadataCache.get(ACCOUNT, null, "category", 1L, loader);
+        assertEquals(2, loader.getLoads());
+    }
+
+    public void testRegionsAreSeparate() throws Exception {
+        CountingLoader east = new CountingLoader("east");
+        CountingLoader west = new CountingLoader("west");
+
+        assertEquals("east", AzureMetadataCache.get(ACCOUNT, "East US", "category", TTL, east));
+        assertEquals("west", AzureMetadataCache.get(ACCOUNT, "West US", "category", TTL, west));
+        assertEquals("east", AzureMetadataCache.get(ACCOUNT, "East US", "category", TTL, west));
+        assertEquals(1, east.getLoads());
+        assertEquals(1, west.getLoads());
+    }
+
+    public void testNullIsNotCached() throws Exception {
+        CountingLoader loader = new CountingLoader(null);
+
+        assertNull(AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+        assertNull(AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+        assertEquals(2, loader.getLoads());
+    }
+
+    public void testExpiredValueServedWhenReloadFails() throws Exception {
+        AzureMetadataCache.get(ACCOUNT, null, "category", 1L, new CountingLoader("stale"));
+        Thread.sleep(10L);
+
+        String value = AzureMetadataCache.get(ACCOUNT, null, "category", 1L, new AzureMetadataCache.Loader<String>() {
+            public @Nullable String load() throws CloudException, InternalException {
+                throw new CloudException("unavailable");
+            }
+        });
+
+        assertEquals("stale", value);
+    }
+
+    public void testFailureWithoutValueIsThrown() throws Exception {
+        try {
+            AzureMetadataCache.get(ACCOUNT, null, "category", TTL, new AzureMetadataCache.Loader<String>() {
+                public @Nullable String load() throws CloudException, InternalException {
+                    throw new CloudException("unavailable");
+                }
+            });
+            fail("The load failure was not thrown");
+        }
+        catch( CloudException expected ) {
+            assertEquals("unavailable", expected.getMessage());
+        }
+    }
+
+    public void testInvalidateCategory() throws Exception {
+        CountingLoader images = new CountingLoader("images");
+        CountingLoader locations = new CountingLoader("locations");
+
+        AzureMetadataCache.get(ACCOUNT, null, AzureMetadataCache.IMAGES, TTL, images);
+        AzureMetadataCache.get(ACCOUNT, null, AzureMetadataCache.LOCATIONS, TTL, locations);
+        AzureMetadataCache.invalidate(ACCOUNT, null, AzureMetadataCache.IMAGES);
+        AzureMetadataCache.get(ACCOUNT, null, AzureMetadataCache.IMAGES, TTL, images);
+        AzureMetadataCache.get(ACCOUNT, null, AzureMetadataCache.LOCATIONS, TTL, locations);
+        assertEquals(2, images.getLoads());
+        assertEquals(1, locations.getLoads());
+    }
+
+    public void testInvalidateAccount() throws Exception {
+        CountingLoader mine = new CountingLoader("mine");
+        CountingLoader other = new CountingLoader("other");
+
+        AzureMetadataCache.get(ACCOUNT, "East US", "category", TTL, mine);
+        AzureMetadataCache.get("other-account", "East US", "category", TTL, other);
+        AzureMetadataCache.invalidate(ACCOUNT);
+        AzureMetadataCache.get(ACCOUNT, "East US", "category", TTL, mine);
+        AzureMetadataCache.get("other-account", "East US", "category", TTL, other);
+        assertEquals(2, mine.getLoads());
+        assertEquals(1, other.getLoads());
+    }
+
+    public void testInvalidationDuringLoadIsNotCached() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        AzureMetadataCache.Loader<String> loader = new AzureMetadataCache.Loader<String>() {
+            public @Nullable String load() throws CloudException, InternalException {
+                if( loads.incrementAndGet() == 1 ) {
+                    // the metadata changes after this load has read it
+                    AzureMetadataCache.invalidate(ACCOUNT, null, "category");
+                }
+                return "value";
+            }
+        };
+
+        assertEquals("value", AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+        assertEquals("value", AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+        assertEquals(2, loads.get());
+        AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader);
+        assertEquals(2, loads.get());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        CountingLoader first = new CountingLoader("first");
+        CountingLoader second = new CountingLoader("second");
+        CountingLoader filler = new CountingLoader("filler");
+
+        AzureMetadataCache.get(ACCOUNT, null, "first", TTL, first);
+        Thread.sleep(10L);
+        AzureMetadataCache.get(ACCOUNT, null, "second", TTL, second);
+        Thread.sleep(10L);
+        // fills the cache to its bound of 500 entries
+        for( int i=0; i<498; i++ ) {
+            AzureMetadataCache.get(ACCOUNT, null, "filler-" + i, TTL, filler);
+        }
+        Thread.sleep(10L);
+        AzureMetadataCache.get(ACCOUNT, null, "first", TTL, first);
+        AzureMetadataCache.get(ACCOUNT, null, "overflow", TTL, filler);
+        AzureMetadataCache.get(ACCOUNT, null, "first", TTL, first);
+        AzureMetadataCache.get(ACCOUNT, null, "second", TTL, second);
+        assertEquals(1, first.getLoads());
+        assertEquals(2, second.getLoads());
+    }
+
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final AzureMetadataCache.Loader<String> loader = new AzureMetadataCache.Loader<String>() {
+            public @Nullable String load() throws CloudException, InternalException {
+                loads.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(10L, TimeUnit.SECONDS);
+                }
+                catch( InterruptedException e ) {
+                    throw new InternalException(e);
+                }
+                return "value";
+            }
+        };
+        final AtomicReference<Object> firstResult = new AtomicReference<Object>();
+        final AtomicReference<Object> secondResult = new AtomicReference<Object>();
+        Thread firstCaller = new Thread() {
+            public void run() {
+                try {
+                    firstResult.set(AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+                }
+                catch( Throwable t ) {
+                    firstResult.set(t);
+                }
+            }
+        };
+        Thread secondCaller = new Thread() {
+            public void run() {
+                try {
+                    secondResult.set(AzureMetadataCache.get(ACCOUNT, null, "category", TTL, loader));
+                }
+                catch( Throwable t ) {
+                    secondResult.set(t);
+                }
+            }
+        };
+
+        firstCaller.start();
+        assertTrue(started.await(10L, TimeUnit.SECONDS));
+        secondCaller.start();
+        Thread.sleep(50L);
+        release.countDown();
+        firstCaller.join(10000L);
+        secondCaller.join(10000L);
+        assertEquals("value", firstResult.get());
+        assertEquals("value", secondResult.get());
+        assertEquals(1, loads.get());
+    }
+}
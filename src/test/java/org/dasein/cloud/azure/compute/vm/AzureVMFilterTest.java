@@ -0,0 +1,130 @@
+package org.dasein.cloud.azure.compute.vm;
+
+import junit.framework.TestCase;
+import org.dasein.cloud.compute.VMFilterOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link AzureVMFilter}, checking that pruning during the sweep never rejects a virtual machine the
+ * final match would accept.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureVMFilterTest extends TestCase {
+    static private VirtualMachine vm(String serviceName, String deploymentName, String roleName, @Nullable VmState state) {
+        VirtualMachine vm = new VirtualMachine();
+
+        vm.setName(roleName);
+        vm.setCurrentState(state);
+        vm.setTag("serviceName", serviceName);
+        vm.setTag("deploymentName", deploymentName);
+        vm.setTag("roleName", roleName);
+        return vm;
+    }
+
+    static private Map<String,VmState> roles(String ... names) {
+        HashMap<String,VmState> roles = new HashMap<String, VmState>();
+
+        for( String name : names ) {
+            roles.put(name, VmState.RUNNING);
+        }
+        return roles;
+    }
+
+    static private Map<String,String> tag(String key, String value) {
+        return Collections.singletonMap(key, value);
+    }
+
+    public void testNoCriteriaAcceptsEverything() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(null);
+
+        assertFalse(filter.hasCriteria());
+        assertTrue(filter.acceptsService("service"));
+        assertTrue(filter.acceptsDeployment("deployment", "Production", roles("role")));
+        assertTrue(filter.matches(vm("service", "deployment", "role", VmState.STOPPED)));
+    }
+
+    public void testNullStatesAreIgnored() {
+        assertFalse(AzureVMFilter.getInstance(null, (VmState)null).hasCriteria());
+    }
+
+    public void testServiceNameTag() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(VMFilterOptions.getInstance().withTags(tag("serviceName", "web")));
+
+        assertTrue(filter.acceptsService("web"));
+        assertFalse(filter.acceptsService("db"));
+        assertTrue(filter.matches(vm("web", "web", "web", VmState.RUNNING)));
+        assertFalse(filter.matches(vm("db", "db", "db", VmState.RUNNING)));
+    }
+
+    public void testRoleNameTagPrunesAndMatchesOnTheSameName() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(VMFilterOptions.getInstance().withTags(tag("roleName", "web-2")));
+
+        // the role differs from its service, as for any role added to an existing deployment
+        assertTrue(filter.acceptsService("shop"));
+        assertTrue(filter.acceptsDeployment("shop", null, roles("shop", "web-2")));
+        assertTrue(filter.matches(vm("shop", "shop", "web-2", VmState.RUNNING)));
+        assertFalse(filter.acceptsDeployment("shop", null, roles("shop")));
+        assertFalse(filter.matches(vm("shop", "shop", "shop", VmState.RUNNING)));
+    }
+
+    public void testDeploymentNameAndSlot() {
+        HashMap<String,String> tags = new HashMap<String, String>();
+
+        tags.put("deploymentName", "blue");
+        tags.put("environment", "Production");
+
+        AzureVMFilter filter = AzureVMFilter.getInstance(VMFilterOptions.getInstance().withTags(tags));
+
+        assertTrue(filter.acceptsDeployment("blue", "Production", roles("role")));
+        assertTrue(filter.acceptsDeployment("blue", null, roles("role")));
+        assertFalse(filter.acceptsDeployment("blue", "Staging", roles("role")));
+        assertFalse(filter.acceptsDeployment("green", "Production", roles("role")));
+    }
+
+    public void testRegexMatchesRoleNames() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(VMFilterOptions.getInstance("web-\\d+"));
+
+        assertTrue(filter.acceptsDeployment("shop", null, roles("db", "web-1")));
+        assertFalse(filter.acceptsDeployment("shop", null, roles("db")));
+        assertTrue(filter.matches(vm("shop", "shop", "web-1", VmState.RUNNING)));
+        assertFalse(filter.matches(vm("shop", "shop", "db", VmState.RUNNING)));
+    }
+
+    public void testStates() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(null, VmState.RUNNING);
+        HashMap<String,VmState> stopped = new HashMap<String, VmState>();
+        HashMap<String,VmState> unknown = new HashMap<String, VmState>();
+
+        stopped.put("role", VmState.STOPPED);
+        unknown.put("role", null);
+        assertTrue(filter.hasCriteria());
+        assertTrue(filter.acceptsDeployment("deployment", null, roles("role")));
+        assertFalse(filter.acceptsDeployment("deployment", null, stopped));
+        assertTrue(filter.acceptsDeployment("deployment", null, unknown));
+        assertTrue(filter.matches(vm("service", "deployment", "role", VmState.RUNNING)));
+        assertFalse(filter.matches(vm("service", "deployment", "role", VmState.STOPPED)));
+    }
+
+    public void testEmptyRoleSummaryIsNotPruned() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(VMFilterOptions.getInstance().withTags(tag("roleName", "web")));
+
+        assertTrue(filter.acceptsDeployment("deployment", null, new HashMap<String, VmState>()));
+    }
+
+    public void testMatchesAnyIsNeverPruned() {
+        AzureVMFilter filter = AzureVMFilter.getInstance(VMFilterOptions.getInstance(true, "web").withTags(tag("serviceName", "shop")));
+
+        assertTrue(filter.acceptsService("other"));
+        assertTrue(filter.acceptsDeployment("other", null, roles("db")));
+        assertTrue(filter.matches(vm("other", "other", "web", VmState.RUNNING)));
+        assertTrue(filter.matches(vm("shop", "shop", "db", VmState.RUNNING)));
+        assertFalse(filter.matches(vm("other", "other", "db", VmState.RUNNING)));
+    }
+}
@@ -0,0 +1,142 @@
+package org.dasein.cloud.azure.storage;
+
+import junit.framework.TestCase;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.Jiterator;
+
+import javax.annotation.Nullable;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the decoding of listing pages by {@link AzureBlobListing}.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureBlobListingTest extends TestCase {
+    static private final String LOCATION = "https://teststorage.blob.core.windows.net/";
+    static private final long   MODIFIED = 1252488002000L;
+
+    static private final String BLOBS =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<EnumerationResults ContainerName=\"" + LOCATION + "bucket\">" +
+            "<Prefix>dir</Prefix><Marker /><MaxResults>3</MaxResults><Delimiter>/</Delimiter>" +
+            "<Blobs>" +
+            "<Blob><Name>a.txt</Name><Url>" + LOCATION + "bucket/a.txt</Url>" +
+            "<Properties><Last-Modified>Wed, 09 Sep 2009 09:20:02 GMT</Last-Modified><Etag>0x8CBFF45D8A29A19</Etag>" +
+            "<Content-Length>100</Content-Length><Content-Type>text/plain</Content-Type></Properties>" +
+            "<Metadata><Name>not-the-name</Name><Content-Length>5</Content-Length></Metadata></Blob>" +
+            "<Blob><Name>b &amp; c.txt</Name><Url>" + LOCATION + "bucket/b%20%26%20c.txt</Url>" +
+            "<Properties><Content-Length>0</Content-Length></Properties></Blob>" +
+            "<BlobPrefix><Name>dir/</Name></BlobPrefix>" +
+            "</Blobs>" +
+            "<NextMarker>marker-2</NextMarker>" +
+            "</EnumerationResults>";
+
+    static private final String CONTAINERS =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<EnumerationResults AccountName=\"" + LOCATION + "\">" +
+            "<Containers>" +
+            "<Container><Name>first</Name><Url>" + LOCATION + "first</Url>" +
+            "<Properties><Last-Modified>Wed, 09 Sep 2009 09:20:02 GMT</Last-Modified><Etag>0x8CB14C3E29B7E82</Etag></Properties></Container>" +
+            "<Container><Name>second</Name><Url>" + LOCATION + "second</Url></Container>" +
+            "</Containers>" +
+            "<NextMarker />" +
+            "</EnumerationResults>";
+
+    private AzureBlobListing parse(@Nullable String bucket, @Nullable String delimiter, String xml, @Nullable Jiterator<Blob> iterator) throws Exception {
+        AzureBlobListing page = new AzureBlobListing("region", LOCATION, bucket, delimiter, iterator);
+
+        SAXParserFactory.newInstance().newSAXParser().parse(AzureBlobListing.skipPreamble(new ByteArrayInputStream(xml.getBytes("utf-8"))), page);
+        return page;
+    }
+
+    private List<Blob> collect(Jiterator<Blob> iterator) {
+        ArrayList<Blob> blobs = new ArrayList<Blob>();
+
+        iterator.complete();
+        for( Blob blob : iterator ) {
+            blobs.add(blob);
+        }
+        return blobs;
+    }
+
+    public void testBlobs() throws Exception {
+        Jiterator<Blob> iterator = new Jiterator<Blob>();
+        AzureBlobListing page = parse("bucket", "/", BLOBS, iterator);
+        List<Blob> blobs = collect(iterator);
+
+        assertEquals(3, page.getCount());
+        assertEquals(3, blobs.size());
+
+        Blob a = blobs.get(0);
+
+        assertEquals("bucket", a.getBucketName());
+        assertEquals("a.txt", a.getObjectName());
+        assertEquals(LOCATION + "bucket/a.txt", a.getLocation());
+        assertEquals(100L, a.getSize().getQuantity().longValue());
+        assertEquals(MODIFIED, a.getCreationTimestamp());
+
+        Blob b = blobs.get(1);
+
+        assertEquals("b & c.txt", b.getObjectName());
+        assertEquals(0L, b.getSize().getQuantity().longValue());
+    }
+
+    public void testPrefixIsListedAsContainer() throws Exception {
+        Jiterator<Blob> iterator = new Jiterator<Blob>();
+
+        parse("bucket", "/", BLOBS, iterator);
+
+        Blob prefix = collect(iterator).get(2);
+
+        assertTrue(prefix.isContainer());
+        assertEquals("bucket/dir", prefix.getBucketName());
+        assertEquals(LOCATION + "bucket/dir/", prefix.getLocation());
+    }
+
+    public void testContainers() throws Exception {
+        Jiterator<Blob> iterator = new Jiterator<Blob>();
+        AzureBlobListing page = parse(null, null, CONTAINERS, iterator);
+        List<Blob> blobs = collect(iterator);
+
+        assertEquals(2, page.getCount());
+        assertEquals("first", blobs.get(0).getBucketName());
+        assertTrue(blobs.get(0).isContainer());
+        assertEquals(MODIFIED, blobs.get(0).getCreationTimestamp());
+        assertEquals(LOCATION + "second", blobs.get(1).getLocation());
+    }
+
+    public void testNextMarker() throws Exception {
+        assertEquals("marker-2", parse("bucket", "/", BLOBS, null).getNextMarker());
+        assertEquals("", parse(null, null, CONTAINERS, null).getNextMarker());
+        assertNull(parse(null, null, "<EnumerationResults><Containers /></EnumerationResults>", null).getNextMarker());
+    }
+
+    public void testMarkerOfListingIsNotTheNextMarker() throws Exception {
+        String xml = "<EnumerationResults><Marker>marker-1</Marker><Blobs /></EnumerationResults>";
+
+        assertNull(parse("bucket", null, xml, null).getNextMarker());
+    }
+
+    public void testCountWithoutIterator() throws Exception {
+        assertEquals(3, parse("bucket", "/", BLOBS, null).getCount());
+    }
+
+    public void testSkipPreamble() throws Exception {
+        byte[] bom = new byte[] { (byte)0xEF, (byte)0xBB, (byte)0xBF };
+        byte[] xml = " <a/>".getBytes("utf-8");
+        byte[] content = new byte[bom.length + xml.length];
+
+        System.arraycopy(bom, 0, content, 0, bom.length);
+        System.arraycopy(xml, 0, content, bom.length, xml.length);
+
+        InputStream input = AzureBlobListing.skipPreamble(new ByteArrayInputStream(content));
+
+        assertEquals('<', input.read());
+        assertEquals('a', input.read());
+    }
+}
@@ -0,0 +1,56 @@
+package org.dasein.cloud.azure.storage;
+
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+
+import java.util.HashSet;
+
+/**
+ * Unit tests for the block IDs generated by {@link AzureBlockUpload}.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureBlockUploadTest extends TestCase {
+    static private final int[] INDEXES = { 0, 1, 9, 10, 99, 100, 49999, 50000, 999999999 };
+
+    public void testBlockIdsHaveOneLength() {
+        int length = AzureBlockUpload.toBlockId(0).length();
+
+        for( int index : INDEXES ) {
+            String blockId = AzureBlockUpload.toBlockId(index);
+
+            assertEquals(blockId, length, blockId.length());
+            assertFalse(blockId, blockId.contains("="));
+        }
+    }
+
+    public void testBlockIdsDecodeToTheirPosition() {
+        for( int index : INDEXES ) {
+            String decoded = new String(Base64.decodeBase64(AzureBlockUpload.toBlockId(index)));
+
+            assertEquals(index, Integer.parseInt(decoded));
+        }
+    }
+
+    public void testBlockIdsFollowReadOrder() {
+        String previous = null;
+
+        for( int index=0; index<2000; index++ ) {
+            String decoded = new String(Base64.decodeBase64(AzureBlockUpload.toBlockId(index)));
+
+            // the padded positions sort in read order, so the commit order can be rebuilt from the IDs alone
+            if( previous != null ) {
+                assertTrue(decoded, previous.compareTo(decoded) < 0);
+            }
+            previous = decoded;
+        }
+    }
+
+    public void testBlockIdsAreUnique() {
+        HashSet<String> blockIds = new HashSet<String>();
+
+        for( int index=0; index<50000; index++ ) {
+            assertTrue(blockIds.add(AzureBlockUpload.toBlockId(index)));
+        }
+    }
+}
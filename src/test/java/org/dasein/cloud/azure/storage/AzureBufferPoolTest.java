@@ -0,0 +1,101 @@
+package org.dasein.cloud.azure.storage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the lease and release accounting of {@link AzureBufferPool}. The pool is shared by the whole JVM, so
+ * the tests compare its counters before and after rather than assuming it starts empty.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureBufferPoolTest extends TestCase {
+    private final AzureBufferPool pool = AzureBufferPool.getInstance();
+
+    public void testLeaseAndRelease() throws Exception {
+        int leased = pool.getLeased();
+        long leases = pool.getLeases();
+        byte[] buffer = pool.lease();
+
+        assertEquals(pool.getBufferSize(), buffer.length);
+        assertEquals(leased + 1, pool.getLeased());
+        assertEquals(leases + 1, pool.getLeases());
+        assertTrue(pool.getPeakLeased() >= leased + 1);
+
+        int idle = pool.getIdle();
+
+        pool.release(buffer);
+        assertEquals(leased, pool.getLeased());
+        assertEquals(idle + 1, pool.getIdle());
+    }
+
+    public void testReleasedBuffersAreReused() throws Exception {
+        pool.release(pool.lease());
+
+        long allocations = pool.getAllocations();
+        int idle = pool.getIdle();
+        byte[] buffer = pool.lease();
+
+        assertEquals(allocations, pool.getAllocations());
+        assertEquals(idle - 1, pool.getIdle());
+        pool.release(buffer);
+    }
+
+    public void testPeakTracksConcurrentLeases() throws Exception {
+        int leased = pool.getLeased();
+        byte[] first = pool.lease();
+        byte[] second = pool.lease();
+
+        assertNotSame(first, second);
+        assertTrue(pool.getPeakLeased() >= leased + 2);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(leased, pool.getLeased());
+    }
+
+    public void testForeignBufferIsNotPooled() throws Exception {
+        int leased = pool.getLeased();
+
+        pool.lease();
+
+        int idle = pool.getIdle();
+
+        // the permit comes back, but a buffer of the wrong size never reaches another lease
+        pool.release(new byte[16]);
+        assertEquals(leased, pool.getLeased());
+        assertEquals(idle, pool.getIdle());
+    }
+
+    public void testLeaseWaitsAtCapacity() throws Exception {
+        int leased = pool.getLeased();
+        byte[][] buffers = new byte[pool.getCapacity() - leased][];
+
+        for( int i=0; i<buffers.length; i++ ) {
+            buffers[i] = pool.lease();
+        }
+        final byte[][] waited = new byte[1][];
+        long waits = pool.getWaits();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    waited[0] = pool.lease();
+                }
+                catch( InterruptedException ignore ) {
+                    // the test fails on the missing buffer
+                }
+            }
+        };
+
+        waiter.start();
+        waiter.join(200L);
+        assertTrue(waiter.isAlive());
+        pool.release(buffers[0]);
+        waiter.join(10000L);
+        assertNotNull(waited[0]);
+        assertEquals(waits + 1, pool.getWaits());
+        pool.release(waited[0]);
+        for( int i=1; i<buffers.length; i++ ) {
+            pool.release(buffers[i]);
+        }
+        assertEquals(leased, pool.getLeased());
+    }
+}
@@ -0,0 +1,137 @@
+package org.dasein.cloud.azure.storage;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link AzureFileRegionEntity}, checking that a region is sent exactly, repeatably and without moving
+ * the position of the shared channel.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureFileRegionEntityTest extends TestCase {
+    static private final int SIZE = 10000;
+
+    private File            file;
+    private FileInputStream input;
+    private FileChannel     channel;
+    private byte[]          content;
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new byte[SIZE];
+        for( int i=0; i<SIZE; i++ ) {
+            content[i] = (byte)(i % 251);
+        }
+        file = File.createTempFile("region", ".bin");
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content);
+        }
+        finally {
+            out.close();
+        }
+        input = new FileInputStream(file);
+        channel = input.getChannel();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        input.close();
+        if( !file.delete() ) {
+            file.deleteOnExit();
+        }
+    }
+
+    private byte[] expected(int position, int length) {
+        return Arrays.copyOfRange(content, position, position + length);
+    }
+
+    private byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] scratch = new byte[777];
+        int count;
+
+        while( (count = in.read(scratch)) != -1 ) {
+            out.write(scratch, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    public void testProperties() {
+        AzureFileRegionEntity entity = new AzureFileRegionEntity(channel, 100L, 500L);
+
+        assertEquals(500L, entity.getContentLength());
+        assertTrue(entity.isRepeatable());
+        assertFalse(entity.isStreaming());
+    }
+
+    public void testWriteTo() throws IOException {
+        AzureFileRegionEntity entity = new AzureFileRegionEntity(channel, 1234L, 4321L);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        entity.writeTo(out);
+        assertTrue(Arrays.equals(expected(1234, 4321), out.toByteArray()));
+        assertEquals(0L, channel.position());
+    }
+
+    public void testWriteToIsRepeatable() throws IOException {
+        AzureFileRegionEntity entity = new AzureFileRegionEntity(channel, 0L, SIZE);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+        entity.writeTo(first);
+        entity.writeTo(second);
+        assertTrue(Arrays.equals(content, first.toByteArray()));
+        assertTrue(Arrays.equals(content, second.toByteArray()));
+    }
+
+    public void testGetContent() throws IOException {
+        AzureFileRegionEntity entity = new AzureFileRegionEntity(channel, SIZE - 1000L, 1000L);
+        InputStream in = entity.getContent();
+
+        assertTrue(Arrays.equals(expected(SIZE - 1000, 1000), read(in)));
+        assertEquals(-1, in.read());
+        assertTrue(Arrays.equals(expected(SIZE - 1000, 1000), read(entity.getContent())));
+        assertEquals(0L, channel.position());
+    }
+
+    public void testSingleByteReads() throws IOException {
+        InputStream in = new AzureFileRegionEntity(channel, 300L, 2L).getContent();
+
+        assertEquals(content[300] & 0xff, in.read());
+        assertEquals(content[301] & 0xff, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    public void testRegionsShareTheChannel() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for( long position=0L; position<SIZE; position += 3000L ) {
+            new AzureFileRegionEntity(channel, position, Math.min(3000L, SIZE - position)).writeTo(out);
+        }
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    public void testRegionPastTheEndFails() {
+        AzureFileRegionEntity entity = new AzureFileRegionEntity(channel, SIZE - 10L, 20L);
+
+        try {
+            entity.writeTo(new ByteArrayOutputStream());
+            fail("A region past the end of the file was sent");
+        }
+        catch( IOException expected ) {
+            // the file ended short of the region
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.dasein.cloud.azure.storage;
+
+import junit.framework.TestCase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+/**
+ * Unit tests for how {@link AzureUploadJournal} reconciles an earlier attempt with the blocks the service still holds.
+ * @since 2013.04.2
+ * @version 2013.04.2
+ */
+public class AzureUploadJournalTest extends TestCase {
+    static private final String RESOURCE = "bucket/object";
+    static private final int    BLOCK    = 1024;
+
+    private File  dir;
+    private Azure provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("journals", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        provider = connect(dir);
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+
+        if( files != null ) {
+            for( File file : files ) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private Azure connect(@Nullable File journals) {
+        ProviderContext ctx = new ProviderContext();
+        Properties p = new Properties();
+
+        if( journals != null ) {
+            p.setProperty(AzureUploadJournal.DIRECTORY, journals.getAbsolutePath());
+        }
+        ctx.setAccountNumber("test-account");
+        ctx.setCustomProperties(p);
+
+        Azure azure = new Azure() {
+            @Override
+            public @Nullable String getStorageService() {
+                return "teststorage";
+            }
+        };
+
+        azure.connect(ctx);
+        return azure;
+    }
+
+    private AzureUploadJournal journal(String source, boolean trusted) throws Exception {
+        AzureUploadJournal journal = AzureUploadJournal.getInstance(provider, RESOURCE, source, BLOCK, trusted);
+
+        assertNotNull(journal);
+        return journal;
+    }
+
+    public void testDisabledWithoutDirectory() throws Exception {
+        assertNull(AzureUploadJournal.getInstance(connect(null), RESOURCE, "source", BLOCK, false));
+    }
+
+    public void testResumesBlocksStillOnTheService() throws Exception {
+        AzureUploadJournal first = journal("source", false);
+
+        first.open(Collections.<String>emptyList());
+        first.record("b1", "h1");
+        first.record("b2", "h2");
+        first.record("b3", "h3");
+        first.close();
+
+        AzureUploadJournal second = journal("source", false);
+
+        second.open(Arrays.asList("b1", "b3"));
+        assertTrue(second.isUploaded("b1", "h1"));
+        assertTrue(second.isUploaded("b3", "h3"));
+        assertFalse(second.isUploaded("b2", "h2"));
+        second.close();
+    }
+
+    public void testChangedContentIsUploadedAgain() throws Exception {
+        AzureUploadJournal first = journal("source", false);
+
+        first.open(Collections.<String>emptyList());
+        first.record("b1", "h1");
+        first.close();
+
+        AzureUploadJournal second = journal("source", false);
+
+        second.open(Collections.singletonList("b1"));
+        assertFalse(second.isUploaded("b1", "other"));
+        second.close();
+    }
+
+    public void testChangedSourceStartsOver() throws Exception {
+        AzureUploadJournal first = journal("source 100 1", false);
+
+        first.open(Collections.<String>emptyList());
+        first.record("b1", "h1");
+        first.close();
+
+        AzureUploadJournal second = journal("source 200 2", false);
+
+        second.open(Collections.singletonList("b1"));
+        assertFalse(second.isUploaded("b1"));
+        second.close();
+    }
+
+    public void testResumedBlocksSurviveAnotherAttempt() throws Exception {
+        AzureUploadJournal first = journal("source", false);
+
+        first.open(Collections.<String>emptyList());
+        first.record("b1", "h1");
+        first.close();
+
+        AzureUploadJournal second = journal("source", false);
+
+        second.open(Collections.singletonList("b1"));
+        second.record("b2", "h2");
+        second.close();
+
+        AzureUploadJournal third = journal("source", false);
+
+        third.open(Arrays.asList("b1", "b2"));
+        assertTrue(third.isUploaded("b1", "h1"));
+        assertTrue(third.isUploaded("b2", "h2"));
+        third.close();
+    }
+
+    public void testTrustedJournalSkipsByBlockId() throws Exception {
+        AzureUploadJournal first = journal("file 100 1", true);
+
+        assertTrue(first.isTrusted());
+        first.open(Collections.<String>emptyList());
+        first.record("b1", null);
+        first.close();
+
+        AzureUploadJournal second = journal("file 100 1", true);
+
+        second.open(Arrays.asList("b1", "b2"));
+        assertTrue(second.isUploaded("b1"));
+        assertFalse(second.isUploaded("b2"));
+        second.close();
+
+        AzureUploadJournal untrusted = journal("file 100 1", false);
+
+        // blocks recorded without a hash are never taken on trust by a journal that compares hashes
+        untrusted.open(Collections.singletonList("b1"));
+        assertFalse(untrusted.isUploaded("b1"));
+        untrusted.close();
+    }
+
+    public void testDeleteForgetsTheUpload() throws Exception {
+        AzureUploadJournal first = journal("source", false);
+
+        first.open(Collections.<String>emptyList());
+        first.record("b1", "h1");
+        first.delete();
+
+        AzureUploadJournal second = journal("source", false);
+
+        second.open(Collections.singletonList("b1"));
+        assertFalse(second.isUploaded("b1"));
+        second.close();
+    }
+
+    public void testHashIdentifiesContent() throws Exception {
+        AzureUploadJournal journal = journal("source", false);
+        String hash = journal.hash(new ByteArrayEntity("block".getBytes()));
+
+        assertEquals(hash, journal.hash(new ByteArrayEntity("block".getBytes())));
+        assertFalse(hash.equals(journal.hash(new ByteArrayEntity("other".getBytes()))));
+    }
+}